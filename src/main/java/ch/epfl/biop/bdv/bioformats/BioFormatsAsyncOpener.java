@@ -0,0 +1,239 @@
+package ch.epfl.biop.bdv.bioformats;
+
+import bdv.util.BdvHandle;
+import ch.epfl.biop.bdv.bioformats.bioformatssource.ReaderPool;
+import loci.formats.meta.IMetadata;
+import net.imglib2.realtransform.AffineTransform3D;
+import ome.units.unit.Unit;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Opens the series and channels of a file in the background, and adds each source to the
+ * BigDataViewer window as soon as it is ready.
+ *
+ * Series closest to the center of the current view are opened first. Without window, the
+ * first requested serie is the reference : the window created for it is centered on it.
+ * Sources are created and autoscaled in parallel on the shared reader pool, and shown
+ * one at a time.
+ *
+ * Cancelling stops the opening of the sources which are not yet started. Readers are never
+ * interrupted, since an interrupted file channel is closed for all the sources sharing it.
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+public class BioFormatsAsyncOpener {
+
+    private static final Logger LOGGER = Logger.getLogger( BioFormatsAsyncOpener.class.getName() );
+
+    // Parameters of the sources to open
+    final BioFormatsOpenPlugInSciJava settings;
+
+    final ReaderPool readerPool;
+
+    final ExecutorService executor;
+
+    final List<Future<BioFormatsOpenPlugInSingleSourceSciJava>> futures = new ArrayList<>();
+
+    // Released once a source is shown, once all sources are done, or on cancel
+    final CountDownLatch firstSourceDone = new CountDownLatch(1);
+
+    // Number of sources not yet opened
+    final AtomicInteger remainingSources = new AtomicInteger();
+
+    volatile boolean cancelled = false;
+
+    BdvHandle bdv_h;
+
+    boolean createNewWindow;
+
+    /**
+     * @param settings parameters of the sources, and window to add them to
+     * @param readerPool readers of the file
+     * @param nThreads number of sources opened simultaneously
+     */
+    public BioFormatsAsyncOpener(BioFormatsOpenPlugInSciJava settings, ReaderPool readerPool, int nThreads) {
+        this.settings = settings;
+        this.readerPool = readerPool;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, nThreads));
+        this.bdv_h = settings.createNewWindow ? null : settings.bdv_h;
+        this.createNewWindow = settings.createNewWindow;
+    }
+
+    /**
+     * Starts opening the sources, closest to the current view first
+     * @param series series and their channels
+     * @param omeMeta metadata of the file
+     * @return futures of the single source commands, in opening order. A source which is not shown
+     * because its type is not supported or because the opening was cancelled has a null bdv_h.
+     */
+    public synchronized List<Future<BioFormatsOpenPlugInSingleSourceSciJava>> open(List<Pair<Integer, ArrayList<Integer>>> series, IMetadata omeMeta) {
+        List<Pair<Integer, ArrayList<Integer>>> ordered = new ArrayList<>(series);
+        if ((!settings.ignoreMetadata)&&(ordered.size()>1)) {
+            Unit u = Units.getLengthUnit(settings.unit);
+            double[] reference = (bdv_h!=null) ? getViewCenter(bdv_h) : getSerieCenter(omeMeta, ordered.get(0).getLeft(), u);
+            // Stable sort : series at the same distance keep the requested order
+            Collections.sort(ordered, Comparator.comparingDouble(p -> distance(reference, getSerieCenter(omeMeta, p.getLeft(), u))));
+        }
+
+        int nSources = 0;
+        for (Pair<Integer, ArrayList<Integer>> serie : ordered) {
+            nSources += serie.getRight().size()*(settings.appendMode.equals("Volatile + Standard") ? 2 : 1);
+        }
+        remainingSources.set(nSources);
+        if (nSources==0) firstSourceDone.countDown();
+
+        for (Pair<Integer, ArrayList<Integer>> serie : ordered) {
+            for (int iChannel : serie.getRight()) {
+                if (settings.appendMode.equals("Volatile + Standard")) {
+                    submit(serie.getLeft(), iChannel, "Volatile");
+                    submit(serie.getLeft(), iChannel, "Standard");
+                } else {
+                    submit(serie.getLeft(), iChannel, settings.appendMode);
+                }
+            }
+        }
+        // Queued sources are still opened, threads end once they are done
+        executor.shutdown();
+        return new ArrayList<>(futures);
+    }
+
+    void submit(int iSerie, int iChannel, String mode) {
+        futures.add(executor.submit(() -> {
+            try {
+                BioFormatsOpenPlugInSingleSourceSciJava command = settings.createSingleSourceCommand(readerPool, iSerie, iChannel, mode);
+                if (cancelled || !command.open()) return command;
+                show(command);
+                return command;
+            } finally {
+                // No source could be shown
+                if (remainingSources.decrementAndGet()==0) firstSourceDone.countDown();
+            }
+        }));
+    }
+
+    /**
+     * Shows the sources one at a time, in the window of the previous ones
+     */
+    synchronized void show(BioFormatsOpenPlugInSingleSourceSciJava command) {
+        if (cancelled) return;
+        command.bdv_h = bdv_h;
+        command.createNewWindow = createNewWindow;
+        command.show();
+        if (command.bdv_h!=null) {
+            bdv_h = command.bdv_h;
+            createNewWindow = false;
+            firstSourceDone.countDown();
+        }
+    }
+
+    /**
+     * Stops opening the sources which are not started yet
+     */
+    public void cancel() {
+        cancelled = true;
+        synchronized (this) {
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+        // Cancelled tasks never run : waiting threads are released here
+        firstSourceDone.countDown();
+        LOGGER.info("Opening of "+settings.inputFile.getName()+" cancelled");
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true if all sources are opened, or cancelled
+     */
+    public synchronized boolean isDone() {
+        return futures.stream().allMatch(Future::isDone);
+    }
+
+    /**
+     * Waits for the first source to be shown : sources which fail or are not supported are
+     * skipped. Returns as well once all sources are done, or when the opening is cancelled.
+     * @return the window of the sources, null if no source is shown
+     */
+    public BdvHandle waitForFirstSource() throws InterruptedException {
+        firstSourceDone.await();
+        return getBdvHandle();
+    }
+
+    /**
+     * Waits for all sources to be opened or cancelled
+     * @return the window of the sources
+     */
+    public BdvHandle waitForAll() throws InterruptedException {
+        List<Future<BioFormatsOpenPlugInSingleSourceSciJava>> allFutures;
+        synchronized (this) {
+            allFutures = new ArrayList<>(futures);
+        }
+        for (Future<BioFormatsOpenPlugInSingleSourceSciJava> future : allFutures) {
+            try {
+                future.get();
+            } catch (CancellationException e) {
+                // Not opened
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+        return getBdvHandle();
+    }
+
+    public synchronized BdvHandle getBdvHandle() {
+        return bdv_h;
+    }
+
+    /**
+     * @return center of the current view, in global coordinates
+     */
+    static double[] getViewCenter(BdvHandle bdv_h) {
+        AffineTransform3D viewerTransform = new AffineTransform3D();
+        bdv_h.getViewerPanel().getState().getViewerTransform(viewerTransform);
+        double[] screenCenter = new double[]{
+                bdv_h.getViewerPanel().getDisplay().getWidth()/2.0,
+                bdv_h.getViewerPanel().getDisplay().getHeight()/2.0,
+                0};
+        double[] center = new double[3];
+        viewerTransform.applyInverse(center, screenCenter);
+        return center;
+    }
+
+    /**
+     * @return center of the serie, in global coordinates, from its metadata
+     */
+    static double[] getSerieCenter(IMetadata omeMeta, int iSerie, Unit u) {
+        AffineTransform3D rootTransform = BioFormatsHelper.getRootTransform(omeMeta, iSerie, u);
+        double[] voxelCenter = new double[]{
+                omeMeta.getPixelsSizeX(iSerie).getValue()/2.0,
+                omeMeta.getPixelsSizeY(iSerie).getValue()/2.0,
+                omeMeta.getPixelsSizeZ(iSerie).getValue()/2.0};
+        double[] center = new double[3];
+        rootTransform.apply(voxelCenter, center);
+        return center;
+    }
+
+    static double distance(double[] a, double[] b) {
+        double d = 0;
+        for (int i=0;i<3;i++) d += (a[i]-b[i])*(a[i]-b[i]);
+        return Math.sqrt(d);
+    }
+
+}
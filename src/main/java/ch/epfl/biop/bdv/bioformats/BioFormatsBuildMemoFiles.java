@@ -0,0 +1,158 @@
+package ch.epfl.biop.bdv.bioformats;
+
+import ch.epfl.biop.bdv.bioformats.imageloader.BioFormatsImageLoader;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.Memoizer;
+import loci.formats.MetadataTools;
+import mpicbg.spim.data.SpimData;
+import mpicbg.spim.data.XmlIoSpimData;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Builds the BioFormats memo files of all the images of a directory, or of all the files
+ * of a BioFormats xml dataset, in the central memo directory (see {@link BioFormatsMemo})
+ *
+ * Opening is done in parallel, each thread using its own reader. Files are memoized
+ * whatever their opening time.
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+@Plugin(type = Command.class,menuPath = "BDV_SciJava>Tools>Build BioFormats memo files")
+public class BioFormatsBuildMemoFiles implements Command {
+
+    @Parameter(label = "Image directory or xml dataset")
+    public File input;
+
+    @Parameter(required=false, label = "memo directory, empty = current memo directory", style = "directory")
+    public File memoDirectory;
+
+    @Parameter(label = "maximal size of the memo directory (MB)")
+    public long maxMemoDirectorySizeInMB = BioFormatsMemo.getMaxMemoDirectorySizeInBytes()/(1024*1024);
+
+    @Parameter(label = "number of threads")
+    public int nThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter
+    public boolean verbose;
+
+    public Consumer<String> log = s -> {};
+
+    public Consumer<String> errlog = s -> System.err.println(s);
+
+    @Override
+    public void run() {
+
+        if (verbose) {
+            log = s -> System.out.println(s);
+        }
+
+        if (memoDirectory!=null) {
+            BioFormatsMemo.setMemoDirectory(memoDirectory);
+        }
+        // Only changes the process wide limit when the user asked for another one
+        if (maxMemoDirectorySizeInMB!=BioFormatsMemo.getMaxMemoDirectorySizeInBytes()/(1024*1024)) {
+            BioFormatsMemo.setMaxMemoDirectorySizeInBytes(maxMemoDirectorySizeInMB*1024*1024);
+        }
+
+        List<File> files = getFiles();
+        if (files==null) return;
+
+        log.accept("Building memo files of "+files.size()+" files in "+BioFormatsMemo.getMemoDirectory());
+
+        AtomicInteger nDone = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nThreads));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (File f : files) {
+                futures.add(executor.submit(() -> {
+                    buildMemo(f);
+                    log.accept("Memo "+nDone.incrementAndGet()+"/"+files.size()+" : "+f.getAbsolutePath());
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            executor.shutdown();
+        }
+
+        BioFormatsMemo.limitMemoDirectorySize();
+    }
+
+    /**
+     * @return the files of the xml dataset, or the files readable by BioFormats in the directory
+     */
+    List<File> getFiles() {
+        if (input.isDirectory()) {
+            ImageReader typeChecker = new ImageReader();
+            try (Stream<Path> paths = Files.walk(input.toPath())) {
+                return paths.map(Path::toFile)
+                        .filter(File::isFile)
+                        .filter(f -> typeChecker.isThisType(f.getName(), false)) // Extension check only
+                        .collect(Collectors.toList());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        if (input.getName().endsWith(".xml")) {
+            try {
+                SpimData spimData = new XmlIoSpimData().load(input.getAbsolutePath());
+                if (!(spimData.getSequenceDescription().getImgLoader() instanceof BioFormatsImageLoader)) {
+                    errlog.accept("The dataset "+input.getAbsolutePath()+" is not a BioFormats dataset");
+                    return null;
+                }
+                BioFormatsImageLoader imgLoader = (BioFormatsImageLoader) spimData.getSequenceDescription().getImgLoader();
+                imgLoader.close();
+                return imgLoader.files;
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        List<File> files = new ArrayList<>();
+        files.add(input);
+        return files;
+    }
+
+    void buildMemo(File f) {
+        IFormatReader reader = new ImageReader();
+        reader.setFlattenedResolutions(false);
+        Memoizer memo = BioFormatsMemo.wrap(reader, 0, false); // Always memoize, size limited once all files are done
+        memo.setMetadataStore(MetadataTools.createOMEXMLMetadata());
+        try {
+            memo.setId(f.getAbsolutePath());
+        } catch (Exception e) {
+            errlog.accept("Could not open "+f.getAbsolutePath()+" : "+e.getMessage());
+        } finally {
+            try {
+                memo.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
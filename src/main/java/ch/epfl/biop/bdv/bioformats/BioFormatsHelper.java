@@ -208,6 +208,27 @@ public class BioFormatsHelper {
         return voxelDimensions;
     }
 
+    /**
+     * Dimensions of all resolution levels of a serie, read from the reader metadata
+     * Always 3 dimensions, for BigStitcher compatibility
+     * @param reader reader with flattened resolutions set to false
+     * @param iSerie serie index
+     * @return long[level][dimension]
+     */
+    public static long[][] getResolutionDimensions(IFormatReader reader, int iSerie) {
+        reader.setSeries(iSerie);
+        int nLevels = reader.getResolutionCount();
+        long[][] dims = new long[nLevels][3];
+        for (int level=0;level<nLevels;level++) {
+            reader.setResolution(level);
+            dims[level][0] = reader.getSizeX();
+            dims[level][1] = reader.getSizeY();
+            dims[level][2] = reader.getSizeZ();
+        }
+        reader.setResolution(0);
+        return dims;
+    }
+
     public static Dimensions getDimensions(IMetadata omeMeta, int iSerie, Unit u) {
         // Always set 3d to allow for Big Stitcher compatibility
         //int numDimensions = 2 + (omeMeta.getPixelsSizeZ(iSerie).getNumberValue().intValue()>1?1:0);
@@ -0,0 +1,152 @@
+package ch.epfl.biop.bdv.bioformats;
+
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+import loci.formats.Memoizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Central configuration of the BioFormats memo files
+ *
+ * All readers are wrapped with {@link BioFormatsMemo#wrap(IFormatReader)}, which stores memo
+ * files in a single central directory instead of next to the data. This also works for
+ * read-only shares. The directory size is capped: oldest memo files are deleted when
+ * the cap is exceeded.
+ *
+ * The directory and its maximal size can be set with the system properties
+ * bdv.bioformats.memo.dir and bdv.bioformats.memo.maxsizemb, or with the static setters.
+ */
+
+public class BioFormatsMemo {
+
+    private static final Logger LOGGER = Logger.getLogger( BioFormatsMemo.class.getName() );
+
+    public static final String MEMO_EXTENSION = ".bfmemo";
+
+    static File memoDirectory = new File(System.getProperty("bdv.bioformats.memo.dir",
+            System.getProperty("user.home")+File.separator+".bdv-bioformats"+File.separator+"memo"));
+
+    static long maxMemoDirectorySizeInBytes = Long.parseLong(System.getProperty("bdv.bioformats.memo.maxsizemb", "2048"))*1024*1024;
+
+    // Same default as BioFormats : files faster to open are not memoized
+    static long minimumElapsedInMs = Memoizer.DEFAULT_MINIMUM_ELAPSED;
+
+    public static synchronized File getMemoDirectory() {
+        return memoDirectory;
+    }
+
+    /**
+     * @param directory central memo directory, null to store memo files next to the data (BioFormats default)
+     */
+    public static synchronized void setMemoDirectory(File directory) {
+        memoDirectory = directory;
+    }
+
+    public static synchronized long getMaxMemoDirectorySizeInBytes() {
+        return maxMemoDirectorySizeInBytes;
+    }
+
+    public static synchronized void setMaxMemoDirectorySizeInBytes(long maxSize) {
+        maxMemoDirectorySizeInBytes = maxSize;
+    }
+
+    public static synchronized long getMinimumElapsedInMs() {
+        return minimumElapsedInMs;
+    }
+
+    public static synchronized void setMinimumElapsedInMs(long minimumElapsed) {
+        minimumElapsedInMs = minimumElapsed;
+    }
+
+    /**
+     * Wraps a reader into a Memoizer which uses the central memo directory
+     * @param reader
+     * @return memoizer
+     */
+    public static Memoizer wrap(IFormatReader reader) {
+        return wrap(reader, getMinimumElapsedInMs());
+    }
+
+    /**
+     * Wraps a reader into a Memoizer which uses the central memo directory
+     * @param reader
+     * @param minimumElapsed opening time in ms above which a memo file is written
+     * @return memoizer
+     */
+    public static Memoizer wrap(IFormatReader reader, long minimumElapsed) {
+        return wrap(reader, minimumElapsed, true);
+    }
+
+    /**
+     * @param limitSize if false, the directory size is not checked after writing the memo file,
+     *                  the caller needs to call {@link BioFormatsMemo#limitMemoDirectorySize()}
+     */
+    static Memoizer wrap(IFormatReader reader, long minimumElapsed, boolean limitSize) {
+        File directory = getMemoDirectory();
+        if (directory==null) {
+            return new Memoizer(reader, minimumElapsed);
+        }
+        if ((!directory.exists())&&(!directory.mkdirs())) {
+            LOGGER.warning("Could not create memo directory "+directory.getAbsolutePath()+", memo files are stored next to the data");
+            return new Memoizer(reader, minimumElapsed);
+        }
+        if (!limitSize) {
+            return new Memoizer(reader, minimumElapsed, directory);
+        }
+        return new CentralMemoizer(reader, minimumElapsed, directory);
+    }
+
+    /**
+     * Deletes the least recently modified memo files until the memo directory
+     * is below its maximal size
+     */
+    public static synchronized void limitMemoDirectorySize() {
+        File directory = getMemoDirectory();
+        if ((directory==null)||(!directory.exists())) return;
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            List<File> memoFiles = paths
+                    .map(Path::toFile)
+                    .filter(f -> f.isFile() && f.getName().endsWith(MEMO_EXTENSION))
+                    .sorted(Comparator.comparingLong(File::lastModified))
+                    .collect(Collectors.toList());
+            long totalSize = memoFiles.stream().mapToLong(File::length).sum();
+            for (File memoFile : memoFiles) {
+                if (totalSize<=getMaxMemoDirectorySizeInBytes()) break;
+                long size = memoFile.length();
+                if (memoFile.delete()) {
+                    totalSize-=size;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Memoizer which caps the central directory size each time a new memo file is written
+     */
+    static class CentralMemoizer extends Memoizer {
+
+        CentralMemoizer(IFormatReader reader, long minimumElapsed, File directory) {
+            super(reader, minimumElapsed, directory);
+        }
+
+        @Override
+        public void setId(String id) throws FormatException, IOException {
+            super.setId(id);
+            if (isSavedToMemo()) {
+                limitMemoDirectorySize();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+package ch.epfl.biop.bdv.bioformats;
+
+import bdv.util.BdvFunctions;
+import bdv.util.BdvHandle;
+import bdv.util.BdvOptions;
+import bdv.util.BdvStackSource;
+import bdv.util.volatiles.SharedQueue;
+import ch.epfl.biop.bdv.bioformats.bioformatssource.BioFormatsBdvSource;
+import ch.epfl.biop.bdv.bioformats.bioformatssource.BioFormatsMosaicSource;
+import ch.epfl.biop.bdv.bioformats.bioformatssource.ReaderPool;
+import ch.epfl.biop.bdv.bioformats.bioformatssource.VolatileBdvSource;
+import loci.common.DebugTools;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.Memoizer;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import net.imglib2.FinalInterval;
+import net.imglib2.Volatile;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.volatiles.VolatileARGBType;
+import net.imglib2.type.volatiles.VolatileFloatType;
+import net.imglib2.type.volatiles.VolatileUnsignedByteType;
+import net.imglib2.type.volatiles.VolatileUnsignedIntType;
+import net.imglib2.type.volatiles.VolatileUnsignedShortType;
+import ome.units.unit.Unit;
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static ch.epfl.biop.bdv.bioformats.export.ometiff.BioFormatsExportBdvToOmeTiff.expressionToArray;
+
+/**
+ * Opens the series of a stage positioned mosaic as a single source per channel
+ *
+ * The series share one reader pool, and each channel is one {@link BioFormatsMosaicSource} :
+ * BigDataViewer renders, caches and fetches one source per channel, whatever the number of tiles.
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+@Plugin(type = Command.class,menuPath = "BDV_SciJava>Open>Open mosaic with BioFormats in Bdv")
+public class BioFormatsOpenMosaicPlugInSciJava implements Command {
+
+    private static final Logger LOGGER = Logger.getLogger( BioFormatsOpenMosaicPlugInSciJava.class.getName() );
+
+    @Parameter(label = "Image File")
+    public File inputFile;
+
+    @Parameter(label = "Open in new BigDataViewer window")
+    public boolean createNewWindow;
+
+    @Parameter(label = "BigDataViewer Frame", type = ItemIO.BOTH, required = false)
+    public BdvHandle bdv_h;
+
+    @Parameter(label = "Series of the mosaic ('0,2-5'), * for all series")
+    public String seriesIndexes = "*";
+
+    @Parameter(label="Display type ()", choices = {"Volatile","Standard"})
+    public String appendMode = "Volatile";
+
+    @Parameter
+    public boolean switchZandC = false;
+
+    @Parameter
+    public boolean keepBdv3d = false;
+
+    @Parameter(choices = { Units.MILLIMETERS, Units.MICRONS })
+    public String unit = Units.MICRONS;
+
+    @Parameter
+    public boolean letBioFormatDecideCacheBlockXY = true;
+
+    @Parameter
+    public int cacheBlockSizeX = 512;
+
+    @Parameter
+    public int cacheBlockSizeY = 512;
+
+    @Parameter
+    public int cacheBlockSizeZ = 32;
+
+    @Parameter(label = "number of readers shared by the series")
+    public int numberOfReaders = Runtime.getRuntime().availableProcessors();
+
+    // One mosaic source per channel
+    public List<BioFormatsMosaicSource<?>> mosaics = new ArrayList<>();
+
+    @Override
+    public void run() {
+        DebugTools.enableLogging("INFO");
+        try {
+            final ReaderPool readerPool = new ReaderPool(numberOfReaders, () -> {
+                try {
+                    IFormatReader readerIdx = new ImageReader();
+                    readerIdx.setFlattenedResolutions(false);
+                    Memoizer memo = BioFormatsMemo.wrap( readerIdx );
+                    memo.setMetadataStore(MetadataTools.createOMEXMLMetadata());
+                    memo.setId( inputFile.getAbsolutePath() );
+                    return memo;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            Unit u = Units.getLengthUnit(unit);
+            FinalInterval cacheBlockSize = new FinalInterval(new long[]{cacheBlockSizeX, cacheBlockSizeY, cacheBlockSizeZ});
+
+            final IFormatReader reader = readerPool.acquire();
+            final IMetadata omeMeta = (IMetadata) reader.getMetadataStore();
+            List<Integer> series;
+            int nChannels;
+            BioFormatsHelper h;
+            List<List<BioFormatsBdvSource>> channelSeries = new ArrayList<>();
+            try {
+                final int nSeries = reader.getSeriesCount();
+                if (seriesIndexes.trim().equals("*")) {
+                    series = new ArrayList<>();
+                    for (int i=0;i<nSeries;i++) series.add(i);
+                } else {
+                    series = expressionToArray(seriesIndexes, i -> (i>=0)?i:nSeries+i);
+                }
+                if (series.size()==0) {
+                    LOGGER.severe("No serie selected");
+                    return;
+                }
+                h = new BioFormatsHelper(reader, series.get(0));
+                nChannels = omeMeta.getChannelCount(series.get(0));
+                for (int iChannel=0;iChannel<nChannels;iChannel++) channelSeries.add(new ArrayList<>());
+                for (int iSerie : series) {
+                    if (omeMeta.getPixelsType(iSerie)!=omeMeta.getPixelsType(series.get(0))) {
+                        LOGGER.severe("Serie "+iSerie+" differs from serie "+series.get(0)+" in pixel type, all series of a mosaic should match");
+                        return;
+                    }
+                    for (int iChannel=0;iChannel<nChannels;iChannel++) {
+                        // Location metadata is needed to place the tiles
+                        channelSeries.get(iChannel).add(BioFormatsOpenPlugInSingleSourceSciJava.createSource(readerPool, h, iSerie, iChannel,
+                                switchZandC, cacheBlockSize, letBioFormatDecideCacheBlockXY, false, u));
+                    }
+                }
+            } finally {
+                readerPool.recycle(reader);
+            }
+
+            if (channelSeries.get(0).get(0)==null) {
+                LOGGER.severe("Couldn't display source type. UnsignedShort, UnsignedByte, UnsignedInt, Float, and 24 bit RGB only are supported. ");
+                return;
+            }
+
+            // All channels are fetched through the same queue
+            SharedQueue queue = new SharedQueue(numberOfReaders);
+            for (int iChannel=0;iChannel<nChannels;iChannel++) {
+                BioFormatsMosaicSource mosaic = new BioFormatsMosaicSource(channelSeries.get(iChannel),
+                        omeMeta.getImageName(series.get(0))+"_mosaic_ch_"+iChannel);
+                mosaics.add(mosaic);
+
+                BdvOptions opts = BdvOptions.options();
+                if (!keepBdv3d) opts = opts.is2D();
+                if ((bdv_h!=null)&&(!createNewWindow)) opts = opts.addTo(bdv_h);
+                BdvStackSource<?> bdvstack;
+                if (appendMode.equals("Volatile")) {
+                    bdvstack = BdvFunctions.show(new VolatileBdvSource(mosaic, getVolatileType(h), queue), opts);
+                } else {
+                    bdvstack = BdvFunctions.show(mosaic, opts);
+                }
+                if ((!h.is24bitsRGB)&&(omeMeta.getChannelColor(series.get(0), iChannel)!=null)) {
+                    ome.xml.model.primitives.Color c = omeMeta.getChannelColor(series.get(0), iChannel);
+                    bdvstack.setColor(new ARGBType(ARGBType.rgba(c.getRed(), c.getGreen(), c.getBlue(), 255)));
+                }
+                bdv_h = bdvstack.getBdvHandle();
+                createNewWindow = false;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    static Volatile<?> getVolatileType(BioFormatsHelper h) {
+        if (h.is24bitsRGB) return new VolatileARGBType();
+        if (h.is8bits) return new VolatileUnsignedByteType();
+        if (h.is16bits) return new VolatileUnsignedShortType();
+        if (h.is32bits) return new VolatileUnsignedIntType();
+        return new VolatileFloatType();
+    }
+
+}
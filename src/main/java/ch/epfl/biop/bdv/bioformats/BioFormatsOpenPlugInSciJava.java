@@ -1,6 +1,7 @@
 package ch.epfl.biop.bdv.bioformats;
 
 import bdv.util.BdvHandle;
+import ch.epfl.biop.bdv.bioformats.bioformatssource.ReaderPool;
 import loci.common.DebugTools;
 import loci.formats.IFormatReader;
 import loci.formats.ImageReader;
@@ -14,14 +15,12 @@ import org.apache.commons.lang3.tuple.MutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
-import org.scijava.command.CommandModule;
 import org.scijava.command.CommandService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.concurrent.Future;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.logging.Logger;
@@ -52,6 +51,9 @@ public class BioFormatsOpenPlugInSciJava implements Command
     @Parameter
     public boolean autoscale = true;
 
+    @Parameter(label = "no pixel read before display, autoscale from the bit depth metadata")
+    public boolean metadataOnly = false;
+
     @Parameter
     public boolean switchZandC = false;
 
@@ -79,6 +81,15 @@ public class BioFormatsOpenPlugInSciJava implements Command
     @Parameter
     public int cacheBlockSizeZ = 32;
 
+    @Parameter(label = "number of readers shared by the sources")
+    public int numberOfReaders = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(label = "add the sources in the background, closest to the view first")
+    public boolean openInBackground = true;
+
+    // Opening of the sources, can be cancelled while sources are opened in the background
+    public BioFormatsAsyncOpener opener;
+
     @Override
     public void run()
     {
@@ -86,107 +97,45 @@ public class BioFormatsOpenPlugInSciJava implements Command
         DebugTools.enableLogging("INFO");
         try {
 
-            IFormatReader readerIdx = new ImageReader();
-
-            readerIdx.setFlattenedResolutions(false);
-            Memoizer memo = new Memoizer( readerIdx );
-
-            final IMetadata omeMetaOmeXml = MetadataTools.createOMEXMLMetadata();
-            memo.setMetadataStore(omeMetaOmeXml);
-
-            memo.setId( inputFile.getAbsolutePath() );
-            final IFormatReader reader = memo;
+            // The file is parsed once, all sources share the readers of this pool
+            final ReaderPool readerPool = new ReaderPool(numberOfReaders, () -> {
+                try {
+                    IFormatReader readerIdx = new ImageReader();
+                    readerIdx.setFlattenedResolutions(false);
+                    Memoizer memo = BioFormatsMemo.wrap( readerIdx );
+                    memo.setMetadataStore(MetadataTools.createOMEXMLMetadata());
+                    memo.setId( inputFile.getAbsolutePath() );
+                    return memo;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
 
-            LOGGER.info("reader.getSeriesCount()="+reader.getSeriesCount());
+            final IFormatReader reader = readerPool.acquire();
+            final IMetadata omeMetaOmeXml = (IMetadata) reader.getMetadataStore();
+            ArrayList<Pair<Integer, ArrayList<Integer>>> listOfSources;
+            try {
+                LOGGER.info("reader.getSeriesCount()="+reader.getSeriesCount());
 
-            ArrayList<Pair<Integer, ArrayList<Integer>>>
                 listOfSources =
-                    commaSeparatedListToArrayOfArray(
-                        sourceIndexStringNewFull,
-                        idxSeries ->(idxSeries>=0)?idxSeries:reader.getSeriesCount()+idxSeries, // apparently -1 is necessary -> I don't really understand
-                        (idxSeries, idxChannel) ->
-                                (idxChannel>=0)?idxChannel:omeMetaOmeXml.getChannelCount(idxSeries)+idxChannel
-                    );
-
-            listOfSources.stream().forEach(p -> {
-                p.getRight().stream().forEach(idCh -> {
-                    try {
-
-                        LOGGER.info("omeMetaOmeXml.getChannelCount("+p.getLeft()+")="+omeMetaOmeXml.getChannelCount(p.getLeft()));
-                        CommandModule cm;
-                        if (!appendMode.equals("Volatile + Standard")) {
-                            Future<CommandModule> module = cs.run(BioFormatsOpenPlugInSingleSourceSciJava.class, false,
-                                    "sourceIndex", p.getLeft(),
-                                    "channelIndex", idCh,
-                                    "bdv_h", bdv_h,
-                                    "createNewWindow", createNewWindow,
-                                    "inputFile", inputFile,
-                                    "switchZandC", switchZandC,
-                                    "autoscale", autoscale,
-                                    "appendMode", appendMode,
-                                    "keepBdv3d", keepBdv3d,
-                                    "cacheBlockSizeX", cacheBlockSizeX,
-                                    "cacheBlockSizeY", cacheBlockSizeY,
-                                    "cacheBlockSizeZ", cacheBlockSizeZ,
-                                    "letBioFormatDecideCacheBlockXY", letBioFormatDecideCacheBlockXY,
-                                    "ignoreMetadata", ignoreMetadata,
-                                    "unit", unit
-
-                            );
-
-                            final BioFormatsOpenPlugInSingleSourceSciJava command = new BioFormatsOpenPlugInSingleSourceSciJava();
-                            command.bdv_h = bdv_h;
-                            command.run();
-
-                            cm = module.get();
-                        } else {
-                            Future<CommandModule> module = cs.run(BioFormatsOpenPlugInSingleSourceSciJava.class, false,
-                                    "sourceIndex", p.getLeft(),
-                                    "channelIndex", idCh,
-                                    "bdv_h", bdv_h,
-                                    "createNewWindow", createNewWindow,
-                                    "inputFile", inputFile,
-                                    "switchZandC", switchZandC,
-                                    "autoscale", autoscale,
-                                    "appendMode", "Volatile",
-                                    "keepBdv3d", keepBdv3d,
-                                    "cacheBlockSizeX", cacheBlockSizeX,
-                                    "cacheBlockSizeY", cacheBlockSizeY,
-                                    "cacheBlockSizeZ", cacheBlockSizeZ,
-                                    "letBioFormatDecideCacheBlockXY", letBioFormatDecideCacheBlockXY,
-                                    "ignoreMetadata", ignoreMetadata,
-                                    "unit", unit
-                            );
-                            module.get();
-                            module = cs.run(BioFormatsOpenPlugInSingleSourceSciJava.class, false,
-                                    "sourceIndex", p.getLeft(),
-                                    "channelIndex", idCh,
-                                    "bdv_h", bdv_h,
-                                    "createNewWindow", createNewWindow,
-                                    "inputFile", inputFile,
-                                    "switchZandC", switchZandC,
-                                    "autoscale", autoscale,
-                                    "appendMode", "Standard",
-                                    "keepBdv3d", keepBdv3d,
-                                    "cacheBlockSizeX", cacheBlockSizeX,
-                                    "cacheBlockSizeY", cacheBlockSizeY,
-                                    "cacheBlockSizeZ", cacheBlockSizeZ,
-                                    "letBioFormatDecideCacheBlockXY", letBioFormatDecideCacheBlockXY,
-                                    "ignoreMetadata", ignoreMetadata,
-                                    "unit", unit
-                            );
-                            cm = module.get();
-
-                        }
-                        bdv_h = (BdvHandle) cm.getOutput("bdv_h");
-
-                        createNewWindow = false;
+                        commaSeparatedListToArrayOfArray(
+                            sourceIndexStringNewFull,
+                            idxSeries ->(idxSeries>=0)?idxSeries:reader.getSeriesCount()+idxSeries, // apparently -1 is necessary -> I don't really understand
+                            (idxSeries, idxChannel) ->
+                                    (idxChannel>=0)?idxChannel:omeMetaOmeXml.getChannelCount(idxSeries)+idxChannel
+                        );
+            } finally {
+                readerPool.recycle(reader);
+            }
 
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                });
-            });
+            opener = new BioFormatsAsyncOpener(this, readerPool, numberOfReaders);
+            opener.open(listOfSources, omeMetaOmeXml);
+            if (openInBackground) {
+                // Returns as soon as the window is available, the other sources are added when ready
+                bdv_h = opener.waitForFirstSource();
+            } else {
+                bdv_h = opener.waitForAll();
+            }
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -194,6 +143,31 @@ public class BioFormatsOpenPlugInSciJava implements Command
 
     }
 
+    /**
+     * @return a command opening a source with the parameters of this command, on the shared readers
+     */
+    BioFormatsOpenPlugInSingleSourceSciJava createSingleSourceCommand(ReaderPool readerPool, int sourceIndex, int channelIndex, String mode) {
+        final BioFormatsOpenPlugInSingleSourceSciJava command = new BioFormatsOpenPlugInSingleSourceSciJava();
+        command.readerPool = readerPool;
+        command.sourceIndex = sourceIndex;
+        command.channelIndex = channelIndex;
+        command.bdv_h = bdv_h;
+        command.createNewWindow = createNewWindow;
+        command.inputFile = inputFile;
+        command.switchZandC = switchZandC;
+        command.autoscale = autoscale;
+        command.metadataOnly = metadataOnly;
+        command.appendMode = mode;
+        command.keepBdv3d = keepBdv3d;
+        command.cacheBlockSizeX = cacheBlockSizeX;
+        command.cacheBlockSizeY = cacheBlockSizeY;
+        command.cacheBlockSizeZ = cacheBlockSizeZ;
+        command.letBioFormatDecideCacheBlockXY = letBioFormatDecideCacheBlockXY;
+        command.ignoreMetadata = ignoreMetadata;
+        command.unit = unit;
+        return command;
+    }
+
     /**
      * BiFunction necessary to be able to find index of negative values
      */
@@ -67,6 +67,9 @@ public class BioFormatsOpenPlugInSingleSourceSciJava implements Command {
     @Parameter
     public boolean autoscale = true;
 
+    @Parameter(label = "no pixel read before display, autoscale from the bit depth metadata")
+    public boolean metadataOnly = false;
+
     @Parameter
     public boolean keepBdv3d = false;
 
@@ -88,127 +91,189 @@ public class BioFormatsOpenPlugInSingleSourceSciJava implements Command {
     @Parameter( choices = { Units.MILLIMETERS, Units.MICRONS } )
     public String unit = Units.MICRONS;
 
+    // Readers of the file, shared by the sources opened by BioFormatsOpenPlugInSciJava, the file is opened if null
+    public ReaderPool readerPool;
+
+    // Helper and metadata of the serie, set by open
+    BioFormatsHelper h;
+
+    IMetadata omeMetaIdxOmeXml;
+
+    // Display range maximum computed by open when autoscale is set, NaN otherwise.
+    // With metadataOnly, open reads no pixel : it is computed from the metadata
+    double displayMax = Double.NaN;
+
     @Override
     public void run()
     {
-        BdvOptions options = BdvOptions.options();
-
-        if (createNewWindow) {
-            bdv_h=null;
-        }
-
-        if (createNewWindow == false && bdv_h!=null) {
-            options.addTo(bdv_h);
-        }
         try {
+            if (open()) show();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-            Unit< Length > unit = Units.getLengthUnit( this.unit );
+    /**
+     * Creates the sources, and computes their display range, without showing them.
+     * Sources of a file can be opened in parallel on a shared reader pool.
+     * @return false if the pixel type is not supported
+     */
+    public boolean open() throws Exception
+    {
+        Unit< Length > unit = Units.getLengthUnit( this.unit );
 
+        if (readerPool==null) {
             IFormatReader reader = new ImageReader();
             reader.setFlattenedResolutions(false);
-            Memoizer memo = new Memoizer( reader );
-            final IMetadata omeMetaIdxOmeXml = MetadataTools.createOMEXMLMetadata();
-            memo.setMetadataStore(omeMetaIdxOmeXml);
+            Memoizer memo = BioFormatsMemo.wrap( reader );
+            memo.setMetadataStore(MetadataTools.createOMEXMLMetadata());
             memo.setId( inputFile.getAbsolutePath() );
-            final IFormatReader readerIdx = memo;
-
-            bdvSrc = null;
-
-            LOGGER.info("src idx = "+sourceIndex);
-            LOGGER.info("ch idx = "+channelIndex);
-            BioFormatsHelper h = new BioFormatsHelper(readerIdx, sourceIndex);
-            vSrc = null;
-
-            FinalInterval cacheBlockSize = new FinalInterval(new long[]
-                           {(long)cacheBlockSizeX,
-                            (long)cacheBlockSizeY,
-                            (long)cacheBlockSizeZ});
-
-            if (h.is24bitsRGB) {
-                bdvSrc = new BioFormatsBdvRGBSource(readerIdx, sourceIndex, channelIndex, switchZandC, cacheBlockSize, letBioFormatDecideCacheBlockXY, ignoreMetadata, ignoreMetadata,unit);
-                vSrc = new VolatileBdvSource<ARGBType, VolatileARGBType>(bdvSrc, new VolatileARGBType(), new SharedQueue(1));
-            } else {
-                if (h.is8bits)  {
-                    bdvSrc = new BioFormatsBdvUnsignedByteSource(readerIdx, sourceIndex, channelIndex, switchZandC, cacheBlockSize, letBioFormatDecideCacheBlockXY, ignoreMetadata, ignoreMetadata, unit);
-                    vSrc = new VolatileBdvSource<UnsignedByteType, VolatileUnsignedByteType>(bdvSrc, new VolatileUnsignedByteType(), new SharedQueue(1));
-                }
-                if (h.is16bits) {
-                    bdvSrc = new BioFormatsBdvUnsignedShortSource(readerIdx, sourceIndex, channelIndex, switchZandC, cacheBlockSize, letBioFormatDecideCacheBlockXY, ignoreMetadata, ignoreMetadata, unit);
-                    vSrc = new VolatileBdvSource<UnsignedShortType, VolatileUnsignedShortType>(bdvSrc, new VolatileUnsignedShortType(), new SharedQueue(1));
-                }
-                if (h.is32bits) {
-                    bdvSrc = new BioFormatsBdvUnsignedIntSource(readerIdx, sourceIndex, channelIndex, switchZandC, cacheBlockSize, letBioFormatDecideCacheBlockXY, ignoreMetadata, ignoreMetadata, unit);
-                    vSrc = new VolatileBdvSource<UnsignedIntType, VolatileUnsignedIntType>(bdvSrc, new VolatileUnsignedIntType(), new SharedQueue(1));
-                }
-                if (h.isFloat32bits) {
-                    bdvSrc = new BioFormatsBdvFloatSource(readerIdx, sourceIndex, channelIndex, switchZandC, cacheBlockSize, letBioFormatDecideCacheBlockXY, ignoreMetadata, ignoreMetadata, unit);
-                    vSrc = new VolatileBdvSource<FloatType, VolatileFloatType>(bdvSrc, new VolatileFloatType(), new SharedQueue(1));
-                }
-            }
+            readerPool = new ReaderPool(memo);
+        }
 
-            if (vSrc==null) {
-                LOGGER.severe("Couldn't display source type. UnsignedShort, UnsignedByte, UnsignedInt, Float, and 24 bit RGB only are supported. ");
-                return;
+        bdvSrc = null;
+
+        LOGGER.info("src idx = "+sourceIndex);
+        LOGGER.info("ch idx = "+channelIndex);
+        final IFormatReader readerIdx = readerPool.acquire();
+        try {
+            omeMetaIdxOmeXml = (IMetadata) readerIdx.getMetadataStore();
+            h = new BioFormatsHelper(readerIdx, sourceIndex);
+        } finally {
+            readerPool.recycle(readerIdx);
+        }
+        vSrc = null;
+
+        FinalInterval cacheBlockSize = new FinalInterval(new long[]
+                       {(long)cacheBlockSizeX,
+                        (long)cacheBlockSizeY,
+                        (long)cacheBlockSizeZ});
+
+        bdvSrc = createSource(readerPool, h, sourceIndex, channelIndex, switchZandC, cacheBlockSize, letBioFormatDecideCacheBlockXY, ignoreMetadata, unit);
+
+        if (h.is24bitsRGB) {
+            vSrc = new VolatileBdvSource<ARGBType, VolatileARGBType>(bdvSrc, new VolatileARGBType(), new SharedQueue(1));
+        } else {
+            if (h.is8bits)  {
+                vSrc = new VolatileBdvSource<UnsignedByteType, VolatileUnsignedByteType>(bdvSrc, new VolatileUnsignedByteType(), new SharedQueue(1));
+            }
+            if (h.is16bits) {
+                vSrc = new VolatileBdvSource<UnsignedShortType, VolatileUnsignedShortType>(bdvSrc, new VolatileUnsignedShortType(), new SharedQueue(1));
             }
+            if (h.is32bits) {
+                vSrc = new VolatileBdvSource<UnsignedIntType, VolatileUnsignedIntType>(bdvSrc, new VolatileUnsignedIntType(), new SharedQueue(1));
+            }
+            if (h.isFloat32bits) {
+                vSrc = new VolatileBdvSource<FloatType, VolatileFloatType>(bdvSrc, new VolatileFloatType(), new SharedQueue(1));
+            }
+        }
+
+        if (vSrc==null) {
+            LOGGER.severe("Couldn't display source type. UnsignedShort, UnsignedByte, UnsignedInt, Float, and 24 bit RGB only are supported. ");
+            return false;
+        }
+
+        LOGGER.info("name=" + omeMetaIdxOmeXml.getChannelName(sourceIndex, channelIndex));
 
-            LOGGER.info("name=" + omeMetaIdxOmeXml.getChannelName(sourceIndex, channelIndex));
-
-            BdvOptions opts = BdvOptions.options();
-            if ((keepBdv3d==false)) opts = opts.is2D();
-            if (bdv_h != null) opts = opts.addTo(bdv_h);
-            BdvStackSource<?> bdvstack;
-            switch (appendMode) {
-                case "Volatile":
-                    bdvstack = BdvFunctions.show(vSrc, opts);
-                    break;
-                case "Standard":
-                    bdvstack = BdvFunctions.show(bdvSrc, opts);
-                    break;
-                case "No Show":
-                    bdvstack=null;
-                    break;
-                default:
-                    LOGGER.info("Invalid append mode: "+appendMode);
-                    return;
+        if ((!h.is24bitsRGB) && (autoscale) && (metadataOnly) && (!appendMode.equals("No Show"))) {
+            // the display range covers the significant bits of the pixels, if known
+            if ((!h.isFloat32bits) && (omeMetaIdxOmeXml.getPixelsSignificantBits(sourceIndex)!=null)) {
+                displayMax = Math.pow(2, omeMetaIdxOmeXml.getPixelsSignificantBits(sourceIndex).getValue())-1;
             }
-            if (bdvstack!=null) {
-                if (!h.is24bitsRGB) {
-                    ome.xml.model.primitives.Color c = omeMetaIdxOmeXml.getChannelColor(sourceIndex, channelIndex);
-                    if (c != null) {
-                        bdvstack.setColor(new ARGBType(ARGBType.rgba(c.getRed(), c.getGreen(), c.getBlue(), 255)));
-                    } else {
-                        if (omeMetaIdxOmeXml.getChannelEmissionWavelength(sourceIndex, channelIndex) != null) {
-                            int emission = omeMetaIdxOmeXml.getChannelEmissionWavelength(sourceIndex, channelIndex).value(UNITS.NANOMETER).intValue();
-                            LOGGER.info("emission=" + emission + " nm");
-                            Color cAwt = getColorFromWavelength(emission);
-                            bdvstack.setColor(new ARGBType(ARGBType.rgba(cAwt.getRed(), cAwt.getGreen(), cAwt.getBlue(), 255)));
-                        }
-                    }
+        } else if ((!h.is24bitsRGB) && (autoscale) && (!appendMode.equals("No Show"))) {
+            // autoscale attempt based on min max of last pyramid -> no scaling of RGB image
+            RandomAccessibleInterval<RealType> rai = bdvSrc.getSource(0, bdvSrc.getNumMipmapLevels() - 1);
+            RealType vMax = Util.getTypeFromInterval(rai);
+            if (rai.max(0) * rai.max(1) * rai.max(2) > (long) (1024 * 1024)) {
+                LOGGER.info("Image too big, autoscale is quick and dirty...");
+                rai = Views.interval(rai, new FinalInterval(rai.max(0) / 5, rai.max(1) / 5, 1));
+            }
+            for (RealType px : Views.flatIterable(rai)) {
+                if (px.compareTo(vMax) > 0) {
+                    vMax.setReal(px.getRealDouble());
                 }
+            }
+            displayMax = vMax.getRealDouble();
+        }
+        return true;
+    }
 
-                if ((!h.is24bitsRGB) && (autoscale)) {
-                    // autoscale attempt based on min max of last pyramid -> no scaling of RGB image
-                    RandomAccessibleInterval<RealType> rai = bdvSrc.getSource(0, bdvSrc.getNumMipmapLevels() - 1);
-                    RealType vMax = Util.getTypeFromInterval(rai);
-                    if (rai.max(0) * rai.max(1) * rai.max(2) > (long) (1024 * 1024)) {
-                        LOGGER.info("Image too big, autoscale is quick and dirty...");
-                        rai = Views.interval(rai, new FinalInterval(rai.max(0) / 5, rai.max(1) / 5, 1));
-                    }
-                    for (RealType px : Views.flatIterable(rai)) {
-                        if (px.compareTo(vMax) > 0) {
-                            vMax.setReal(px.getRealDouble());
-                        }
+    /**
+     * Shows the sources created by {@link BioFormatsOpenPlugInSingleSourceSciJava#open()} in
+     * the BigDataViewer window, or in a new one
+     */
+    public void show()
+    {
+        if (createNewWindow) {
+            bdv_h=null;
+        }
+
+        BdvOptions opts = BdvOptions.options();
+        if ((keepBdv3d==false)) opts = opts.is2D();
+        if (bdv_h != null) opts = opts.addTo(bdv_h);
+        BdvStackSource<?> bdvstack;
+        switch (appendMode) {
+            case "Volatile":
+                bdvstack = BdvFunctions.show(vSrc, opts);
+                break;
+            case "Standard":
+                bdvstack = BdvFunctions.show(bdvSrc, opts);
+                break;
+            case "No Show":
+                bdvstack=null;
+                break;
+            default:
+                LOGGER.info("Invalid append mode: "+appendMode);
+                return;
+        }
+        if (bdvstack!=null) {
+            if (!h.is24bitsRGB) {
+                ome.xml.model.primitives.Color c = omeMetaIdxOmeXml.getChannelColor(sourceIndex, channelIndex);
+                if (c != null) {
+                    bdvstack.setColor(new ARGBType(ARGBType.rgba(c.getRed(), c.getGreen(), c.getBlue(), 255)));
+                } else {
+                    if (omeMetaIdxOmeXml.getChannelEmissionWavelength(sourceIndex, channelIndex) != null) {
+                        int emission = omeMetaIdxOmeXml.getChannelEmissionWavelength(sourceIndex, channelIndex).value(UNITS.NANOMETER).intValue();
+                        LOGGER.info("emission=" + emission + " nm");
+                        Color cAwt = getColorFromWavelength(emission);
+                        bdvstack.setColor(new ARGBType(ARGBType.rgba(cAwt.getRed(), cAwt.getGreen(), cAwt.getBlue(), 255)));
                     }
-                    // TODO understand why min do not work
-                    bdvstack.setDisplayRange(0, vMax.getRealDouble());
                 }
+            }
 
-                bdv_h = bdvstack.getBdvHandle();
+            if (!Double.isNaN(displayMax)) {
+                // TODO understand why min do not work
+                bdvstack.setDisplayRange(0, displayMax);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+
+            bdv_h = bdvstack.getBdvHandle();
         }
+    }
 
+    /**
+     * Creates the source of a serie channel, of the pixel type of the serie, without displaying it
+     * @param readerPool readers of the file
+     * @param h helper created on the serie
+     * @return the source, null if the pixel type is not supported
+     */
+    public static BioFormatsBdvSource createSource(ReaderPool readerPool, BioFormatsHelper h, int sourceIndex, int channelIndex, boolean switchZandC,
+                                                   FinalInterval cacheBlockSize, boolean letBioFormatDecideCacheBlockXY, boolean ignoreMetadata, Unit unit) {
+        if (h.is24bitsRGB) {
+            return new BioFormatsBdvRGBSource(readerPool, sourceIndex, channelIndex, switchZandC, cacheBlockSize, letBioFormatDecideCacheBlockXY, ignoreMetadata, ignoreMetadata, unit);
+        }
+        if (h.is8bits) {
+            return new BioFormatsBdvUnsignedByteSource(readerPool, sourceIndex, channelIndex, switchZandC, cacheBlockSize, letBioFormatDecideCacheBlockXY, ignoreMetadata, ignoreMetadata, unit);
+        }
+        if (h.is16bits) {
+            return new BioFormatsBdvUnsignedShortSource(readerPool, sourceIndex, channelIndex, switchZandC, cacheBlockSize, letBioFormatDecideCacheBlockXY, ignoreMetadata, ignoreMetadata, unit);
+        }
+        if (h.is32bits) {
+            return new BioFormatsBdvUnsignedIntSource(readerPool, sourceIndex, channelIndex, switchZandC, cacheBlockSize, letBioFormatDecideCacheBlockXY, ignoreMetadata, ignoreMetadata, unit);
+        }
+        if (h.isFloat32bits) {
+            return new BioFormatsBdvFloatSource(readerPool, sourceIndex, channelIndex, switchZandC, cacheBlockSize, letBioFormatDecideCacheBlockXY, ignoreMetadata, ignoreMetadata, unit);
+        }
+        return null;
     }
 
     static private double Gamma = 0.80;
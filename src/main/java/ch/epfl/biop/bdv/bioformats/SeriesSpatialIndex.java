@@ -0,0 +1,169 @@
+package ch.epfl.biop.bdv.bioformats;
+
+import loci.formats.meta.IMetadata;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import ome.units.unit.Unit;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the bounding boxes of the series of a file, to find the series overlapping a region
+ * without checking all of them.
+ *
+ * Bounding boxes are stored in a regular grid over x and y, whose cells have the average size
+ * of the boxes : for a tile scan, each cell holds a few tiles. A query only looks at the cells
+ * overlapping the region, then checks the bounds of their series, z included.
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+public class SeriesSpatialIndex {
+
+    final List<RealInterval> bounds;
+
+    // Number of timepoints of each element, null if elements are present at all timepoints
+    final int[] numberOfTimepoints;
+
+    final double[] origin = new double[2];
+
+    final double[] cellSize = new double[2];
+
+    final long[] numberOfCells = new long[2];
+
+    final Map<Long, List<Integer>> grid = new HashMap<>();
+
+    /**
+     * @param bounds bounding box of each element, in 3D
+     * @param numberOfTimepoints number of timepoints of each element, null if present at all timepoints
+     */
+    public SeriesSpatialIndex(List<? extends RealInterval> bounds, int[] numberOfTimepoints) {
+        this.bounds = new ArrayList<>(bounds);
+        this.numberOfTimepoints = numberOfTimepoints;
+        if (bounds.size()==0) return;
+
+        double[] min = {Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE};
+        double[] sumSize = new double[2];
+        for (RealInterval box : bounds) {
+            for (int d=0;d<2;d++) {
+                min[d] = Math.min(min[d], box.realMin(d));
+                max[d] = Math.max(max[d], box.realMax(d));
+                sumSize[d] += box.realMax(d)-box.realMin(d);
+            }
+        }
+        for (int d=0;d<2;d++) {
+            origin[d] = min[d];
+            cellSize[d] = sumSize[d]/bounds.size();
+            if (!(cellSize[d]>0)) cellSize[d] = Math.max(1, max[d]-min[d]);
+            numberOfCells[d] = (long) Math.floor((max[d]-min[d])/cellSize[d])+1;
+        }
+
+        for (int i=0;i<bounds.size();i++) {
+            RealInterval box = bounds.get(i);
+            long[] cMin = getCell(box.realMin(0), box.realMin(1));
+            long[] cMax = getCell(box.realMax(0), box.realMax(1));
+            for (long cx=cMin[0];cx<=cMax[0];cx++) {
+                for (long cy=cMin[1];cy<=cMax[1];cy++) {
+                    grid.computeIfAbsent(cx*numberOfCells[1]+cy, k -> new ArrayList<>()).add(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Index of the series of a file, from the OME metadata
+     * @param omeMeta metadata of the file
+     * @param u unit of the bounding boxes
+     * @return index whose elements are the series indexes
+     */
+    public static SeriesSpatialIndex fromMetadata(IMetadata omeMeta, Unit u) {
+        int nSeries = omeMeta.getImageCount();
+        List<RealInterval> bounds = new ArrayList<>();
+        int[] numberOfTimepoints = new int[nSeries];
+        for (int iSerie=0;iSerie<nSeries;iSerie++) {
+            bounds.add(getSerieBounds(omeMeta, iSerie, u));
+            numberOfTimepoints[iSerie] = omeMeta.getPixelsSizeT(iSerie).getValue();
+        }
+        return new SeriesSpatialIndex(bounds, numberOfTimepoints);
+    }
+
+    /**
+     * @return bounding box of the serie, voxel borders included, in global coordinates
+     */
+    public static RealInterval getSerieBounds(IMetadata omeMeta, int iSerie, Unit u) {
+        double[] min = {-0.5, -0.5, -0.5};
+        double[] max = {
+                omeMeta.getPixelsSizeX(iSerie).getValue()-0.5,
+                omeMeta.getPixelsSizeY(iSerie).getValue()-0.5,
+                omeMeta.getPixelsSizeZ(iSerie).getValue()-0.5};
+        return BioFormatsHelper.getRootTransform(omeMeta, iSerie, u).estimateBounds(new FinalRealInterval(min, max));
+    }
+
+    long[] getCell(double x, double y) {
+        long cx = (long) Math.floor((x-origin[0])/cellSize[0]);
+        long cy = (long) Math.floor((y-origin[1])/cellSize[1]);
+        return new long[]{
+                Math.max(0, Math.min(numberOfCells[0]-1, cx)),
+                Math.max(0, Math.min(numberOfCells[1]-1, cy))};
+    }
+
+    /**
+     * @param region region, in the coordinates of the bounding boxes
+     * @param t timepoint
+     * @return indexes of the elements present at this timepoint and overlapping the region, in increasing order
+     */
+    public List<Integer> query(RealInterval region, int t) {
+        BitSet found = new BitSet(bounds.size());
+        if ((bounds.size()>0)&&(region.realMax(0)>=origin[0])&&(region.realMax(1)>=origin[1])) {
+            long[] cMin = getCell(region.realMin(0), region.realMin(1));
+            long[] cMax = getCell(region.realMax(0), region.realMax(1));
+            if ((cMax[0]-cMin[0]+1)*(cMax[1]-cMin[1]+1)>bounds.size()) {
+                // Region covering more cells than elements : checking all elements is faster
+                for (int i=0;i<bounds.size();i++) check(i, region, t, found);
+            } else {
+                for (long cx=cMin[0];cx<=cMax[0];cx++) {
+                    for (long cy=cMin[1];cy<=cMax[1];cy++) {
+                        List<Integer> cell = grid.get(cx*numberOfCells[1]+cy);
+                        if (cell==null) continue;
+                        for (int i : cell) check(i, region, t, found);
+                    }
+                }
+            }
+        }
+        List<Integer> result = new ArrayList<>(found.cardinality());
+        for (int i=found.nextSetBit(0);i>=0;i=found.nextSetBit(i+1)) result.add(i);
+        return result;
+    }
+
+    /**
+     * @param region region, in the coordinates of the bounding boxes
+     * @return indexes of the elements overlapping the region, at any timepoint, in increasing order
+     */
+    public List<Integer> query(RealInterval region) {
+        return query(region, -1);
+    }
+
+    void check(int i, RealInterval region, int t, BitSet found) {
+        if (found.get(i)) return;
+        if ((t>=0)&&(numberOfTimepoints!=null)&&(t>=numberOfTimepoints[i])) return;
+        RealInterval box = bounds.get(i);
+        for (int d=0;d<Math.min(box.numDimensions(), region.numDimensions());d++) {
+            if ((box.realMax(d)<region.realMin(d))||(box.realMin(d)>region.realMax(d))) return;
+        }
+        found.set(i);
+    }
+
+    public RealInterval getBounds(int i) {
+        return bounds.get(i);
+    }
+
+    public int size() {
+        return bounds.size();
+    }
+
+}
@@ -1,5 +1,6 @@
 package ch.epfl.biop.bdv.bioformats.bioformatssource;
 
+import loci.formats.FormatException;
 import loci.formats.IFormatReader;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
@@ -11,6 +12,7 @@ import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.view.Views;
 import ome.units.unit.Unit;
 
+import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
 
 import static net.imglib2.cache.img.DiskCachedCellImgOptions.options;
@@ -27,120 +29,84 @@ public class BioFormatsBdvRGBSource extends BioFormatsBdvSource<ARGBType> {
         ignoreBioFormatsVoxelSizeMetaData, u);
     }
 
+    public BioFormatsBdvRGBSource(ReaderPool readerPool, int image_index, int channel_index,
+                                  boolean sw, FinalInterval cacheBlockSize, boolean useBioFormatsXYBlockSize,
+                                  boolean ignoreBioFormatsLocationMetaData,
+                                  boolean ignoreBioFormatsVoxelSizeMetaData, Unit u) {
+        super(readerPool, image_index, channel_index, sw, cacheBlockSize, useBioFormatsXYBlockSize,
+        ignoreBioFormatsLocationMetaData,
+        ignoreBioFormatsVoxelSizeMetaData, u);
+    }
+
     /**
      * The core of the source...
      * @param t
      * @param level
      * @return
      */
+    @Override
     public RandomAccessibleInterval<ARGBType> createSource(int t, int level) {
-        //assert is24bitsRGB;
-        synchronized(reader) {
-
-            if (!raiMap.containsKey(t)) {
-                raiMap.put(t, new ConcurrentHashMap<>());
-            }
+        if (!raiMap.containsKey(t)) {
+            raiMap.put(t, new ConcurrentHashMap<>());
+        }
 
-            reader.setResolution(level);
-            int sx = reader.getSizeX();
-            int sy = reader.getSizeY();
-            int sz = (!is3D)?1:reader.getSizeZ();
-            
-            // Cached Image Factory Options
-            final DiskCachedCellImgOptions factoryOptions = options()
-                    .cellDimensions( cellDimensions )
-                    .cacheType( DiskCachedCellImgOptions.CacheType.BOUNDED )
-                    .maxCacheSize( 100 );
-
-            // Creates cached image factory of Type Byte
-            final DiskCachedCellImgFactory<ARGBType> factory = new DiskCachedCellImgFactory<ARGBType>( new ARGBType() , factoryOptions );
-
-            int xc = cellDimensions[0];
-            int yc = cellDimensions[1];
-            int zc = cellDimensions[2];
-
-            // Creates border image, with cell Consumer method, which creates the image
-            // TODO improve interleave case
-            final Img<ARGBType> rai;
-            if (reader.isInterleaved()) {
-                rai = factory.create(new FinalInterval(new long[]{sx, sy, sz}),
-                        cell -> {
-                            synchronized(reader) {
-                                reader.setResolution(level);
-                                Cursor<ARGBType> out = Views.flatIterable(cell).cursor();
-                                int minZ = (int) cell.min(2);
-                                int maxZ = Math.min(minZ + zc, reader.getSizeZ());
-
-                                for (int z=minZ;z<maxZ;z++) {
-                                    int minX = (int) cell.min(0);
-                                    int maxX = Math.min(minX + xc, reader.getSizeX());
-
-                                    int minY = (int) cell.min(1);
-                                    int maxY = Math.min(minY + yc, reader.getSizeY());
-
-                                    int w = maxX - minX;
-                                    int h = maxY - minY;
-
-                                    byte[] bytes = reader.openBytes(switchZandC?reader.getIndex(cChannel,z,t):reader.getIndex(z,cChannel,t),
-                                            minX, minY, w, h);
-
-                                    int idxPx = 0;
-
-                                    int totBytes = (w * h) * 3;
-                                    while ((out.hasNext()) && (idxPx < totBytes)) {
-                                        int v = ((bytes[idxPx] & 0xff) << 16 ) | ((bytes[idxPx + 1] & 0xff) << 8) | (bytes[idxPx+2] & 0xff);
-                                        out.next().set(v);
-                                        idxPx += 3;
-                                    }
-                                }
-
-                            }
-                        }, options().initializeCellsAsDirty(true));
-            } else {
-                rai = factory.create(new FinalInterval(new long[]{sx, sy, sz}),
-                        cell -> {
-                            synchronized(reader) {
-                                reader.setResolution(level);
-                                Cursor<ARGBType> out = Views.flatIterable(cell).cursor();
-                                int minZ = (int) cell.min(2);
-                                int maxZ = Math.min(minZ + zc, reader.getSizeZ());
+        // Cached Image Factory Options
+        final DiskCachedCellImgOptions factoryOptions = options()
+                .cellDimensions( cellDimensions )
+                .cacheType( DiskCachedCellImgOptions.CacheType.BOUNDED )
+                .maxCacheSize( 100 );
 
-                                for (int z=minZ;z<maxZ;z++) {
-                                    int minX = (int) cell.min(0);
-                                    int maxX = Math.min(minX + xc, reader.getSizeX());
+        // Creates cached image factory of Type ARGBType
+        final DiskCachedCellImgFactory<ARGBType> factory = new DiskCachedCellImgFactory<>( new ARGBType() , factoryOptions );
 
-                                    int minY = (int) cell.min(1);
-                                    int maxY = Math.min(minY + yc, reader.getSizeY());
+        // Creates border image, with cell Consumer method, which creates the image
+        final Img<ARGBType> rai = factory.create(new FinalInterval(getLevelDimensions(level)),
+                cell -> loadCell(t, level, cell), options().initializeCellsAsDirty(true));
 
-                                    int w = maxX - minX;
-                                    int h = maxY - minY;
+        raiMap.get(t).put(level, rai);
 
+        return raiMap.get(t).get(level);
+    }
 
-                                    byte[] bytesR = reader.openBytes(switchZandC?reader.getIndex(cChannel,z,t):reader.getIndex(z,cChannel,t),
-                                            minX, minY, w, h);
+    @Override
+    protected void readCell(IFormatReader reader, int t, RandomAccessibleInterval<ARGBType> cell) throws FormatException, IOException {
+        final boolean isInterleaved = reader.isInterleaved();
+        Cursor<ARGBType> out = Views.flatIterable(cell).cursor();
 
-                                    int idxPx = 0;
+        int minX = (int) cell.min(0);
+        int minY = (int) cell.min(1);
+        int w = (int) cell.dimension(0);
+        int h = (int) cell.dimension(1);
 
+        int minZ = (int) cell.min(2);
+        int maxZ = minZ + (int) cell.dimension(2);
 
-                                    int totBytes = (w * h) ;
+        for (int z=minZ;z<maxZ;z++) {
+            byte[] bytes = reader.openBytes(switchZandC?reader.getIndex(cChannel,z,t):reader.getIndex(z,cChannel,t), minX, minY, w, h);
 
-                                    int gOffset = totBytes;
+            int idxPx = 0;
 
-                                    int bOffset = 2*totBytes;
+            // TODO improve interleave case
+            if (isInterleaved) {
+                int totBytes = (w * h) * 3;
+                while ((out.hasNext()) && (idxPx < totBytes)) {
+                    int v = ((bytes[idxPx] & 0xff) << 16 ) | ((bytes[idxPx + 1] & 0xff) << 8) | (bytes[idxPx+2] & 0xff);
+                    out.next().set(v);
+                    idxPx += 3;
+                }
+            } else {
+                int totBytes = (w * h) ;
 
-                                    while ((out.hasNext()) && (idxPx < totBytes)) {
-                                        int v = ((bytesR[idxPx] & 0xff) << 16 ) | ((bytesR[idxPx+gOffset] & 0xff) << 8) | (bytesR[idxPx+bOffset] & 0xff);
-                                        out.next().set(v);
-                                        idxPx += 1;
-                                    }
-                                }
-                            }
-                        }, options().initializeCellsAsDirty(true));
-            }
+                int gOffset = totBytes;
 
-            raiMap.get(t).put(level, rai);
+                int bOffset = 2*totBytes;
 
-            return raiMap.get(t).get(level);
+                while ((out.hasNext()) && (idxPx < totBytes)) {
+                    int v = ((bytes[idxPx] & 0xff) << 16 ) | ((bytes[idxPx+gOffset] & 0xff) << 8) | (bytes[idxPx+bOffset] & 0xff);
+                    out.next().set(v);
+                    idxPx += 1;
+                }
+            }
         }
     }
 
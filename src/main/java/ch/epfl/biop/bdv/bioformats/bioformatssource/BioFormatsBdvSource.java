@@ -4,23 +4,35 @@ import bdv.util.DefaultInterpolators;
 import bdv.viewer.Interpolation;
 import bdv.viewer.Source;
 import ch.epfl.biop.bdv.bioformats.BioFormatsHelper;
+import loci.formats.FormatException;
 import loci.formats.IFormatReader;
 import loci.formats.meta.IMetadata;
 import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.FinalDimensions;
 import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.Volatile;
 import net.imglib2.img.Img;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.NumericType;
+import net.imglib2.util.Util;
 import net.imglib2.view.ExtendedRandomAccessibleInterval;
 import net.imglib2.view.Views;
 import ome.units.UNITS;
 import ome.units.quantity.Length;
 import ome.units.unit.Unit;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * BigDataViewer multiresolution source built from BioFormat reader
@@ -44,8 +56,18 @@ public abstract class BioFormatsBdvSource<T extends NumericType< T > > implement
 
     protected final DefaultInterpolators< T > interpolators = new DefaultInterpolators<>();
 
-    // Bioformat reader
-    volatile IFormatReader reader;
+    // Pool of Bioformat readers opened on the file of this source
+    final ReaderPool readerPool;
+
+    // Series index of the source within the file
+    final int image_index;
+
+    // Number of resolution levels, taken from the reader at construction
+    final int numMipmapLevels;
+
+    // Dimensions of each resolution level, taken from the reader at construction : geometry
+    // queries never create the cached images
+    final long[][] levelDimensions;
 
     // Inner VoxelDimensions, taken from BioFormats
     final VoxelDimensions voxelsDimensions;
@@ -107,6 +129,27 @@ public abstract class BioFormatsBdvSource<T extends NumericType< T > > implement
                                boolean ignoreBioFormatsLocationMetaData,
                                boolean ignoreBioFormatsVoxelSizeMetaData,
                                Unit u)
+    {
+        this(new ReaderPool(reader), image_index, channel_index, swZC, cacheBlockSize, useBioFormatsXYBlockSize,
+                ignoreBioFormatsLocationMetaData, ignoreBioFormatsVoxelSizeMetaData, u);
+    }
+
+    /**
+     * Bio Format source constructor
+     * @param readerPool pool of bio format readers -> flatten should be set to false to allow for multiresolution handling
+     * @param image_index image index within source
+     * @param channel_index channel index within source
+     * @param swZC switch or not z and c
+     */
+    public BioFormatsBdvSource(ReaderPool readerPool,
+                               int image_index,
+                               int channel_index,
+                               boolean swZC,
+                               FinalInterval cacheBlockSize,
+                               boolean useBioFormatsXYBlockSize,
+                               boolean ignoreBioFormatsLocationMetaData,
+                               boolean ignoreBioFormatsVoxelSizeMetaData,
+                               Unit u)
     {
         this.targetUnit = u;
         this.ignoreBioFormatsLocationMetaData = ignoreBioFormatsLocationMetaData;
@@ -114,31 +157,49 @@ public abstract class BioFormatsBdvSource<T extends NumericType< T > > implement
         this.useBioFormatsXYBlockSize = useBioFormatsXYBlockSize;
         this.cacheBlockSize = cacheBlockSize;
         this.switchZandC = swZC;
-        this.reader = reader;
-        this.reader.setSeries(image_index);
+        this.readerPool = readerPool;
+        this.image_index = image_index;
         this.cChannel = channel_index;
-        this.numberOfTimePoints = this.reader.getSizeT();
 
-        // MetaData
-        final IMetadata omeMeta = (IMetadata) reader.getMetadataStore();
+        IFormatReader reader = acquireReader(0);
+        try {
+            this.numberOfTimePoints = reader.getSizeT();
+            this.numMipmapLevels = reader.getResolutionCount();
 
-        // SourceName
-        if (omeMeta.getChannelName(image_index, channel_index)!=null) {
-            if (omeMeta.getChannelName(image_index, channel_index).equals("null")) {
+            // MetaData
+            final IMetadata omeMeta = (IMetadata) reader.getMetadataStore();
+
+            // SourceName
+            if (omeMeta.getChannelName(image_index, channel_index)!=null) {
+                if (omeMeta.getChannelName(image_index, channel_index).equals("null")) {
+                    this.sourceName = omeMeta.getImageName(image_index);
+                } else {
+                    this.sourceName = omeMeta.getImageName(image_index) + "_ch_" + omeMeta.getChannelName(image_index, channel_index);
+                }
+            } else {
                 this.sourceName = omeMeta.getImageName(image_index);
+            }
+
+            setRootTransform(omeMeta, image_index);
+
+            if (reader.getSizeZ()>1) {
+                is3D=true;
             } else {
-                this.sourceName = omeMeta.getImageName(image_index) + "_ch_" + omeMeta.getChannelName(image_index, channel_index);
+                is3D=false;
             }
-        } else {
-            this.sourceName = omeMeta.getImageName(image_index);
-        }
 
-        setRootTransform(omeMeta, image_index);
+            cellDimensions = new int[] {
+                    useBioFormatsXYBlockSize?reader.getOptimalTileWidth():(int)cacheBlockSize.dimension(0),
+                    useBioFormatsXYBlockSize?reader.getOptimalTileHeight():(int)cacheBlockSize.dimension(1),
+                    (!is3D)?1:(int)cacheBlockSize.dimension(2)};
 
-        if (reader.getSizeZ()>1) {
-            is3D=true;
-        } else {
-            is3D=false;
+            levelDimensions = new long[numMipmapLevels][];
+            for (int level=0;level<numMipmapLevels;level++) {
+                reader.setResolution(level);
+                levelDimensions[level] = new long[]{reader.getSizeX(), reader.getSizeY(), (!is3D)?1:reader.getSizeZ()};
+            }
+        } finally {
+            recycleReader(reader);
         }
 
         int numDimensions = 3; // For BigStitcher compatibility
@@ -171,11 +232,32 @@ public abstract class BioFormatsBdvSource<T extends NumericType< T > > implement
                 }
             };
         }
+    }
 
-        cellDimensions = new int[] {
-                useBioFormatsXYBlockSize?reader.getOptimalTileWidth():(int)cacheBlockSize.dimension(0),
-                useBioFormatsXYBlockSize?reader.getOptimalTileHeight():(int)cacheBlockSize.dimension(1),
-                (!is3D)?1:(int)cacheBlockSize.dimension(2)};
+    /**
+     * Gets a reader from the pool, set to the series of this source and to the requested resolution level
+     * The reader has to be given back with {@link BioFormatsBdvSource#recycleReader(IFormatReader)}
+     * @param level resolution level
+     * @return a reader for the exclusive use of the calling thread
+     */
+    IFormatReader acquireReader(int level) {
+        try {
+            IFormatReader reader = readerPool.acquire();
+            reader.setSeries(image_index);
+            reader.setResolution(level);
+            return reader;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    void recycleReader(IFormatReader reader) {
+        readerPool.recycle(reader);
+    }
+
+    public ReaderPool getReaderPool() {
+        return readerPool;
     }
 
     public void setRootTransform(IMetadata omeMeta, int image_index) {
@@ -207,6 +289,115 @@ public abstract class BioFormatsBdvSource<T extends NumericType< T > > implement
      */
     abstract public RandomAccessibleInterval<T> createSource(int t, int level);
 
+    /**
+     * Reads the pixels of a cell into the cell image, plane by plane
+     * @param reader reader set to the series and resolution level of the cell
+     * @param t timepoint
+     * @param cell cell to fill, in flat iteration order
+     */
+    abstract protected void readCell(IFormatReader reader, int t, RandomAccessibleInterval<T> cell) throws FormatException, IOException;
+
+    /**
+     * Reads a cell with a reader taken from the pool : used by the cell loaders of the cached images
+     * @param t
+     * @param level
+     * @param cell
+     */
+    void loadCell(int t, int level, RandomAccessibleInterval<T> cell) throws FormatException, IOException {
+        IFormatReader cellReader = acquireReader(level);
+        try {
+            readCell(cellReader, t, cell);
+        } finally {
+            recycleReader(cellReader);
+        }
+    }
+
+    /**
+     * Dimensions of a resolution level, z dimension is 1 for 2D sources.
+     * Taken from the metadata : no pixel is read and no cached image is created
+     * @param level
+     * @return
+     */
+    public long[] getLevelDimensions(int level) {
+        return levelDimensions[level].clone();
+    }
+
+    /**
+     * Loads a complete resolution level in memory, bypassing the cached cell images.
+     * Cells are read in tile order, in parallel, with as many readers as the reader pool allows.
+     * @param t timepoint
+     * @param level resolution level
+     * @return an in memory image of the resolution level
+     */
+    public Img<T> loadCompletely(int t, int level) {
+        long[] dims = getLevelDimensions(level);
+        final Img<T> img = Util.getSuitableImgFactory(new FinalDimensions(dims), getType()).create(dims);
+        final List<Interval> cells = getCellIntervals(img, cellDimensions);
+        final AtomicInteger nextCell = new AtomicInteger();
+
+        int nWorkers = Math.min(readerPool.getMaxNumberOfReaders(), cells.size());
+        ExecutorService executor = Executors.newFixedThreadPool(nWorkers);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i=0;i<nWorkers;i++) {
+                futures.add(executor.submit(() -> {
+                    // Each worker keeps its reader and takes the next cell in tile order
+                    IFormatReader reader = acquireReader(level);
+                    try {
+                        int iCell;
+                        while ((iCell = nextCell.getAndIncrement())<cells.size()) {
+                            readCell(reader, t, Views.interval(img, cells.get(iCell)));
+                        }
+                    } finally {
+                        recycleReader(reader);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        return img;
+    }
+
+    /**
+     * Splits an interval into blocks aligned with the cell grid, x varying fastest
+     * @param interval
+     * @param cellDimensions
+     * @return list of cell intervals
+     */
+    public static List<Interval> getCellIntervals(Interval interval, int[] cellDimensions) {
+        int nd = interval.numDimensions();
+        List<Interval> cells = new ArrayList<>();
+        long[] min = new long[nd];
+        long[] max = new long[nd];
+        long[] nCells = new long[nd];
+        long nTotal = 1;
+        for (int d=0;d<nd;d++) {
+            nCells[d] = (interval.dimension(d)-1)/cellDimensions[d]+1;
+            nTotal*=nCells[d];
+        }
+        for (long iCell=0;iCell<nTotal;iCell++) {
+            long idx = iCell;
+            for (int d=0;d<nd;d++) {
+                long c = idx % nCells[d];
+                idx = idx / nCells[d];
+                min[d] = interval.min(d)+c*cellDimensions[d];
+                max[d] = Math.min(min[d]+cellDimensions[d]-1, interval.max(d));
+            }
+            cells.add(new FinalInterval(min, max));
+        }
+        return cells;
+    }
+
     public boolean fixedLevel = false;
     public boolean lowerLevel = false;
     public int minLevel = 2;
@@ -227,7 +418,13 @@ public abstract class BioFormatsBdvSource<T extends NumericType< T > > implement
                 return raiMap.get(t).get(level);
             }
         }
-        return createSource(t,level);
+        synchronized (this) {
+            // Checks again : the source may have been created by another thread meanwhile
+            if ((raiMap.containsKey(t))&&(raiMap.get(t).containsKey(level))) {
+                return raiMap.get(t).get(level);
+            }
+            return createSource(t,level);
+        }
     }
 
     /**
@@ -258,36 +455,24 @@ public abstract class BioFormatsBdvSource<T extends NumericType< T > > implement
     public void getSourceTransform(int t, int level, AffineTransform3D transform) {
         // Ignoring t parameters : assuming all transforms are identical over time
         // TODO How is the pyramid in 3D ?
-        if (fixedLevel) {
-            level=cLevel;
-            transform.set(transforms.get(level));
-        }
-        if ((lowerLevel)&&(level<minLevel)) {
-            level=minLevel;
-            transform.set(transforms.get(level));
-        }
-        if (!transforms.contains(level)) {
+        if (fixedLevel) {level=cLevel;}
+        if ((lowerLevel)&&(level<minLevel)) {level=minLevel;}
+        if (!transforms.containsKey(level)) {
             if (level==0) {
                 transforms.put(0, this.rootTransform);
             } else {
                 AffineTransform3D tr = new AffineTransform3D();
                 tr.set(rootTransform);
 
-                // Apply ratio in numbers of pixel
-                long nPixXLvl0 = this.getSource(t,0).dimension(0);
-                long nPixXCurrentLvl = this.getSource(t,level).dimension(0);
-
-                long nPixYLvl0 = this.getSource(t,0).dimension(1);
-                long nPixYCurrentLvl = this.getSource(t,level).dimension(1);
-
-                long nPixZLvl0 = this.getSource(t,0).dimension(2);
-                long nPixZCurrentLvl = this.getSource(t,level).dimension(2);
+                // Apply ratio in numbers of pixel, from the metadata
+                long[] dimsLvl0 = levelDimensions[0];
+                long[] dimsCurrentLvl = levelDimensions[level];
 
                 tr.translate(-pXmm, -pYmm, -pZmm);
 
-                tr.set(tr.get(0,0)*((double)nPixXLvl0/(double)nPixXCurrentLvl),0,0);
-                tr.set(tr.get(1,1)*((double)nPixYLvl0/(double)nPixYCurrentLvl),1,1);
-                tr.set(tr.get(2,2)*((double)nPixZLvl0/(double)nPixZCurrentLvl),2,2);
+                tr.set(tr.get(0,0)*((double)dimsLvl0[0]/(double)dimsCurrentLvl[0]),0,0);
+                tr.set(tr.get(1,1)*((double)dimsLvl0[1]/(double)dimsCurrentLvl[1]),1,1);
+                tr.set(tr.get(2,2)*((double)dimsLvl0[2]/(double)dimsCurrentLvl[2]),2,2);
 
                 tr.translate(pXmm, pYmm, pZmm);
                 transforms.put(level, tr);
@@ -319,7 +504,7 @@ public abstract class BioFormatsBdvSource<T extends NumericType< T > > implement
 
     @Override
     public int getNumMipmapLevels() {
-        return reader.getResolutionCount();
+        return numMipmapLevels;
     }
 
 }
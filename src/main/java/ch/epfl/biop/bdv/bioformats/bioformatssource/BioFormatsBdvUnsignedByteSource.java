@@ -1,5 +1,6 @@
 package ch.epfl.biop.bdv.bioformats.bioformatssource;
 
+import loci.formats.FormatException;
 import loci.formats.IFormatReader;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
@@ -11,6 +12,7 @@ import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.view.Views;
 import ome.units.unit.Unit;
 
+import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
 
 import static net.imglib2.cache.img.DiskCachedCellImgOptions.options;
@@ -24,69 +26,60 @@ public class BioFormatsBdvUnsignedByteSource extends BioFormatsBdvSource<Unsigne
         ignoreBioFormatsVoxelSizeMetaData,u);
     }
 
+    public BioFormatsBdvUnsignedByteSource(ReaderPool readerPool, int image_index, int channel_index, boolean sw, FinalInterval cacheBlockSize, boolean useBioFormatsXYBlockSize,
+                                           boolean ignoreBioFormatsLocationMetaData,
+                                           boolean ignoreBioFormatsVoxelSizeMetaData, Unit u) {
+        super(readerPool, image_index, channel_index, sw, cacheBlockSize, useBioFormatsXYBlockSize,
+        ignoreBioFormatsLocationMetaData,
+        ignoreBioFormatsVoxelSizeMetaData,u);
+    }
+
     @Override
     public RandomAccessibleInterval<UnsignedByteType> createSource(int t, int level) {
-        synchronized(reader) {
-            if (!raiMap.containsKey(t)) {
-                raiMap.put(t, new ConcurrentHashMap<>());
-            }
-
-            reader.setResolution(level);
-            int sx = reader.getSizeX();
-            int sy = reader.getSizeY();
-
-            System.out.println("level="+level+" sx = "+sx+" sy = "+sy);
-            int sz = (!is3D)?1:reader.getSizeZ();
-
-            // Cached Image Factory Options
-            final DiskCachedCellImgOptions factoryOptions = options()
-                    .cellDimensions( cellDimensions )
-                    .cacheType( DiskCachedCellImgOptions.CacheType.BOUNDED )
-                    .maxCacheSize( 1000 );
-
-
-            // Creates cached image factory of Type Byte
-            final DiskCachedCellImgFactory<UnsignedByteType> factory = new DiskCachedCellImgFactory<>( new UnsignedByteType() , factoryOptions );
+        if (!raiMap.containsKey(t)) {
+            raiMap.put(t, new ConcurrentHashMap<>());
+        }
 
-            int xc = cellDimensions[0];
-            int yc = cellDimensions[1];
-            int zc = cellDimensions[2];
+        // Cached Image Factory Options
+        final DiskCachedCellImgOptions factoryOptions = options()
+                .cellDimensions( cellDimensions )
+                .cacheType( DiskCachedCellImgOptions.CacheType.BOUNDED )
+                .maxCacheSize( 1000 );
 
-            final Img<UnsignedByteType> rai = factory.create(new FinalInterval(new long[]{sx, sy, sz}),
-                    cell -> {
-                        synchronized(reader) {
-                            reader.setResolution(level);
-                            Cursor<UnsignedByteType> out = Views.flatIterable(cell).cursor();
-                            int minZ = (int) cell.min(2);
-                            int maxZ = Math.min(minZ + zc, reader.getSizeZ());
+        // Creates cached image factory of Type UnsignedByteType
+        final DiskCachedCellImgFactory<UnsignedByteType> factory = new DiskCachedCellImgFactory<>( new UnsignedByteType() , factoryOptions );
 
-                            for (int z=minZ;z<maxZ;z++) {
+        // Creates border image, with cell Consumer method, which creates the image
+        final Img<UnsignedByteType> rai = factory.create(new FinalInterval(getLevelDimensions(level)),
+                cell -> loadCell(t, level, cell), options().initializeCellsAsDirty(true));
 
-                                int minX = (int) cell.min(0);
-                                int maxX = Math.min(minX + xc, reader.getSizeX());
+        raiMap.get(t).put(level, rai);
 
-                                int minY = (int) cell.min(1);
-                                int maxY = Math.min(minY + yc, reader.getSizeY());
+        return raiMap.get(t).get(level);
+    }
 
-                                int w = maxX - minX;
-                                int h = maxY - minY;
+    @Override
+    protected void readCell(IFormatReader reader, int t, RandomAccessibleInterval<UnsignedByteType> cell) throws FormatException, IOException {
+        Cursor<UnsignedByteType> out = Views.flatIterable(cell).cursor();
 
-                                byte[] bytes = reader.openBytes(switchZandC ? reader.getIndex(cChannel, z, t) : reader.getIndex(z, cChannel, t), minX, minY, w, h);
+        int minX = (int) cell.min(0);
+        int minY = (int) cell.min(1);
+        int w = (int) cell.dimension(0);
+        int h = (int) cell.dimension(1);
 
-                                int idxPx = 0;
+        int minZ = (int) cell.min(2);
+        int maxZ = minZ + (int) cell.dimension(2);
 
-                                int totBytes = (w * h);
-                                while ((out.hasNext()) && (idxPx < totBytes)) {
-                                    out.next().set(bytes[idxPx]);
-                                    idxPx++;
-                                }
-                            }
-                        }
-                    }, options().initializeCellsAsDirty(true));
+        for (int z=minZ;z<maxZ;z++) {
+            byte[] bytes = reader.openBytes(switchZandC?reader.getIndex(cChannel,z,t):reader.getIndex(z,cChannel,t), minX, minY, w, h);
 
-            raiMap.get(t).put(level, rai);
+            int idxPx = 0;
 
-            return raiMap.get(t).get(level);
+            int totBytes = (w * h);
+            while ((out.hasNext()) && (idxPx < totBytes)) {
+                out.next().set(bytes[idxPx]);
+                idxPx++;
+            }
         }
     }
 
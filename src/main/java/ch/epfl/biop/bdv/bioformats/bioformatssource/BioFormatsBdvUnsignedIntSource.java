@@ -1,5 +1,6 @@
 package ch.epfl.biop.bdv.bioformats.bioformatssource;
 
+import loci.formats.FormatException;
 import loci.formats.IFormatReader;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
@@ -11,6 +12,7 @@ import net.imglib2.type.numeric.integer.UnsignedIntType;
 import net.imglib2.view.Views;
 import ome.units.unit.Unit;
 
+import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
 
 import static net.imglib2.cache.img.DiskCachedCellImgOptions.options;
@@ -25,81 +27,72 @@ public class BioFormatsBdvUnsignedIntSource extends BioFormatsBdvSource<Unsigned
         ignoreBioFormatsVoxelSizeMetaData,u);
     }
 
+    public BioFormatsBdvUnsignedIntSource(ReaderPool readerPool, int image_index, int channel_index, boolean sw, FinalInterval cacheBlockSize, boolean useBioFormatsXYBlockSize,
+                                          boolean ignoreBioFormatsLocationMetaData,
+                                          boolean ignoreBioFormatsVoxelSizeMetaData, Unit u) {
+        super(readerPool, image_index, channel_index, sw, cacheBlockSize, useBioFormatsXYBlockSize,
+        ignoreBioFormatsLocationMetaData,
+        ignoreBioFormatsVoxelSizeMetaData,u);
+    }
+
 
     @Override
     public RandomAccessibleInterval<UnsignedIntType> createSource(int t, int level) {
-        synchronized(reader) {
-            if (!raiMap.containsKey(t)) {
-                raiMap.put(t, new ConcurrentHashMap<>());
-            }
-
-            reader.setResolution(level);
-
-            boolean littleEndian = reader.isLittleEndian();
-
-            int sx = reader.getSizeX();
-            int sy = reader.getSizeY();
-            int sz = (!is3D)?1:reader.getSizeZ();
-
-            final DiskCachedCellImgOptions factoryOptions = options()
-                    .cellDimensions( cellDimensions )
-                    .cacheType( DiskCachedCellImgOptions.CacheType.BOUNDED )
-                    .maxCacheSize( 1000 );
-
-
-            // Creates cached image factory of Type Byte
-            final DiskCachedCellImgFactory<UnsignedIntType> factory = new DiskCachedCellImgFactory<>( new UnsignedIntType() , factoryOptions );
-
-            int xc = cellDimensions[0];
-            int yc = cellDimensions[1];
-            int zc = cellDimensions[2];
-
-            // Creates border image, with cell Consumer method, which creates the image
-            final Img<UnsignedIntType> rai = factory.create(new FinalInterval(new long[]{sx, sy, sz}),
-                    cell -> {
-                        synchronized(reader) {
-                            reader.setResolution(level);
-                            Cursor<UnsignedIntType> out = Views.flatIterable(cell).cursor();
-                            int minZ = (int) cell.min(2);
-                            int maxZ = Math.min(minZ + zc, reader.getSizeZ());
-
-                            for (int z=minZ;z<maxZ;z++) {
-                                int minX = (int) cell.min(0);
-                                int maxX = Math.min(minX + xc, reader.getSizeX());
-
-                                int minY = (int) cell.min(1);
-                                int maxY = Math.min(minY + yc, reader.getSizeY());
-
-                                int w = maxX - minX;
-                                int h = maxY - minY;
-
+        if (!raiMap.containsKey(t)) {
+            raiMap.put(t, new ConcurrentHashMap<>());
+        }
 
-                                int totBytes = (w * h)*4;
+        // Cached Image Factory Options
+        final DiskCachedCellImgOptions factoryOptions = options()
+                .cellDimensions( cellDimensions )
+                .cacheType( DiskCachedCellImgOptions.CacheType.BOUNDED )
+                .maxCacheSize( 1000 );
 
-                                int idxPx = 0;
+        // Creates cached image factory of Type UnsignedIntType
+        final DiskCachedCellImgFactory<UnsignedIntType> factory = new DiskCachedCellImgFactory<>( new UnsignedIntType() , factoryOptions );
 
-                                byte[] bytes = reader.openBytes(switchZandC?reader.getIndex(cChannel,z,t):reader.getIndex(z,cChannel,t), minX, minY, w, h);
+        // Creates border image, with cell Consumer method, which creates the image
+        final Img<UnsignedIntType> rai = factory.create(new FinalInterval(getLevelDimensions(level)),
+                cell -> loadCell(t, level, cell), options().initializeCellsAsDirty(true));
 
-                                if (littleEndian) { // TODO improve this dirty switch block
-                                    while ((out.hasNext()) && (idxPx < totBytes)) {
-                                        int v = ( (bytes[idxPx + 3] & 0xff) << 24) | ((bytes[idxPx + 2] & 0xff) << 16) | ((bytes[idxPx + 1] & 0xff) << 8) | (bytes[idxPx] & 0xff);
-                                        out.next().set(v);
-                                        idxPx += 4;
-                                    }
-                                } else {
-                                    while ((out.hasNext()) && (idxPx < totBytes)) {
-                                        int v = ( (bytes[idxPx] & 0xff) << 24) | ((bytes[idxPx + 1] & 0xff) << 16) | ((bytes[idxPx + 2] & 0xff) << 8) | (bytes[idxPx + 3] & 0xff);
-                                        out.next().set(v);
-                                        idxPx += 4;
-                                    }
-                                }
-                            }
-                        }
-                    }, options().initializeCellsAsDirty(true));
+        raiMap.get(t).put(level, rai);
 
-            raiMap.get(t).put(level, rai);
+        return raiMap.get(t).get(level);
+    }
 
-            return raiMap.get(t).get(level);
+    @Override
+    protected void readCell(IFormatReader reader, int t, RandomAccessibleInterval<UnsignedIntType> cell) throws FormatException, IOException {
+        final boolean littleEndian = reader.isLittleEndian();
+        Cursor<UnsignedIntType> out = Views.flatIterable(cell).cursor();
+
+        int minX = (int) cell.min(0);
+        int minY = (int) cell.min(1);
+        int w = (int) cell.dimension(0);
+        int h = (int) cell.dimension(1);
+
+        int minZ = (int) cell.min(2);
+        int maxZ = minZ + (int) cell.dimension(2);
+
+        for (int z=minZ;z<maxZ;z++) {
+            byte[] bytes = reader.openBytes(switchZandC?reader.getIndex(cChannel,z,t):reader.getIndex(z,cChannel,t), minX, minY, w, h);
+
+            int totBytes = (w * h)*4;
+
+            int idxPx = 0;
+
+            if (littleEndian) { // TODO improve this dirty switch block
+                while ((out.hasNext()) && (idxPx < totBytes)) {
+                    int v = ( (bytes[idxPx + 3] & 0xff) << 24) | ((bytes[idxPx + 2] & 0xff) << 16) | ((bytes[idxPx + 1] & 0xff) << 8) | (bytes[idxPx] & 0xff);
+                    out.next().set(v);
+                    idxPx += 4;
+                }
+            } else {
+                while ((out.hasNext()) && (idxPx < totBytes)) {
+                    int v = ( (bytes[idxPx] & 0xff) << 24) | ((bytes[idxPx + 1] & 0xff) << 16) | ((bytes[idxPx + 2] & 0xff) << 8) | (bytes[idxPx + 3] & 0xff);
+                    out.next().set(v);
+                    idxPx += 4;
+                }
+            }
         }
     }
 
@@ -0,0 +1,260 @@
+package ch.epfl.biop.bdv.bioformats.bioformatssource;
+
+import bdv.util.DefaultInterpolators;
+import bdv.viewer.Interpolation;
+import bdv.viewer.Source;
+import ch.epfl.biop.bdv.bioformats.SeriesSpatialIndex;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.cache.img.DiskCachedCellImgFactory;
+import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.img.Img;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.Translation3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static net.imglib2.cache.img.DiskCachedCellImgOptions.options;
+
+/**
+ * Single source combining the series of a stage positioned mosaic, such as a tile scan
+ *
+ * The series are placed on the voxel grid of the first serie, at the position given by their
+ * root transform, rounded to the nearest voxel of each resolution level. Each resolution level
+ * is one cached image : a cell reads the series tiles it overlaps, found with a
+ * {@link SeriesSpatialIndex}, with the readers of the series, and the cells outside of all
+ * tiles stay empty. BigDataViewer renders and fetches a
+ * single source, whatever the number of series.
+ *
+ * Limitations:
+ * - series should share their pixel type, voxel size and downsampling factors
+ * - tiles are not blended : where they overlap, the last serie is shown
+ *
+ * @param <T> pixel type
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+public class BioFormatsMosaicSource<T extends NumericType<T> & NativeType<T>> implements Source<T> {
+
+    protected final DefaultInterpolators< T > interpolators = new DefaultInterpolators<>();
+
+    /**
+     * Serie placed in the mosaic at one resolution level
+     */
+    public static class Tile<T extends NumericType<T>> {
+        public final BioFormatsBdvSource<T> serie;
+        // Position of the tile in the voxel grid of the first serie, at this resolution level
+        public final long[] offset;
+        public final Interval bounds;
+
+        Tile(BioFormatsBdvSource<T> serie, long[] offset, long[] dims) {
+            this.serie = serie;
+            this.offset = offset;
+            long[] max = new long[3];
+            for (int d=0;d<3;d++) max[d] = offset[d]+dims[d]-1;
+            this.bounds = new FinalInterval(offset, max);
+        }
+    }
+
+    final List<BioFormatsBdvSource<T>> series;
+
+    final int numMipmapLevels;
+
+    // Tiles of each resolution level, in series order
+    final List<List<Tile<T>>> levelTiles = new ArrayList<>();
+
+    // Index of the tiles bounds of each resolution level
+    final List<SeriesSpatialIndex> levelIndexes = new ArrayList<>();
+
+    // Bounds of each resolution level, in the voxel grid of the first serie
+    final List<Interval> levelBounds = new ArrayList<>();
+
+    final AffineTransform3D[] transforms;
+
+    // Cached images, by timepoint and resolution level
+    final ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, Img<T>>> raiMap = new ConcurrentHashMap<>();
+
+    final int[] cellDimensions;
+
+    String name;
+
+    /**
+     * @param series sources of the series, with location metadata, sharing a reader pool
+     * @param name name of the mosaic source
+     */
+    public BioFormatsMosaicSource(List<BioFormatsBdvSource<T>> series, String name) {
+        if (series.size()==0) {
+            throw new IllegalArgumentException("A mosaic needs at least one serie");
+        }
+        this.series = new ArrayList<>(series);
+        this.name = name;
+
+        BioFormatsBdvSource<T> reference = series.get(0);
+        this.cellDimensions = reference.cellDimensions;
+        this.numMipmapLevels = series.stream().mapToInt(BioFormatsBdvSource::getNumMipmapLevels).min().getAsInt();
+        this.transforms = new AffineTransform3D[numMipmapLevels];
+
+        AffineTransform3D referenceTransform = new AffineTransform3D();
+        reference.getSourceTransform(0, 0, referenceTransform);
+        long[] referenceDims = reference.getLevelDimensions(0);
+
+        for (int level=0;level<numMipmapLevels;level++) {
+            long[] referenceLevelDims = reference.getLevelDimensions(level);
+            List<Tile<T>> tiles = new ArrayList<>();
+            Interval bounds = null;
+            for (BioFormatsBdvSource<T> serie : series) {
+                // Position of the serie origin in the voxel grid of the reference, at full resolution
+                double[] origin = new double[3];
+                referenceTransform.applyInverse(origin, new double[]{
+                        serie.rootTransform.get(0,3),
+                        serie.rootTransform.get(1,3),
+                        serie.rootTransform.get(2,3)});
+                long[] offset = new long[3];
+                for (int d=0;d<3;d++) {
+                    double downsampling = (double) referenceDims[d]/(double) referenceLevelDims[d];
+                    offset[d] = Math.round(origin[d]/downsampling);
+                }
+                Tile<T> tile = new Tile<>(serie, offset, serie.getLevelDimensions(level));
+                tiles.add(tile);
+                bounds = (bounds==null) ? tile.bounds : Intervals.union(bounds, tile.bounds);
+            }
+            levelTiles.add(tiles);
+            levelIndexes.add(new SeriesSpatialIndex(tiles.stream().map(tile -> tile.bounds).collect(Collectors.toList()),
+                    series.stream().mapToInt(serie -> serie.numberOfTimePoints).toArray()));
+            levelBounds.add(bounds);
+
+            // Transform of the reference level, shifted to the corner of the mosaic
+            AffineTransform3D tr = new AffineTransform3D();
+            reference.getSourceTransform(0, level, tr);
+            tr.concatenate(new Translation3D(bounds.min(0), bounds.min(1), bounds.min(2)));
+            transforms[level] = tr;
+        }
+    }
+
+    /**
+     * Fills a cell of the mosaic with the tiles overlapping it
+     * @param t timepoint
+     * @param level resolution level
+     * @param cell cell of the mosaic, in mosaic voxel coordinates
+     */
+    void loadCell(int t, int level, RandomAccessibleInterval<T> cell) throws Exception {
+        Interval mosaicBounds = levelBounds.get(level);
+        // Cell in the voxel grid of the reference
+        long[] min = new long[3];
+        long[] max = new long[3];
+        for (int d=0;d<3;d++) {
+            min[d] = cell.min(d)+mosaicBounds.min(d);
+            max[d] = cell.max(d)+mosaicBounds.min(d);
+        }
+        Interval cellBounds = new FinalInterval(min, max);
+        // Only the tiles present at this timepoint and overlapping the cell are read
+        for (int iTile : levelIndexes.get(level).query(cellBounds, t)) {
+            Tile<T> tile = levelTiles.get(level).get(iTile);
+            Interval overlap = Intervals.intersect(tile.bounds, cellBounds);
+            if (Intervals.isEmpty(overlap)) continue;
+            // Part of the cell covered by the tile, in the voxel coordinates of the serie
+            RandomAccessibleInterval<T> part = Views.interval(
+                    Views.translate(cell, mosaicBounds.min(0), mosaicBounds.min(1), mosaicBounds.min(2)), overlap);
+            tile.serie.loadCell(t, level, Views.translate(part, -tile.offset[0], -tile.offset[1], -tile.offset[2]));
+        }
+    }
+
+    public RandomAccessibleInterval<T> createSource(int t, int level) {
+        if (!raiMap.containsKey(t)) {
+            raiMap.put(t, new ConcurrentHashMap<>());
+        }
+
+        // Cached Image Factory Options
+        final DiskCachedCellImgOptions factoryOptions = options()
+                .cellDimensions( cellDimensions )
+                .cacheType( DiskCachedCellImgOptions.CacheType.BOUNDED )
+                .maxCacheSize( 1000 );
+
+        final DiskCachedCellImgFactory<T> factory = new DiskCachedCellImgFactory<>( getType(), factoryOptions );
+
+        final Img<T> rai = factory.create(Intervals.dimensionsAsLongArray(levelBounds.get(level)),
+                cell -> loadCell(t, level, cell), options().initializeCellsAsDirty(true));
+
+        raiMap.get(t).put(level, rai);
+
+        return rai;
+    }
+
+    /**
+     * @return the tiles of a resolution level, and their position in the voxel grid of the first serie
+     */
+    public List<Tile<T>> getTiles(int level) {
+        return levelTiles.get(level);
+    }
+
+    public List<BioFormatsBdvSource<T>> getSeries() {
+        return series;
+    }
+
+    /**
+     * @return true if one of the series is present at this timepoint
+     */
+    @Override
+    public boolean isPresent(int t) {
+        return series.stream().anyMatch(serie -> serie.isPresent(t));
+    }
+
+    @Override
+    public RandomAccessibleInterval<T> getSource(int t, int level) {
+        if ((raiMap.containsKey(t))&&(raiMap.get(t).containsKey(level))) {
+            return raiMap.get(t).get(level);
+        }
+        synchronized (this) {
+            if ((raiMap.containsKey(t))&&(raiMap.get(t).containsKey(level))) {
+                return raiMap.get(t).get(level);
+            }
+            return createSource(t, level);
+        }
+    }
+
+    @Override
+    public RealRandomAccessible<T> getInterpolatedSource(int t, int level, Interpolation method) {
+        return Views.interpolate( Views.extendZero(getSource( t, level )), interpolators.get(method) );
+    }
+
+    @Override
+    public void getSourceTransform(int t, int level, AffineTransform3D transform) {
+        transform.set(transforms[level]);
+    }
+
+    @Override
+    public T getType() {
+        return series.get(0).getType();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String newName) {
+        this.name = newName;
+    }
+
+    @Override
+    public VoxelDimensions getVoxelDimensions() {
+        return series.get(0).getVoxelDimensions();
+    }
+
+    @Override
+    public int getNumMipmapLevels() {
+        return numMipmapLevels;
+    }
+
+}
@@ -0,0 +1,131 @@
+package ch.epfl.biop.bdv.bioformats.bioformatssource;
+
+import loci.formats.IFormatReader;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Supplier;
+
+/**
+ * Pool of BioFormats readers opened on the same file
+ *
+ * Readers are created lazily with the supplier, up to maxNumberOfReaders,
+ * and are given exclusively to one thread at a time: a reader acquired from
+ * the pool has to be recycled after use.
+ *
+ * Idle readers can be closed to release file handles and memory, they are
+ * opened again on the next acquisition.
+ *
+ * @author Nicolas Chiaruttini, BIOP, EPFL, 2019
+ */
+
+public class ReaderPool {
+
+    // Creates a new reader, with its id already set
+    final Supplier<IFormatReader> readerSupplier;
+
+    final int maxNumberOfReaders;
+
+    final Deque<IFormatReader> availableReaders = new ArrayDeque<>();
+
+    int numberOfCreatedReaders = 0;
+
+    volatile long lastAccessTime = System.currentTimeMillis();
+
+    /**
+     * @param maxNumberOfReaders maximal number of readers opened simultaneously
+     * @param readerSupplier creates an opened reader
+     */
+    public ReaderPool(int maxNumberOfReaders, Supplier<IFormatReader> readerSupplier) {
+        this.maxNumberOfReaders = Math.max(1, maxNumberOfReaders);
+        this.readerSupplier = readerSupplier;
+    }
+
+    /**
+     * Pool containing a single, already opened, reader. This reader is never closed by the pool.
+     * @param reader
+     */
+    public ReaderPool(IFormatReader reader) {
+        this.maxNumberOfReaders = 1;
+        this.readerSupplier = null;
+        availableReaders.add(reader);
+        numberOfCreatedReaders = 1;
+    }
+
+    /**
+     * Gets a reader for the exclusive use of the calling thread. Blocks if all
+     * readers are in use and the maximal number of readers is reached.
+     * @return a reader, which needs to be given back with {@link ReaderPool#recycle(IFormatReader)}
+     * @throws InterruptedException
+     */
+    public IFormatReader acquire() throws InterruptedException {
+        synchronized (this) {
+            lastAccessTime = System.currentTimeMillis();
+            while ((availableReaders.isEmpty())&&(numberOfCreatedReaders>=maxNumberOfReaders)) {
+                wait();
+            }
+            if (!availableReaders.isEmpty()) {
+                return availableReaders.pop();
+            }
+            numberOfCreatedReaders++;
+        }
+        // Opening a file can be slow : done outside of the lock
+        try {
+            return readerSupplier.get();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                numberOfCreatedReaders--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Gives back a reader acquired with {@link ReaderPool#acquire()}
+     * @param reader
+     */
+    public synchronized void recycle(IFormatReader reader) {
+        lastAccessTime = System.currentTimeMillis();
+        availableReaders.push(reader);
+        notifyAll();
+    }
+
+    /**
+     * Closes all the readers which are not currently in use
+     * @return the number of closed readers
+     */
+    public synchronized int closeIdleReaders() {
+        if (readerSupplier==null) return 0; // The reader is not owned by the pool
+        int nClosed = 0;
+        while (!availableReaders.isEmpty()) {
+            IFormatReader reader = availableReaders.pop();
+            try {
+                reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            numberOfCreatedReaders--;
+            nClosed++;
+        }
+        notifyAll();
+        return nClosed;
+    }
+
+    /**
+     * @return number of readers currently opened, in use or not
+     */
+    public synchronized int getNumberOfOpenReaders() {
+        return numberOfCreatedReaders;
+    }
+
+    public int getMaxNumberOfReaders() {
+        return maxNumberOfReaders;
+    }
+
+    public long getLastAccessTime() {
+        return lastAccessTime;
+    }
+
+}
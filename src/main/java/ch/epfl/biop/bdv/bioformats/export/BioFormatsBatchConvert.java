@@ -0,0 +1,318 @@
+package ch.epfl.biop.bdv.bioformats.export;
+
+import bdv.viewer.Source;
+import ch.epfl.biop.bdv.bioformats.BioFormatsHelper;
+import ch.epfl.biop.bdv.bioformats.BioFormatsMemo;
+import ch.epfl.biop.bdv.bioformats.Units;
+import ch.epfl.biop.bdv.bioformats.bioformatssource.ReaderPool;
+import ch.epfl.biop.bdv.bioformats.export.ometiff.BioFormatsExportBdvToOmeTiff;
+import ch.epfl.biop.bdv.bioformats.export.xmlbdvdataset.BioFormatsConvertFilesToXmlDataset;
+import com.google.gson.Gson;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.Memoizer;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import net.imglib2.FinalInterval;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static ch.epfl.biop.bdv.bioformats.BioFormatsOpenPlugInSciJava.commaSeparatedListToArrayOfArray;
+import static ch.epfl.biop.bdv.bioformats.BioFormatsOpenPlugInSingleSourceSciJava.createSource;
+
+/**
+ * Headless batch conversion of files, without ImageJ nor BigDataViewer window.
+ *
+ * Usage : BioFormatsBatchConvert xml|ometiff [options] file...
+ *
+ * - xml : converts all files into a single xml dataset, see {@link BioFormatsConvertFilesToXmlDataset}
+ * - ometiff : exports each serie of each file as an OME-TIFF, its channels being the channels of the serie,
+ *   see {@link BioFormatsExportBdvToOmeTiff}. Series are read through the same sources as the ones
+ *   opened in BigDataViewer, with one reader per worker.
+ *
+ * Options :
+ * --output dir : output directory, default : folder of the input file
+ * --name name.xml : xml dataset file name, default : dataset.xml
+ * --threads n : number of workers, default : number of processors
+ * --memory megabytes : memory budget for the tiles being converted, default : 4 tiles per worker
+ * --series expression : series and channels, as in the open command ('0;2.0:1'), default : *
+ * --compression Uncompressed|LZW|Deflate|JPEG, --tile size, --resolutions n, --scale factor : OME-TIFF options
+ * --unit Microns|Millimeters
+ * --partition i/N : exports the files of partition i of N, see {@link ExportPartition}, 'merge/N' checks that all are done
+ *
+ * Progress and timings are printed as one JSON object per line on the standard output, with an
+ * "event" field : start, progress, done or error. Logs go to the standard error.
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+public class BioFormatsBatchConvert {
+
+    String mode;
+
+    List<File> files = new ArrayList<>();
+
+    File outputDirectory;
+
+    String xmlFileName = "dataset.xml";
+
+    int nThreads = Runtime.getRuntime().availableProcessors();
+
+    long memoryBudgetInMB = 0;
+
+    String series = "*";
+
+    String compression = "LZW";
+
+    int tileSize = 512;
+
+    int resolutions = 1;
+
+    int scale = 2;
+
+    String unit = Units.MICRONS;
+
+    ExportPartition partition;
+
+    final Gson gson = new Gson();
+
+    public static void main(String... args) {
+        System.setProperty("java.awt.headless", "true");
+        BioFormatsBatchConvert batch = new BioFormatsBatchConvert();
+        try {
+            batch.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage : BioFormatsBatchConvert xml|ometiff [--output dir] [--name name.xml] [--threads n] [--memory MB] "
+                    +"[--series expression] [--compression Uncompressed|LZW|Deflate|JPEG] [--tile size] [--resolutions n] [--scale factor] "
+                    +"[--unit Microns|Millimeters] [--partition i/N|merge/N] file...");
+            System.exit(2);
+        }
+        System.exit(batch.run() ? 0 : 1);
+    }
+
+    void parseArguments(String... args) {
+        if (args.length<2) throw new IllegalArgumentException("Missing arguments");
+        mode = args[0];
+        if ((!mode.equals("xml"))&&(!mode.equals("ometiff"))) {
+            throw new IllegalArgumentException("Unknown mode "+mode);
+        }
+        for (int i=1;i<args.length;i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                files.add(new File(arg));
+                continue;
+            }
+            if (i+1>=args.length) throw new IllegalArgumentException("Missing value for "+arg);
+            String value = args[++i];
+            try {
+                switch (arg) {
+                    case "--output": outputDirectory = new File(value); break;
+                    case "--name": xmlFileName = value; break;
+                    case "--threads": nThreads = Integer.parseInt(value); break;
+                    case "--memory": memoryBudgetInMB = Long.parseLong(value); break;
+                    case "--series": series = value; break;
+                    case "--compression": compression = value; break;
+                    case "--tile": tileSize = Integer.parseInt(value); break;
+                    case "--resolutions": resolutions = Integer.parseInt(value); break;
+                    case "--scale": scale = Integer.parseInt(value); break;
+                    case "--unit": unit = value; break;
+                    case "--partition": partition = ExportPartition.parse(value); break;
+                    default: throw new IllegalArgumentException("Unknown option "+arg);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for "+arg+" : "+value);
+            }
+        }
+        if (files.size()==0) throw new IllegalArgumentException("No input file");
+        if ((partition!=null)&&(!mode.equals("ometiff"))) {
+            throw new IllegalArgumentException("Only the ometiff mode can be partitioned");
+        }
+        if ((partition!=null)&&(outputDirectory==null)) {
+            throw new IllegalArgumentException("A partitioned export needs an output directory");
+        }
+    }
+
+    /**
+     * @return true if all conversions succeeded
+     */
+    boolean run() {
+        if (mode.equals("xml")) {
+            return convertToXml();
+        }
+        if (partition==null) {
+            boolean success = true;
+            for (File file : files) {
+                success &= exportToOmeTiff(file);
+            }
+            return success;
+        }
+
+        // Files are shared between the processes, the merge step checks that all are done
+        long start = System.currentTimeMillis();
+        String signature = files.stream().map(File::getAbsolutePath).collect(Collectors.joining("|"))
+                +"|"+series+"|"+compression+"|"+tileSize+"|"+resolutions+"|"+scale+"|"+unit;
+        try {
+            if (partition.isMerge()) {
+                partition.checkAllDone(outputDirectory, signature);
+                return done(null, start, null);
+            }
+            partition.start(outputDirectory, signature);
+            boolean success = true;
+            long nFiles = 0;
+            for (int i=0;i<files.size();i++) {
+                if (!partition.contains(i)) continue;
+                success &= exportToOmeTiff(files.get(i));
+                nFiles++;
+            }
+            if (success) partition.done(outputDirectory, nFiles, (System.currentTimeMillis()-start)/1000.0);
+            return success;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return done(null, start, e);
+        }
+    }
+
+    boolean convertToXml() {
+        long start = System.currentTimeMillis();
+        Map<String,Object> event = event("start", null);
+        event.put("files", files.size());
+        print(event);
+
+        BioFormatsConvertFilesToXmlDataset converter = new BioFormatsConvertFilesToXmlDataset();
+        converter.inputFiles = files.toArray(new File[0]);
+        converter.xmlFilePath = outputDirectory;
+        converter.xmlFileName = xmlFileName;
+        converter.nThreads = nThreads;
+        converter.log = s -> System.err.println(s);
+        converter.run();
+
+        return done(null, start, converter.exception);
+    }
+
+    boolean exportToOmeTiff(File file) {
+        long start = System.currentTimeMillis();
+        print(event("start", file));
+        try {
+            IFormatReader reader = openReader(file);
+            // Pixels are read by readers opened on demand, one per worker, this one is kept for the metadata
+            ReaderPool readerPool = new ReaderPool(nThreads, () -> {
+                try {
+                    return openReader(file);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            // Readers are closed whether the export succeeds or not
+            try {
+                IMetadata omeMeta = (IMetadata) reader.getMetadataStore();
+                List<Pair<Integer, ArrayList<Integer>>> seriesAndChannels = commaSeparatedListToArrayOfArray(series,
+                        iSerie -> (iSerie>=0) ? iSerie : reader.getSeriesCount()+iSerie,
+                        (iSerie, iChannel) -> (iChannel>=0) ? iChannel : omeMeta.getChannelCount(iSerie)+iChannel);
+
+                boolean success = true;
+                for (Pair<Integer, ArrayList<Integer>> serieChannels : seriesAndChannels) {
+                    int iSerie = serieChannels.getLeft();
+                    BioFormatsHelper h = new BioFormatsHelper(reader, iSerie);
+                    List<Source<?>> sources = new ArrayList<>();
+                    for (int iChannel : serieChannels.getRight()) {
+                        Source<?> source = createSource(readerPool, h, iSerie, iChannel, false,
+                                new FinalInterval(tileSize, tileSize, 1), false, false, Units.getLengthUnit(unit));
+                        if (source==null) {
+                            throw new UnsupportedOperationException("Unsupported pixel type in serie "+iSerie+" of "+file.getAbsolutePath());
+                        }
+                        sources.add(source);
+                    }
+
+                    File outputFolder = (outputDirectory==null) ? file.getAbsoluteFile().getParentFile() : outputDirectory;
+                    String baseName = FilenameUtils.getBaseName(file.getName());
+                    if (seriesAndChannels.size()>1) baseName += "_s"+iSerie;
+
+                    BioFormatsExportBdvToOmeTiff exporter = new BioFormatsExportBdvToOmeTiff();
+                    exporter.sources = sources;
+                    exporter.outputFile = new File(outputFolder, baseName+".ome.tif");
+                    exporter.computePyramid = resolutions>1;
+                    exporter.resolutions = resolutions;
+                    exporter.scale = scale;
+                    exporter.compression = compression;
+                    exporter.nThreads = nThreads;
+                    exporter.numberOfTimePoints = Math.max(1, omeMeta.getPixelsSizeT(iSerie).getValue());
+                    exporter.tileSizeX = tileSize;
+                    exporter.tileSizeY = tileSize;
+                    if (memoryBudgetInMB>0) {
+                        // A tile in flight holds its uncompressed and its compressed bytes
+                        reader.setSeries(iSerie);
+                        long tileBytes = 2L*tileSize*tileSize*FormatTools.getBytesPerPixel(reader.getPixelType())*reader.getRGBChannelCount();
+                        exporter.maxTilesInFlight = (int) Math.max(nThreads, memoryBudgetInMB*1024*1024/tileBytes);
+                    }
+                    final String outputName = exporter.outputFile.getAbsolutePath();
+                    exporter.progressListeners.add((tilesDone, totalTiles, megaBytesPerSecond, etaInSeconds) -> {
+                        Map<String,Object> event = event("progress", file);
+                        event.put("output", outputName);
+                        event.put("tilesDone", tilesDone);
+                        event.put("totalTiles", totalTiles);
+                        event.put("megaBytesPerSecond", megaBytesPerSecond);
+                        event.put("etaInSeconds", etaInSeconds);
+                        print(event);
+                    });
+                    exporter.run();
+                    if (exporter.exception!=null) {
+                        success = done(file, start, exporter.exception);
+                        break;
+                    }
+                }
+                return success && done(file, start, null);
+            } finally {
+                readerPool.closeIdleReaders();
+                reader.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return done(file, start, e);
+        }
+    }
+
+    static IFormatReader openReader(File file) throws Exception {
+        IFormatReader reader = new ImageReader();
+        reader.setFlattenedResolutions(false);
+        Memoizer memo = BioFormatsMemo.wrap(reader);
+        memo.setMetadataStore(MetadataTools.createOMEXMLMetadata());
+        memo.setId(file.getAbsolutePath());
+        return memo;
+    }
+
+    /**
+     * Prints the done or error event of a conversion
+     * @return true if the conversion succeeded
+     */
+    boolean done(File file, long start, Exception exception) {
+        Map<String,Object> event = event((exception==null) ? "done" : "error", file);
+        event.put("seconds", (System.currentTimeMillis()-start)/1000.0);
+        if (exception!=null) event.put("message", String.valueOf(exception.getMessage()));
+        print(event);
+        return exception==null;
+    }
+
+    Map<String,Object> event(String name, File file) {
+        Map<String,Object> event = new LinkedHashMap<>();
+        event.put("event", name);
+        event.put("mode", mode);
+        if (partition!=null) event.put("partition", partition.toString());
+        if (file!=null) event.put("file", file.getAbsolutePath());
+        return event;
+    }
+
+    synchronized void print(Map<String,Object> event) {
+        System.out.println(gson.toJson(event));
+    }
+
+}
@@ -0,0 +1,195 @@
+package ch.epfl.biop.bdv.bioformats.export;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Part of an export shared between independent processes, on a shared file system.
+ *
+ * An export is split into count partitions : the worker of partition i only handles the tasks
+ * (blocks, shards, views or files) whose index modulo count is i. Once all workers are done,
+ * a merge step writes the metadata of the whole export.
+ *
+ * Workers don't communicate : they share a manifest, partitions/manifest.json in the output
+ * directory, holding the number of partitions and a signature of the export parameters, and
+ * each worker writes partitions/part-{i}.json when it is done. Files are written atomically,
+ * so a worker killed while writing leaves no partial marker, and the manifest is created by
+ * a single worker, whose parameters all others check.
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+public class ExportPartition {
+
+    public static final String MANIFEST_DIRECTORY = "partitions";
+
+    // Partition index, -1 for the merge step
+    public final int index;
+
+    public final int count;
+
+    static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    public ExportPartition(int index, int count) {
+        if ((count<1)||(index<-1)||(index>=count)) {
+            throw new IllegalArgumentException("Invalid partition "+index+" of "+count);
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * @param expression 'i/N' for the partition i of N, 'merge/N' for the merge step, empty for a single process export
+     * @return the partition, null for a single process export
+     */
+    public static ExportPartition parse(String expression) {
+        if ((expression==null)||(expression.trim().isEmpty())) return null;
+        String[] parts = expression.trim().split("/");
+        if (parts.length!=2) {
+            throw new IllegalArgumentException("Invalid partition "+expression+", expected 'i/N' or 'merge/N'");
+        }
+        int count = Integer.parseInt(parts[1].trim());
+        if (parts[0].trim().equals("merge")) return new ExportPartition(-1, count);
+        return new ExportPartition(Integer.parseInt(parts[0].trim()), count);
+    }
+
+    public boolean isMerge() {
+        return index==-1;
+    }
+
+    /**
+     * @param taskIndex index of a task, in an order which is the same for all workers
+     * @return true if the task belongs to this partition
+     */
+    public boolean contains(long taskIndex) {
+        return (!isMerge())&&(taskIndex % count == index);
+    }
+
+    /**
+     * Creates the manifest if no worker did it yet, then checks that it matches this export
+     * @param outputDirectory output directory of the export
+     * @param signature export parameters, identical for all workers
+     * @throws IOException if the existing manifest was written by a different export
+     */
+    public void start(File outputDirectory, String signature) throws IOException {
+        File manifestFile = getManifestFile(outputDirectory);
+        if (!manifestFile.exists()) {
+            Map<String,Object> manifest = new LinkedHashMap<>();
+            manifest.put("numberOfPartitions", count);
+            manifest.put("signature", signature);
+            createAtomically(manifestFile, manifest);
+        }
+        // The manifest may have been created by another worker in the meantime
+        checkManifest(outputDirectory, signature);
+    }
+
+    /**
+     * Marks this partition as done
+     * @param numberOfTasks number of tasks handled by this partition
+     * @param seconds duration of the partition export
+     */
+    public void done(File outputDirectory, long numberOfTasks, double seconds) throws IOException {
+        Map<String,Object> marker = new LinkedHashMap<>();
+        marker.put("partition", index);
+        marker.put("numberOfTasks", numberOfTasks);
+        marker.put("seconds", seconds);
+        writeAtomically(new File(new File(outputDirectory, MANIFEST_DIRECTORY), "part-"+index+".json"), marker);
+    }
+
+    /**
+     * Checks, before the merge step, that all partitions of this export are done
+     * @throws IOException if the manifest doesn't match or if a partition is not done
+     */
+    public void checkAllDone(File outputDirectory, String signature) throws IOException {
+        checkManifest(outputDirectory, signature);
+        List<Integer> missing = new ArrayList<>();
+        for (int i=0;i<count;i++) {
+            if (!new File(new File(outputDirectory, MANIFEST_DIRECTORY), "part-"+i+".json").exists()) missing.add(i);
+        }
+        if (missing.size()>0) {
+            throw new IOException("Partitions "+missing+" of "+count+" are not done, can't merge the export");
+        }
+    }
+
+    void checkManifest(File outputDirectory, String signature) throws IOException {
+        File manifestFile = getManifestFile(outputDirectory);
+        if (!manifestFile.exists()) {
+            throw new IOException("No partition manifest in "+outputDirectory.getAbsolutePath());
+        }
+        Map<?,?> manifest;
+        try (Reader reader = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            manifest = gson.fromJson(reader, Map.class);
+        }
+        int manifestCount = ((Number) manifest.get("numberOfPartitions")).intValue();
+        if ((manifestCount!=count)||(!signature.equals(manifest.get("signature")))) {
+            throw new IOException("The partition manifest of "+outputDirectory.getAbsolutePath()+" was written by another export");
+        }
+    }
+
+    static File getManifestFile(File outputDirectory) {
+        return new File(new File(outputDirectory, MANIFEST_DIRECTORY), "manifest.json");
+    }
+
+    void writeAtomically(File file, Object content) throws IOException {
+        File tmpFile = writeTemporaryFile(file, content);
+        try {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Writes a file only if it doesn't exist : if several workers create it simultaneously, the first one wins
+     * and the others leave it untouched
+     */
+    void createAtomically(File file, Object content) throws IOException {
+        File tmpFile = writeTemporaryFile(file, content);
+        try {
+            // Unlike a rename, a link fails if the file already exists
+            Files.createLink(file.toPath(), tmpFile.toPath());
+        } catch (FileAlreadyExistsException e) {
+            // Created by another worker
+        } catch (UnsupportedOperationException|FileSystemException e) {
+            // No hard links on this file system
+            try {
+                Files.move(tmpFile.toPath(), file.toPath());
+            } catch (FileAlreadyExistsException e1) {
+                // Created by another worker
+            }
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    File writeTemporaryFile(File file, Object content) throws IOException {
+        file.getParentFile().mkdirs();
+        // Workers may write the same file simultaneously : each one uses its own temporary file
+        File tmpFile = new File(file.getParentFile(), file.getName()+"."+index+".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmpFile.toPath(), StandardCharsets.UTF_8)) {
+            gson.toJson(content, writer);
+        }
+        return tmpFile;
+    }
+
+    @Override
+    public String toString() {
+        return isMerge() ? "merge/"+count : index+"/"+count;
+    }
+
+}
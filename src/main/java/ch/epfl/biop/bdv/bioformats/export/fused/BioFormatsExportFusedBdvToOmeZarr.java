@@ -0,0 +1,265 @@
+package ch.epfl.biop.bdv.bioformats.export.fused;
+
+import bdv.util.BdvHandle;
+import bdv.viewer.Source;
+import ch.epfl.biop.bdv.bioformats.export.ExportPartition;
+import ch.epfl.biop.bdv.bioformats.export.omezarr.OmeZarrWriter;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.Volatile;
+import net.imglib2.cache.img.DiskCachedCellImgFactory;
+import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static ch.epfl.biop.bdv.bioformats.export.ometiff.BioFormatsExportBdvToOmeTiff.expressionToArray;
+import static ch.epfl.biop.bdv.bioformats.export.omezarr.BioFormatsExportBdvToOmeZarr.getNgffUnit;
+import static net.imglib2.cache.img.DiskCachedCellImgOptions.options;
+
+/**
+ * Fuses sources of a BigDataViewer window, for instance the tiles of a stage positioned mosaic,
+ * into a single image saved as OME-Zarr.
+ *
+ * The sources are resampled, using their transforms, onto a voxel grid aligned with the global
+ * axes, within a bounding box which defaults to the one of all sources. Each resolution level
+ * of the output is fused from the sources, and not downsampled from the full resolution, so
+ * coarse levels only read coarse levels of the sources. Blocks of the output are fused in
+ * parallel by the workers writing the shards, and can be shared between processes with
+ * an {@link ExportPartition}.
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+@Plugin(type = Command.class,menuPath = "BDV_SciJava>Export>Fuse Sources as OME-Zarr (SciJava)")
+public class BioFormatsExportFusedBdvToOmeZarr implements Command {
+
+    @Parameter(label="Sources to fuse ('2,3-5'), starts at 0")
+    String index_srcs_to_fuse;
+
+    @Parameter(label = "BigDataViewer Frame")
+    public BdvHandle bdv_h;
+
+    @Parameter(label = "output directory, ome.zarr", style = "save")
+    public File outputDirectory;
+
+    @Parameter(label = "number of timepoints")
+    public int numberOfTimepoints = 1;
+
+    @Parameter(label = "output voxel size in X and Y, in the sources unit")
+    public double voxelSizeXY = 1;
+
+    @Parameter(label = "output voxel size in Z, in the sources unit")
+    public double voxelSizeZ = 1;
+
+    @Parameter(label = "bounding box 'xmin,ymin,zmin,xmax,ymax,zmax', empty for all sources", required = false)
+    public String boundingBox = "";
+
+    @Parameter(label = "number of resolution levels, downscaled by 2 in X and Y")
+    public int numberOfResolutions = 1;
+
+    @Parameter(choices = {SourceFuser.AVERAGE, SourceFuser.MAX})
+    public String blending = SourceFuser.AVERAGE;
+
+    @Parameter(label = "blending width at the sources borders, in voxels")
+    public double blendingWidth = 20;
+
+    @Parameter(label = "linear interpolation")
+    public boolean linearInterpolation = true;
+
+    @Parameter
+    public int chunkSizeX = 128;
+
+    @Parameter
+    public int chunkSizeY = 128;
+
+    @Parameter
+    public int chunkSizeZ = 32;
+
+    @Parameter(label = "chunks per shard in X")
+    public int chunksPerShardX = 8;
+
+    @Parameter(label = "chunks per shard in Y")
+    public int chunksPerShardY = 8;
+
+    @Parameter(label = "chunks per shard in Z")
+    public int chunksPerShardZ = 1;
+
+    @Parameter(choices = {"raw", "gzip"})
+    public String compression = "gzip";
+
+    @Parameter(label = "number of threads")
+    public int nThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(required = false, label = "partition 'i/N' written by this process, 'merge/N' once all are done, empty for a single process")
+    public String partition = "";
+
+    @Parameter
+    public boolean verbose;
+
+    public Consumer<String> log = s -> {};
+
+    public Consumer<String> errlog = s -> System.err.println(s);
+
+    @Override
+    public void run() {
+        if (verbose) {
+            log = s -> System.out.println(s);
+        }
+
+        List<Source<?>> srcs = expressionToArray(index_srcs_to_fuse, i -> {
+                if (i>=0) {
+                    return i;
+                } else {
+                    return bdv_h.getViewerPanel().getState().getSources().size()+i;
+                }})
+                .stream()
+                .map(idx -> bdv_h.getViewerPanel().getState().getSources().get(idx).getSpimSource())
+                .collect(Collectors.toList());
+
+        if (srcs.size()==0) {
+            errlog.accept("No source selected");
+            return;
+        }
+
+        Source<?> model = srcs.get(0);
+        Object type = model.getType();
+        if ((type instanceof Volatile)||(OmeZarrWriter.getDataType(type)==null)) {
+            errlog.accept("Pixel type "+type.getClass().getSimpleName()+" unsupported");
+            return;
+        }
+        for (Source<?> src : srcs) {
+            if (!src.getType().getClass().equals(type.getClass())) {
+                errlog.accept("Source "+src.getName()+" differs from "+model.getName()+" in pixel type, all fused sources should match");
+                return;
+            }
+        }
+
+        try {
+            export((List) srcs);
+            log.accept("Done");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    <T extends RealType<T> & NativeType<T>> void export(List<Source<T>> srcs) throws Exception {
+        RealInterval bounds = getBounds(srcs);
+        if (bounds==null) {
+            errlog.accept("No source present, nothing to fuse");
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        OmeZarrWriter writer = new OmeZarrWriter(outputDirectory,
+                new int[]{chunkSizeX, chunkSizeY, chunkSizeZ},
+                new int[]{chunksPerShardX, chunksPerShardY, chunksPerShardZ},
+                compression, nThreads);
+        writer.log = log;
+
+        // Workers of a partitioned export fuse and write their shards, the merge step writes the metadata
+        ExportPartition exportPartition = ExportPartition.parse(partition);
+        boolean writeData = (exportPartition==null)||(!exportPartition.isMerge());
+        boolean writeMetadata = (exportPartition==null)||(exportPartition.isMerge());
+        if (exportPartition!=null) {
+            StringBuilder boundsString = new StringBuilder();
+            for (int d=0;d<3;d++) boundsString.append(bounds.realMin(d)).append(",").append(bounds.realMax(d)).append(",");
+            String signature = srcs.stream().map(Source::getName).collect(Collectors.joining("|"))
+                    +"|"+boundsString+"|"+voxelSizeXY+"|"+voxelSizeZ+"|"+numberOfResolutions+"|"+numberOfTimepoints+"|"+blending+"|"+blendingWidth
+                    +"|"+linearInterpolation+"|"+chunkSizeX+","+chunkSizeY+","+chunkSizeZ+"|"+chunksPerShardX+","+chunksPerShardY+","+chunksPerShardZ
+                    +"|"+compression;
+            if (exportPartition.isMerge()) {
+                exportPartition.checkAllDone(outputDirectory, signature);
+            } else {
+                exportPartition.start(outputDirectory, signature);
+            }
+            writer.partition = exportPartition;
+        }
+
+        T type = srcs.get(0).getType().createVariable();
+        List<OmeZarrWriter.LevelGeometry> levels = new ArrayList<>();
+        List<long[]> levelDims = new ArrayList<>();
+        for (int level=0;level<Math.max(1, numberOfResolutions);level++) {
+            double scaleXY = voxelSizeXY*Math.pow(2, level);
+            double[] scale = new double[]{scaleXY, scaleXY, voxelSizeZ};
+            // Voxel centers start half a voxel within the bounding box
+            double[] translation = new double[3];
+            long[] dims = new long[3];
+            for (int d=0;d<3;d++) {
+                translation[d] = bounds.realMin(d)+scale[d]/2.0;
+                dims[d] = Math.max(1, (long) Math.ceil((bounds.realMax(d)-bounds.realMin(d))/scale[d]));
+            }
+            levels.add(new OmeZarrWriter.LevelGeometry(scale, translation));
+            levelDims.add(dims);
+            if (writeMetadata) writer.createLevel(level, dims, 1, numberOfTimepoints, type);
+        }
+
+        if (writeMetadata) {
+            Source<T> model = srcs.get(0);
+            String unit = (model.getVoxelDimensions()!=null)?getNgffUnit(model.getVoxelDimensions().unit()):null;
+            writer.writeMetadata(model.getName()+"_fused", Collections.singletonList("fused"), levels, unit);
+        }
+
+        for (int t=0;(t<numberOfTimepoints)&&(writeData);t++) {
+            for (int level=0;level<levels.size();level++) {
+                OmeZarrWriter.LevelGeometry geometry = levels.get(level);
+                AffineTransform3D outputToWorld = new AffineTransform3D();
+                outputToWorld.set(
+                        geometry.scale[0], 0, 0, geometry.translation[0],
+                        0, geometry.scale[1], 0, geometry.translation[1],
+                        0, 0, geometry.scale[2], geometry.translation[2]);
+                SourceFuser<T> fuser = new SourceFuser<>(srcs, t, outputToWorld, blending, blendingWidth, linearInterpolation);
+
+                // Blocks match the zarr chunks, each one is fused once, by the worker writing its shard
+                final DiskCachedCellImgOptions factoryOptions = options()
+                        .cellDimensions(chunkSizeX, chunkSizeY, chunkSizeZ);
+                RandomAccessibleInterval<T> fused = new DiskCachedCellImgFactory<>(type, factoryOptions)
+                        .create(levelDims.get(level), fuser::fuse);
+                writer.writeLevel(level, 0, t, fused);
+            }
+        }
+
+        if ((exportPartition!=null)&&(!exportPartition.isMerge())) {
+            exportPartition.done(outputDirectory, writer.getNumberOfWrittenShards(), (System.currentTimeMillis()-start)/1000.0);
+        }
+    }
+
+    /**
+     * @return the bounding box parameter, or the bounding box of all sources over all timepoints
+     */
+    RealInterval getBounds(List<? extends Source<?>> srcs) {
+        if ((boundingBox!=null)&&(!boundingBox.trim().isEmpty())) {
+            String[] values = boundingBox.split(",");
+            if (values.length!=6) {
+                throw new IllegalArgumentException("The bounding box should have 6 values : xmin,ymin,zmin,xmax,ymax,zmax");
+            }
+            double[] min = new double[3];
+            double[] max = new double[3];
+            for (int d=0;d<3;d++) {
+                min[d] = Double.parseDouble(values[d].trim());
+                max[d] = Double.parseDouble(values[d+3].trim());
+            }
+            return new FinalRealInterval(min, max);
+        }
+        RealInterval bounds = null;
+        for (int t=0;t<numberOfTimepoints;t++) {
+            RealInterval tBounds = SourceFuser.getWorldBounds(srcs, t);
+            if (tBounds==null) continue;
+            bounds = (bounds==null) ? tBounds : Intervals.union(bounds, tBounds);
+        }
+        return bounds;
+    }
+
+}
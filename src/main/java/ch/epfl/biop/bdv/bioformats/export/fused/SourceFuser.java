@@ -0,0 +1,244 @@
+package ch.epfl.biop.bdv.bioformats.export.fused;
+
+import bdv.viewer.Source;
+import ch.epfl.biop.bdv.bioformats.SeriesSpatialIndex;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Resamples and blends transformed sources onto a common, axis aligned, voxel grid.
+ *
+ * Each source is read from its coarsest resolution level which is not coarser than the
+ * output grid. Blocks of the output are computed independently : the sources overlapping a
+ * block are found with a {@link SeriesSpatialIndex}, and several blocks can be fused in parallel.
+ *
+ * Overlapping sources are either averaged, with weights decreasing linearly over
+ * blendingWidth voxels from their borders, or their maximum is taken.
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+public class SourceFuser<T extends RealType<T> & NativeType<T>> {
+
+    public static final String AVERAGE = "Average";
+
+    public static final String MAX = "Max";
+
+    /**
+     * Source resolution level used for the fusion, and its geometry in the output grid
+     */
+    class FusedLevel {
+        final RealRandomAccessible<T> image;
+        final long[] dims;
+        final AffineTransform3D outputToSource;
+        final Interval bounds;
+
+        FusedLevel(RandomAccessibleInterval<T> image, AffineTransform3D sourceToWorld) {
+            this.dims = Intervals.dimensionsAsLongArray(image);
+            RandomAccessibleInterval<T> zeroMinImage = Views.zeroMin(image);
+            this.image = linear
+                    ? Views.interpolate(Views.extendBorder(zeroMinImage), new NLinearInterpolatorFactory<>())
+                    : Views.interpolate(Views.extendBorder(zeroMinImage), new NearestNeighborInterpolatorFactory<>());
+            this.outputToSource = sourceToWorld.inverse().copy();
+            this.outputToSource.concatenate(outputToWorld);
+
+            // Voxels of the output grid which may be covered by the source
+            double[] min = new double[3];
+            double[] max = new double[3];
+            for (int d=0;d<3;d++) {
+                min[d] = -0.5;
+                max[d] = dims[d]-0.5;
+            }
+            RealInterval worldBounds = sourceToWorld.estimateBounds(new FinalRealInterval(min, max));
+            RealInterval outputBounds = outputToWorld.inverse().estimateBounds(worldBounds);
+            long[] bMin = new long[3];
+            long[] bMax = new long[3];
+            for (int d=0;d<3;d++) {
+                bMin[d] = (long) Math.floor(outputBounds.realMin(d));
+                bMax[d] = (long) Math.ceil(outputBounds.realMax(d));
+            }
+            this.bounds = new FinalInterval(bMin, bMax);
+        }
+
+        /**
+         * @return blending weight of a position in source voxel coordinates, 0 if it is outside of the source
+         */
+        double weight(double[] position) {
+            double w = 1;
+            for (int d=0;d<3;d++) {
+                double distance = Math.min(position[d]+0.5, dims[d]-0.5-position[d]);
+                if (distance<0) return 0;
+                if ((dims[d]>1)&&(blendingWidth>0)) w *= Math.min(1, (distance+0.5)/blendingWidth);
+            }
+            return w;
+        }
+    }
+
+    final AffineTransform3D outputToWorld;
+
+    final String blending;
+
+    final double blendingWidth;
+
+    final boolean linear;
+
+    final List<FusedLevel> levels = new ArrayList<>();
+
+    // Index of the levels bounds, in the output grid
+    final SeriesSpatialIndex index;
+
+    /**
+     * @param sources sources to fuse, sources not present at this timepoint are ignored
+     * @param timepoint timepoint of the sources
+     * @param outputToWorld transform from the output voxel grid to the global coordinates, without rotation
+     * @param blending {@link SourceFuser#AVERAGE} or {@link SourceFuser#MAX}
+     * @param blendingWidth width, in source voxels, over which the weight of a source decreases at its borders
+     * @param linear linear interpolation if true, nearest neighbor otherwise
+     */
+    public SourceFuser(List<Source<T>> sources, int timepoint, AffineTransform3D outputToWorld,
+                       String blending, double blendingWidth, boolean linear) {
+        this.outputToWorld = outputToWorld;
+        this.blending = blending;
+        this.blendingWidth = blendingWidth;
+        this.linear = linear;
+
+        double[] outputVoxelSize = getVoxelSize(outputToWorld);
+        for (Source<T> source : sources) {
+            if (!source.isPresent(timepoint)) continue;
+            int level = getCoarsestAdequateLevel(source, timepoint, outputVoxelSize);
+            AffineTransform3D sourceToWorld = new AffineTransform3D();
+            source.getSourceTransform(timepoint, level, sourceToWorld);
+            levels.add(new FusedLevel(source.getSource(timepoint, level), sourceToWorld));
+        }
+        index = new SeriesSpatialIndex(levels.stream().map(level -> level.bounds).collect(Collectors.toList()), null);
+    }
+
+    /**
+     * @return the coarsest resolution level whose voxels are not bigger than the output ones,
+     * in the dimensions where the full resolution is finer than the output
+     */
+    public static int getCoarsestAdequateLevel(Source<?> source, int timepoint, double[] outputVoxelSize) {
+        AffineTransform3D transform = new AffineTransform3D();
+        source.getSourceTransform(timepoint, 0, transform);
+        double[] fullResolutionVoxelSize = getVoxelSize(transform);
+        int bestLevel = 0;
+        for (int level=1;level<source.getNumMipmapLevels();level++) {
+            source.getSourceTransform(timepoint, level, transform);
+            double[] voxelSize = getVoxelSize(transform);
+            boolean adequate = true;
+            for (int d=0;d<3;d++) {
+                double maxVoxelSize = Math.max(outputVoxelSize[d], fullResolutionVoxelSize[d]);
+                if (voxelSize[d]>maxVoxelSize*(1+1e-6)) adequate = false;
+            }
+            if (adequate) bestLevel = level;
+        }
+        return bestLevel;
+    }
+
+    /**
+     * @return voxel size in x, y and z of a voxel to global coordinates transform
+     */
+    public static double[] getVoxelSize(AffineTransform3D transform) {
+        double[] voxelSize = new double[3];
+        for (int d=0;d<3;d++) {
+            voxelSize[d] = Math.sqrt(transform.get(0,d)*transform.get(0,d)+transform.get(1,d)*transform.get(1,d)+transform.get(2,d)*transform.get(2,d));
+        }
+        return voxelSize;
+    }
+
+    /**
+     * @return bounding box, in global coordinates, of the sources present at this timepoint, null if none is present
+     */
+    public static RealInterval getWorldBounds(List<? extends Source<?>> sources, int timepoint) {
+        RealInterval bounds = null;
+        for (Source<?> source : sources) {
+            if (!source.isPresent(timepoint)) continue;
+            AffineTransform3D sourceToWorld = new AffineTransform3D();
+            source.getSourceTransform(timepoint, 0, sourceToWorld);
+            long[] dims = Intervals.dimensionsAsLongArray(source.getSource(timepoint, 0));
+            double[] min = new double[3];
+            double[] max = new double[3];
+            for (int d=0;d<3;d++) {
+                min[d] = -0.5;
+                max[d] = dims[d]-0.5;
+            }
+            RealInterval sourceBounds = sourceToWorld.estimateBounds(new FinalRealInterval(min, max));
+            bounds = (bounds==null) ? sourceBounds : Intervals.union(bounds, sourceBounds);
+        }
+        return bounds;
+    }
+
+    /**
+     * Fills a block of the output grid
+     * @param block block of the output grid, in output voxel coordinates, iterated in x, y, z order
+     */
+    public void fuse(RandomAccessibleInterval<T> block) {
+        final int n = (int) Intervals.numElements(block);
+        final double[] values = new double[n];
+        final double[] weights = new double[n];
+        final boolean max = MAX.equals(blending);
+        final long sx = block.dimension(0);
+        final long sxy = sx*block.dimension(1);
+
+        final double[] position = new double[3];
+        final double[] step = new double[3];
+
+        // Only the sources overlapping the block are read
+        for (int iLevel : index.query(block)) {
+            FusedLevel level = levels.get(iLevel);
+            Interval overlap = Intervals.intersect(level.bounds, block);
+            if (Intervals.isEmpty(overlap)) continue;
+            RealRandomAccess<T> access = level.image.realRandomAccess();
+            for (int d=0;d<3;d++) step[d] = level.outputToSource.get(d, 0);
+            for (long z=overlap.min(2);z<=overlap.max(2);z++) {
+                for (long y=overlap.min(1);y<=overlap.max(1);y++) {
+                    // Positions along a row are incremented rather than transformed
+                    level.outputToSource.apply(new double[]{overlap.min(0), y, z}, position);
+                    int i = (int) ((z-block.min(2))*sxy+(y-block.min(1))*sx+(overlap.min(0)-block.min(0)));
+                    for (long x=overlap.min(0);x<=overlap.max(0);x++, i++) {
+                        double w = level.weight(position);
+                        if (w>0) {
+                            access.setPosition(position);
+                            double v = access.get().getRealDouble();
+                            if (max) {
+                                values[i] = (weights[i]>0) ? Math.max(values[i], v) : v;
+                                weights[i] = 1;
+                            } else {
+                                values[i] += w*v;
+                                weights[i] += w;
+                            }
+                        }
+                        for (int d=0;d<3;d++) position[d] += step[d];
+                    }
+                }
+            }
+        }
+
+        final Cursor<T> cursor = Views.flatIterable(block).cursor();
+        final T type = Views.iterable(block).firstElement();
+        final double minValue = type.getMinValue();
+        final double maxValue = type.getMaxValue();
+        for (int i=0;i<n;i++) {
+            double v = (weights[i]>0) ? (max ? values[i] : values[i]/weights[i]) : 0;
+            cursor.next().setReal(Math.min(maxValue, Math.max(minValue, v)));
+        }
+    }
+
+}
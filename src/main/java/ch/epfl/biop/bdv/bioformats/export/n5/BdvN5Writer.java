@@ -0,0 +1,334 @@
+package ch.epfl.biop.bdv.bioformats.export.n5;
+
+import mpicbg.spim.data.SpimData;
+import mpicbg.spim.data.XmlIoSpimData;
+import mpicbg.spim.data.XmlKeys;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.XzCompression;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Writes images into an N5 container with the BigDataViewer layout :
+ * setup{id}/timepoint{t}/s{level}, with the dataType and downsamplingFactors attributes
+ * read by the BigDataViewer N5 image loader.
+ *
+ * Blocks are written by a pool of workers, each worker holding a single block in memory.
+ * Each pyramid level is computed by averaging the blocks already written in the previous level.
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+public class BdvN5Writer {
+
+    public static final String DOWNSAMPLING_FACTORS_KEY = "downsamplingFactors";
+
+    public static final String DATA_TYPE_KEY = "dataType";
+
+    public static final String[] COMPRESSIONS = {"raw", "gzip", "lz4", "bzip2", "xz"};
+
+    final N5Writer n5;
+
+    final int[] blockSize;
+
+    final Compression compression;
+
+    final int nThreads;
+
+    final int maxNumberOfLevels;
+
+    public Consumer<String> log = s -> {};
+
+    /**
+     * @param n5Directory n5 container, created if it does not exist
+     * @param blockSize block size in x, y and z
+     * @param compression one of {@link BdvN5Writer#COMPRESSIONS}
+     * @param nThreads number of block writers
+     * @param maxNumberOfLevels maximal number of resolution levels, including the full resolution
+     * @throws IOException
+     */
+    public BdvN5Writer(File n5Directory, int[] blockSize, String compression, int nThreads, int maxNumberOfLevels) throws IOException {
+        this.n5 = new N5FSWriter(n5Directory.getAbsolutePath());
+        this.blockSize = blockSize;
+        this.compression = getCompression(compression);
+        this.nThreads = Math.max(1, nThreads);
+        this.maxNumberOfLevels = Math.max(1, maxNumberOfLevels);
+    }
+
+    public static Compression getCompression(String compression) {
+        switch (compression) {
+            case "gzip": return new GzipCompression();
+            case "lz4": return new Lz4Compression();
+            case "bzip2": return new Bzip2Compression();
+            case "xz": return new XzCompression();
+            default: return new RawCompression();
+        }
+    }
+
+    /**
+     * Absolute downsampling factors of each level : a dimension is halved as long as
+     * it is bigger than the block size
+     * @param dimensions full resolution dimensions
+     * @return factors[level][dimension]
+     */
+    public int[][] getDownsamplingFactors(long[] dimensions) {
+        List<int[]> factors = new ArrayList<>();
+        int[] current = new int[dimensions.length];
+        for (int d=0;d<dimensions.length;d++) current[d] = 1;
+        factors.add(current.clone());
+        while (factors.size()<maxNumberOfLevels) {
+            boolean downsampled = false;
+            for (int d=0;d<dimensions.length;d++) {
+                if (dimensions[d]/current[d]>blockSize[d]) {
+                    current[d]*=2;
+                    downsampled = true;
+                }
+            }
+            if (!downsampled) break;
+            factors.add(current.clone());
+        }
+        return factors.toArray(new int[0][]);
+    }
+
+    public static String getPathName(int setupId) {
+        return String.format("setup%d", setupId);
+    }
+
+    public static String getPathName(int setupId, int timepointId) {
+        return String.format("setup%d/timepoint%d", setupId, timepointId);
+    }
+
+    public static String getPathName(int setupId, int timepointId, int level) {
+        return String.format("setup%d/timepoint%d/s%d", setupId, timepointId, level);
+    }
+
+    /**
+     * Writes the setup group and its attributes
+     * @param setupId
+     * @param factors downsampling factors, see {@link BdvN5Writer#getDownsamplingFactors(long[])}
+     * @param type pixel type of the setup
+     * @throws IOException
+     */
+    public <T extends RealType<T> & NativeType<T>> void writeSetup(int setupId, int[][] factors, T type) throws IOException {
+        String path = getPathName(setupId);
+        n5.createGroup(path);
+        n5.setAttribute(path, DOWNSAMPLING_FACTORS_KEY, factors);
+        n5.setAttribute(path, DATA_TYPE_KEY, N5Utils.dataType(type));
+    }
+
+    /**
+     * Writes all resolution levels of a view. The full resolution image is read once,
+     * block by block, then each level is computed from the previous one.
+     * @param setupId
+     * @param timepointId
+     * @param fullResImage full resolution image
+     * @param factors downsampling factors of the setup
+     * @throws IOException
+     */
+    public <T extends RealType<T> & NativeType<T>> void writeView(int setupId, int timepointId, RandomAccessibleInterval<T> fullResImage, int[][] factors) throws IOException {
+        final RandomAccessibleInterval<T> image = Views.zeroMin(fullResImage);
+        final T type = Views.iterable(image).firstElement().createVariable();
+        final DataType dataType = N5Utils.dataType(type);
+        n5.createGroup(getPathName(setupId, timepointId));
+
+        long[] dims = new long[image.numDimensions()];
+        image.dimensions(dims);
+
+        for (int level=0;level<factors.length;level++) {
+            final String path = getPathName(setupId, timepointId, level);
+            final long[] levelDims = new long[dims.length];
+            final int[] relativeFactors = new int[dims.length];
+            for (int d=0;d<dims.length;d++) {
+                levelDims[d] = Math.max(1, dims[d]/factors[level][d]);
+                relativeFactors[d] = (level==0)?1:factors[level][d]/factors[level-1][d];
+            }
+            n5.createDataset(path, levelDims, blockSize, dataType, compression);
+            n5.setAttribute(path, DOWNSAMPLING_FACTORS_KEY, factors[level]);
+            final DatasetAttributes attributes = n5.getDatasetAttributes(path);
+
+            log.accept("Writing "+path);
+            if (level==0) {
+                writeBlocks(levelDims, (block, gridPosition) ->
+                    N5Utils.saveBlock(Views.zeroMin(Views.interval(image, block)), n5, path, attributes, gridPosition)
+                );
+            } else {
+                // Computed from the blocks already written in the previous level
+                final RandomAccessibleInterval<T> previous = N5Utils.open(n5, getPathName(setupId, timepointId, level-1));
+                writeBlocks(levelDims, (block, gridPosition) ->
+                    N5Utils.saveBlock(downsampleBlock(previous, block, relativeFactors, type), n5, path, attributes, gridPosition)
+                );
+            }
+        }
+    }
+
+    interface BlockWriter {
+        void write(Interval block, long[] gridPosition) throws IOException;
+    }
+
+    /**
+     * Writes all blocks of a dataset in parallel. Each worker takes the next block index, so at most
+     * nThreads blocks are in memory at once.
+     * @param dims dimensions of the dataset
+     * @param blockWriter writes the block at a grid position
+     */
+    void writeBlocks(long[] dims, BlockWriter blockWriter) throws IOException {
+        final int nd = dims.length;
+        final long[] nBlocks = new long[nd];
+        long nTotal = 1;
+        for (int d=0;d<nd;d++) {
+            nBlocks[d] = (dims[d]-1)/blockSize[d]+1;
+            nTotal*=nBlocks[d];
+        }
+        final long nTotalBlocks = nTotal;
+        final AtomicLong nextBlock = new AtomicLong();
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i=0;i<nThreads;i++) {
+                futures.add(executor.submit(() -> {
+                    long iBlock;
+                    long[] gridPosition = new long[nd];
+                    long[] min = new long[nd];
+                    long[] max = new long[nd];
+                    while ((iBlock = nextBlock.getAndIncrement())<nTotalBlocks) {
+                        long idx = iBlock;
+                        for (int d=0;d<nd;d++) {
+                            gridPosition[d] = idx % nBlocks[d];
+                            idx = idx / nBlocks[d];
+                            min[d] = gridPosition[d]*blockSize[d];
+                            max[d] = Math.min(min[d]+blockSize[d], dims[d])-1;
+                        }
+                        blockWriter.write(new FinalInterval(min, max), gridPosition.clone());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Averages the pixels of the previous level covered by a block of the next level
+     * @param previous previous resolution level
+     * @param block block of the next level
+     * @param factors downsampling factors relative to the previous level
+     * @param type pixel type
+     * @return the downsampled block, with its origin at zero
+     */
+    static <T extends RealType<T> & NativeType<T>> Img<T> downsampleBlock(RandomAccessibleInterval<T> previous, Interval block, int[] factors, T type) {
+        final int nd = block.numDimensions();
+        long[] blockDims = new long[nd];
+        block.dimensions(blockDims);
+        final Img<T> out = new ArrayImgFactory<>(type).create(blockDims);
+        final RandomAccess<T> in = previous.randomAccess();
+        final Cursor<T> cursor = out.localizingCursor();
+        final long[] pos = new long[nd];
+        final long[] inPos = new long[nd];
+        final long[] offset = new long[nd];
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            cursor.localize(pos);
+            double sum = 0;
+            int n = 0;
+            for (int d=0;d<nd;d++) offset[d] = 0;
+            // Iterates over the factors box, clamped to the previous level bounds
+            boolean done = false;
+            while (!done) {
+                boolean inside = true;
+                for (int d=0;d<nd;d++) {
+                    inPos[d] = (block.min(d)+pos[d])*factors[d]+offset[d];
+                    if (inPos[d]>previous.max(d)) inside = false;
+                }
+                if (inside) {
+                    in.setPosition(inPos);
+                    sum+=in.get().getRealDouble();
+                    n++;
+                }
+                done = true;
+                for (int d=0;d<nd;d++) {
+                    offset[d]++;
+                    if (offset[d]<factors[d]) {
+                        done = false;
+                        break;
+                    }
+                    offset[d] = 0;
+                }
+            }
+            cursor.get().setReal(n>0?sum/n:0);
+        }
+        return out;
+    }
+
+    /**
+     * Saves a dataset xml whose image loader is the BigDataViewer N5 image loader
+     * @param spimData dataset, without image loader
+     * @param xmlFile output xml file
+     * @param n5Directory n5 container of the dataset
+     * @throws Exception
+     */
+    public static void saveXml(SpimData spimData, File xmlFile, File n5Directory) throws Exception {
+        File xmlDirectory = xmlFile.getAbsoluteFile().getParentFile();
+        Element root = new XmlIoSpimData().toXml(spimData, xmlDirectory);
+
+        Element imgLoader = new Element( XmlKeys.IMGLOADER_TAG );
+        imgLoader.setAttribute( XmlKeys.IMGLOADER_FORMAT_ATTRIBUTE_NAME, "bdv.n5" );
+        imgLoader.setAttribute( "version", "1.0" );
+        Element n5Element = new Element( "n5" );
+        n5Element.setAttribute( "type", "relative" );
+        n5Element.setText( xmlDirectory.toPath().relativize(n5Directory.getAbsoluteFile().toPath()).toString() );
+        imgLoader.addContent( n5Element );
+
+        Element sequenceDescription = root.getChild( XmlKeys.SEQUENCEDESCRIPTION_TAG );
+        sequenceDescription.removeChild( XmlKeys.IMGLOADER_TAG );
+        sequenceDescription.addContent( 0, imgLoader );
+
+        try (OutputStream os = new FileOutputStream(xmlFile)) {
+            new XMLOutputter(Format.getPrettyFormat()).output(new Document(root), os);
+        }
+    }
+
+}
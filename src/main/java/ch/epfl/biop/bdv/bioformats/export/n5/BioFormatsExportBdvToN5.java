@@ -0,0 +1,157 @@
+package ch.epfl.biop.bdv.bioformats.export.n5;
+
+import bdv.util.BdvHandle;
+import bdv.viewer.Source;
+import mpicbg.spim.data.SpimData;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.*;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.Volatile;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import org.apache.commons.io.FilenameUtils;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static ch.epfl.biop.bdv.bioformats.export.ometiff.BioFormatsExportBdvToOmeTiff.expressionToArray;
+
+/**
+ * Saves sources of a BigDataViewer window into a chunked N5 container with a multiresolution
+ * pyramid, and writes the matching xml dataset using the BigDataViewer N5 image loader.
+ * Each source becomes a setup, its level 0 transform becomes the registration of each view.
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+@Plugin(type = Command.class,menuPath = "BDV_SciJava>Export>Save Sources as N5 (SciJava)")
+public class BioFormatsExportBdvToN5 implements Command {
+
+    @Parameter(label="Sources to save ('2,3-5'), starts at 0")
+    String index_srcs_to_save;
+
+    @Parameter(label = "BigDataViewer Frame")
+    public BdvHandle bdv_h;
+
+    @Parameter(label = "output xml file, the n5 container is written next to it", style = "save")
+    public File outputXmlFile;
+
+    @Parameter(label = "number of timepoints")
+    public int numberOfTimepoints = 1;
+
+    @Parameter
+    public int blockSizeX = 128;
+
+    @Parameter
+    public int blockSizeY = 128;
+
+    @Parameter
+    public int blockSizeZ = 64;
+
+    @Parameter(choices = {"raw", "gzip", "lz4", "bzip2", "xz"})
+    public String compression = "gzip";
+
+    @Parameter(label = "maximal number of resolution levels")
+    public int maxNumberOfLevels = 8;
+
+    @Parameter(label = "number of threads")
+    public int nThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter
+    public boolean verbose;
+
+    public Consumer<String> log = s -> {};
+
+    public Consumer<String> errlog = s -> System.err.println(s);
+
+    @Override
+    public void run() {
+        if (verbose) {
+            log = s -> System.out.println(s);
+        }
+
+        List<Source<?>> srcs = expressionToArray(index_srcs_to_save, i -> {
+                if (i>=0) {
+                    return i;
+                } else {
+                    return bdv_h.getViewerPanel().getState().getSources().size()+i;
+                }})
+                .stream()
+                .map(idx -> bdv_h.getViewerPanel().getState().getSources().get(idx).getSpimSource())
+                .collect(Collectors.toList());
+
+        try {
+            File n5Directory = new File(FilenameUtils.removeExtension(outputXmlFile.getAbsolutePath())+".n5");
+            BdvN5Writer writer = new BdvN5Writer(n5Directory, new int[]{blockSizeX, blockSizeY, blockSizeZ}, compression, nThreads, maxNumberOfLevels);
+            writer.log = log;
+
+            List<ViewSetup> viewSetups = new ArrayList<>();
+            List<ViewRegistration> registrations = new ArrayList<>();
+            List<ViewId> missingViews = new ArrayList<>();
+            List<TimePoint> timePoints = new ArrayList<>();
+            for (int t=0;t<numberOfTimepoints;t++) {
+                timePoints.add(new TimePoint(t));
+            }
+
+            for (int setupId=0;setupId<srcs.size();setupId++) {
+                Source<?> src = srcs.get(setupId);
+                Object type = src.getType();
+                if ((type instanceof Volatile)||!((type instanceof RealType)&&(type instanceof NativeType))) {
+                    errlog.accept("Source "+src.getName()+" skipped : pixel type "+type.getClass().getSimpleName()+" unsupported in N5");
+                    continue;
+                }
+                ViewSetup vs = exportSource(writer, setupId, (Source) src, registrations, missingViews);
+                if (vs!=null) viewSetups.add(vs);
+            }
+
+            SequenceDescription sd = new SequenceDescription(new TimePoints(timePoints), viewSetups, null, new MissingViews(missingViews));
+            SpimData spimData = new SpimData(outputXmlFile.getAbsoluteFile().getParentFile(), sd, new ViewRegistrations(registrations));
+            BdvN5Writer.saveXml(spimData, outputXmlFile, n5Directory);
+            log.accept("Done");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes all present timepoints of a source
+     * @return the setup of the source, null if the source has no timepoint
+     */
+    <T extends RealType<T> & NativeType<T>> ViewSetup exportSource(BdvN5Writer writer, int setupId, Source<T> src,
+                                                                   List<ViewRegistration> registrations, List<ViewId> missingViews) throws IOException {
+        int[][] factors = null;
+        ViewSetup vs = null;
+        for (int t=0;t<numberOfTimepoints;t++) {
+            if (!src.isPresent(t)) {
+                missingViews.add(new ViewId(t, setupId));
+                continue;
+            }
+            RandomAccessibleInterval<T> image = src.getSource(t, 0);
+            if (factors==null) {
+                long[] dims = Intervals.dimensionsAsLongArray(image);
+                factors = writer.getDownsamplingFactors(dims);
+                writer.writeSetup(setupId, factors, src.getType());
+                VoxelDimensions voxDims = src.getVoxelDimensions()!=null?src.getVoxelDimensions():new FinalVoxelDimensions("pixel", 1, 1, 1);
+                vs = new ViewSetup(setupId, src.getName(), new FinalDimensions(dims), voxDims,
+                        new Tile(0), new Channel(setupId), new Angle(0), new Illumination(0));
+            }
+            writer.writeView(setupId, t, image, factors);
+            AffineTransform3D transform = new AffineTransform3D();
+            src.getSourceTransform(t, 0, transform);
+            registrations.add(new ViewRegistration(t, setupId, transform));
+        }
+        return vs;
+    }
+
+}
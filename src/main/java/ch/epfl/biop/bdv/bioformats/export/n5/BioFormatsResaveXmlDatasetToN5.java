@@ -0,0 +1,171 @@
+package ch.epfl.biop.bdv.bioformats.export.n5;
+
+import ch.epfl.biop.bdv.bioformats.export.ExportPartition;
+import mpicbg.spim.data.SpimData;
+import mpicbg.spim.data.XmlIoSpimData;
+import mpicbg.spim.data.generic.sequence.BasicSetupImgLoader;
+import mpicbg.spim.data.sequence.SequenceDescription;
+import mpicbg.spim.data.sequence.SetupImgLoader;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.data.sequence.ViewSetup;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import org.apache.commons.io.FilenameUtils;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Resaves a BigDataViewer xml dataset (for instance one read with BioFormats) into a
+ * chunked N5 container, with a multiresolution pyramid. The output xml uses the
+ * BigDataViewer N5 image loader, registrations and setups are kept.
+ *
+ * The resave can be shared between processes, see {@link ExportPartition} : each process
+ * writes the views of its partition, then a last run with 'merge/N' writes the setups
+ * attributes and the xml.
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+@Plugin(type = Command.class,menuPath = "BDV_SciJava>Export>Resave Xml Dataset as N5 (SciJava)")
+public class BioFormatsResaveXmlDatasetToN5 implements Command {
+
+    @Parameter(label = "Xml dataset")
+    public File xmlDataset;
+
+    @Parameter(label = "output xml file, the n5 container is written next to it", style = "save")
+    public File outputXmlFile;
+
+    @Parameter
+    public int blockSizeX = 128;
+
+    @Parameter
+    public int blockSizeY = 128;
+
+    @Parameter
+    public int blockSizeZ = 64;
+
+    @Parameter(choices = {"raw", "gzip", "lz4", "bzip2", "xz"})
+    public String compression = "gzip";
+
+    @Parameter(label = "maximal number of resolution levels")
+    public int maxNumberOfLevels = 8;
+
+    @Parameter(label = "number of threads")
+    public int nThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(required = false, label = "partition 'i/N' written by this process, 'merge/N' once all are done, empty for a single process")
+    public String partition = "";
+
+    @Parameter
+    public boolean verbose;
+
+    public Consumer<String> log = s -> {};
+
+    public Consumer<String> errlog = s -> System.err.println(s);
+
+    // Views written by this process, null for all views
+    ExportPartition exportPartition;
+
+    // Index of the next view, in setup then timepoint order
+    long viewIndex;
+
+    long numberOfWrittenViews;
+
+    @Override
+    public void run() {
+        if (verbose) {
+            log = s -> System.out.println(s);
+        }
+        try {
+            long start = System.currentTimeMillis();
+            SpimData spimData = new XmlIoSpimData().load(xmlDataset.getAbsolutePath());
+            SequenceDescription sd = spimData.getSequenceDescription();
+
+            File n5Directory = new File(FilenameUtils.removeExtension(outputXmlFile.getAbsolutePath())+".n5");
+            BdvN5Writer writer = new BdvN5Writer(n5Directory, new int[]{blockSizeX, blockSizeY, blockSizeZ}, compression, nThreads, maxNumberOfLevels);
+            writer.log = log;
+
+            // Workers of a partitioned export write their views, the merge step writes the setups attributes and the xml
+            exportPartition = ExportPartition.parse(partition);
+            viewIndex = 0;
+            numberOfWrittenViews = 0;
+            if (exportPartition!=null) {
+                String signature = xmlDataset.getAbsolutePath()+"|"+blockSizeX+","+blockSizeY+","+blockSizeZ+"|"+compression+"|"+maxNumberOfLevels;
+                if (exportPartition.isMerge()) {
+                    exportPartition.checkAllDone(n5Directory, signature);
+                } else {
+                    exportPartition.start(n5Directory, signature);
+                }
+            }
+
+            for (ViewSetup vs : sd.getViewSetupsOrdered()) {
+                BasicSetupImgLoader<?> setupImgLoader = sd.getImgLoader().getSetupImgLoader(vs.getId());
+                Object type = setupImgLoader.getImageType();
+                if (!((type instanceof RealType)&&(type instanceof NativeType))) {
+                    errlog.accept("Setup "+vs.getId()+" skipped : pixel type "+type.getClass().getSimpleName()+" unsupported in N5");
+                    continue;
+                }
+                resaveSetup(writer, vs, (BasicSetupImgLoader) setupImgLoader, sd);
+            }
+
+            if ((exportPartition!=null)&&(!exportPartition.isMerge())) {
+                exportPartition.done(n5Directory, numberOfWrittenViews, (System.currentTimeMillis()-start)/1000.0);
+                log.accept("Partition "+exportPartition+" done");
+                return;
+            }
+
+            SequenceDescription sdN5 = new SequenceDescription(sd.getTimePoints(), sd.getViewSetups(), null, sd.getMissingViews());
+            SpimData spimDataN5 = new SpimData(outputXmlFile.getAbsoluteFile().getParentFile(), sdN5, spimData.getViewRegistrations());
+            BdvN5Writer.saveXml(spimDataN5, outputXmlFile, n5Directory);
+            log.accept("Done");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    <T extends RealType<T> & NativeType<T>> void resaveSetup(BdvN5Writer writer, ViewSetup vs, BasicSetupImgLoader<T> setupImgLoader, SequenceDescription sd) throws IOException {
+        int setupId = vs.getId();
+        int[][] factors = null;
+        for (TimePoint tp : sd.getTimePoints().getTimePointsOrdered()) {
+            if ((sd.getMissingViews()!=null)&&(sd.getMissingViews().getMissingViews().contains(new ViewId(tp.getId(), setupId)))) {
+                continue;
+            }
+            if (factors==null) {
+                // Pyramid of the setup, taken from the size of its first timepoint
+                factors = writer.getDownsamplingFactors(getImageSize(vs, setupImgLoader, tp.getId()));
+                if ((exportPartition==null)||(exportPartition.isMerge())) {
+                    writer.writeSetup(setupId, factors, setupImgLoader.getImageType());
+                }
+            }
+            if ((exportPartition==null)||(exportPartition.contains(viewIndex))) {
+                // Only the views written by this process are read
+                RandomAccessibleInterval<T> image = setupImgLoader.getImage(tp.getId());
+                writer.writeView(setupId, tp.getId(), image, factors);
+                numberOfWrittenViews++;
+            }
+            viewIndex++;
+        }
+    }
+
+    /**
+     * @return dimensions of a view, from the dataset metadata when available : the image is read only as a last resort
+     */
+    static long[] getImageSize(ViewSetup vs, BasicSetupImgLoader<?> setupImgLoader, int timepoint) {
+        if (vs.hasSize()) {
+            return Intervals.dimensionsAsLongArray(vs.getSize());
+        }
+        if (setupImgLoader instanceof SetupImgLoader) {
+            return Intervals.dimensionsAsLongArray(((SetupImgLoader<?>) setupImgLoader).getImageSize(timepoint));
+        }
+        return Intervals.dimensionsAsLongArray(setupImgLoader.getImage(timepoint));
+    }
+
+}
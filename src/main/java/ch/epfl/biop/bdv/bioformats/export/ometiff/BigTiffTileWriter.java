@@ -0,0 +1,387 @@
+package ch.epfl.biop.bdv.bioformats.export.ometiff;
+
+import loci.formats.FormatException;
+import loci.formats.codec.CodecOptions;
+import loci.formats.codec.JPEGCodec;
+import loci.formats.codec.LZWCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a tiled, little endian BigTIFF file, with resolution levels stored as SubIFDs of each plane.
+ *
+ * Tiles are compressed with {@link BigTiffTileWriter#compress(byte[], int, int)}, which can be called by several
+ * threads, and are appended in any order by a single thread with {@link BigTiffTileWriter#writeTile(int, int, int, int, byte[])}.
+ * IFDs are written when the writer is closed, once the position of all tiles is known.
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+public class BigTiffTileWriter implements Closeable {
+
+    public static final String[] COMPRESSIONS = {"Uncompressed", "LZW", "Deflate", "JPEG"};
+
+    static final int NONE = 1, LZW = 5, JPEG = 7, DEFLATE = 8;
+
+    static final int ASCII = 2, SHORT = 3, LONG = 4, LONG8 = 16, IFD8 = 18;
+
+    static final int NEW_SUBFILE_TYPE = 254, IMAGE_WIDTH = 256, IMAGE_LENGTH = 257, BITS_PER_SAMPLE = 258,
+            COMPRESSION = 259, PHOTOMETRIC_INTERPRETATION = 262, IMAGE_DESCRIPTION = 270, SAMPLES_PER_PIXEL = 277,
+            PLANAR_CONFIGURATION = 284, TILE_WIDTH = 322, TILE_LENGTH = 323, TILE_OFFSETS = 324,
+            TILE_BYTE_COUNTS = 325, SUB_IFDS = 330, SAMPLE_FORMAT = 339;
+
+    final FileChannel channel;
+
+    long position;
+
+    final int nPlanes;
+
+    final long[] levelWidths, levelHeights;
+
+    final int tileSizeX, tileSizeY;
+
+    final int samplesPerPixel, bytesPerSample, sampleFormat, compression;
+
+    final String description;
+
+    // [plane][resolution][tile index], tiles in row order
+    final long[][][] tileOffsets, tileByteCounts;
+
+    /**
+     * @param file output file, overwritten
+     * @param nPlanes number of planes
+     * @param levelWidths width of each resolution level
+     * @param levelHeights height of each resolution level
+     * @param tileSizeX multiple of 16, as required by TIFF
+     * @param tileSizeY multiple of 16, as required by TIFF
+     * @param samplesPerPixel 3 for RGB, 1 otherwise
+     * @param bytesPerSample
+     * @param signed
+     * @param floatingPoint
+     * @param compression one of {@link BigTiffTileWriter#COMPRESSIONS}
+     * @param description image description of the first plane, the OME-XML
+     * @param resume if true the existing file is kept, tiles already written are declared with
+     *               {@link BigTiffTileWriter#restoreTile(ExportCheckpoint.TileRecord)} and writing continues after {@link BigTiffTileWriter#resumeAt(long)}
+     * @throws IOException
+     */
+    public BigTiffTileWriter(File file, int nPlanes, long[] levelWidths, long[] levelHeights, int tileSizeX, int tileSizeY,
+                             int samplesPerPixel, int bytesPerSample, boolean signed, boolean floatingPoint,
+                             String compression, String description, boolean resume) throws IOException {
+        if ((tileSizeX<=0)||(tileSizeY<=0)||(tileSizeX%16!=0)||(tileSizeY%16!=0)) {
+            throw new IllegalArgumentException("TIFF tile sizes should be positive multiples of 16, got "+tileSizeX+"x"+tileSizeY);
+        }
+        this.nPlanes = nPlanes;
+        this.levelWidths = levelWidths;
+        this.levelHeights = levelHeights;
+        this.tileSizeX = tileSizeX;
+        this.tileSizeY = tileSizeY;
+        this.samplesPerPixel = samplesPerPixel;
+        this.bytesPerSample = bytesPerSample;
+        this.sampleFormat = floatingPoint ? 3 : (signed ? 2 : 1);
+        this.compression = getCompression(compression);
+        this.description = description;
+        if ((this.compression==JPEG)&&(bytesPerSample!=1||signed)) {
+            throw new IllegalArgumentException("JPEG compression is only possible for 8 bits unsigned images");
+        }
+
+        tileOffsets = new long[nPlanes][levelWidths.length][];
+        tileByteCounts = new long[nPlanes][levelWidths.length][];
+        for (int p=0;p<nPlanes;p++) {
+            for (int r=0;r<levelWidths.length;r++) {
+                tileOffsets[p][r] = new long[getNumberOfTiles(r)];
+                tileByteCounts[p][r] = new long[getNumberOfTiles(r)];
+            }
+        }
+
+        if (resume) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            return;
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        writeHeader();
+    }
+
+    /**
+     * BigTIFF header, the offset of the first IFD is written on close
+     */
+    void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(0);
+        write(header.array());
+    }
+
+    static int getCompression(String compression) {
+        switch (compression) {
+            case "LZW": return LZW;
+            case "Deflate": return DEFLATE;
+            case "JPEG": return JPEG;
+            default: return NONE;
+        }
+    }
+
+    int getNumberOfTilesX(int resolution) {
+        return (int) ((levelWidths[resolution]-1)/tileSizeX+1);
+    }
+
+    public int getNumberOfTiles(int resolution) {
+        return getNumberOfTilesX(resolution)*(int) ((levelHeights[resolution]-1)/tileSizeY+1);
+    }
+
+    /**
+     * Pads a tile to the full tile size, as required by TIFF, and compresses it. Thread safe.
+     * @param bytes tile bytes, little endian, samples interleaved
+     * @param w width of the tile, smaller than the tile size for border tiles
+     * @param h height of the tile
+     * @return the bytes to write, the input array if there's nothing to do
+     */
+    public byte[] compress(byte[] bytes, int w, int h) throws IOException {
+        int bytesPerPixel = samplesPerPixel*bytesPerSample;
+        byte[] tile = bytes;
+        if ((w!=tileSizeX)||(h!=tileSizeY)) {
+            tile = new byte[tileSizeX*tileSizeY*bytesPerPixel];
+            for (int y=0;y<h;y++) {
+                System.arraycopy(bytes, y*w*bytesPerPixel, tile, y*tileSizeX*bytesPerPixel, w*bytesPerPixel);
+            }
+        }
+        try {
+            switch (compression) {
+                case LZW:
+                    return new LZWCodec().compress(tile, getCodecOptions());
+                case JPEG:
+                    return new JPEGCodec().compress(tile, getCodecOptions());
+                case DEFLATE:
+                    Deflater deflater = new Deflater();
+                    deflater.setInput(tile);
+                    deflater.finish();
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream(tile.length/2);
+                    byte[] buffer = new byte[65536];
+                    while (!deflater.finished()) {
+                        int n = deflater.deflate(buffer);
+                        compressed.write(buffer, 0, n);
+                    }
+                    deflater.end();
+                    return compressed.toByteArray();
+                default:
+                    return tile;
+            }
+        } catch (FormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+    CodecOptions getCodecOptions() {
+        CodecOptions options = new CodecOptions();
+        options.width = tileSizeX;
+        options.height = tileSizeY;
+        options.channels = samplesPerPixel;
+        options.bitsPerSample = bytesPerSample*8;
+        options.littleEndian = true;
+        options.interleaved = true;
+        options.signed = sampleFormat==2;
+        return options;
+    }
+
+    public int getTileIndex(int resolution, int x, int y) {
+        return (y/tileSizeY)*getNumberOfTilesX(resolution)+x/tileSizeX;
+    }
+
+    /**
+     * Appends a tile to the file. Not thread safe : a single thread writes the tiles.
+     * @param plane
+     * @param resolution
+     * @param x x position of the tile in pixels
+     * @param y y position of the tile in pixels
+     * @param compressedBytes bytes returned by {@link BigTiffTileWriter#compress(byte[], int, int)}
+     * @return offset of the tile in the file
+     */
+    public long writeTile(int plane, int resolution, int x, int y, byte[] compressedBytes) throws IOException {
+        int tileIndex = getTileIndex(resolution, x, y);
+        long offset = position;
+        tileOffsets[plane][resolution][tileIndex] = offset;
+        tileByteCounts[plane][resolution][tileIndex] = compressedBytes.length;
+        write(compressedBytes);
+        return offset;
+    }
+
+    /**
+     * Declares a tile written by a previous, interrupted, export
+     */
+    public void restoreTile(ExportCheckpoint.TileRecord record) {
+        tileOffsets[record.plane][record.resolution][record.tileIndex] = record.offset;
+        tileByteCounts[record.plane][record.resolution][record.tileIndex] = record.byteCount;
+    }
+
+    /**
+     * Continues writing at a position, the file is truncated after it
+     * @param position end of the last tile written by the interrupted export
+     */
+    public void resumeAt(long position) throws IOException {
+        if ((position<16)||(channel.size()<16)) {
+            // Nothing usable was written
+            channel.truncate(0);
+            this.position = 0;
+            writeHeader();
+        } else {
+            this.position = position;
+            channel.truncate(position);
+        }
+    }
+
+    /**
+     * Forces the tiles written so far to the disk
+     */
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    void write(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Writes the IFDs of all planes and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            // Planes are written from the last one so that each IFD knows the offset of the next one
+            long nextIFD = 0;
+            for (int p=nPlanes-1;p>=0;p--) {
+                long[] subIFDs = new long[levelWidths.length-1];
+                for (int r=1;r<levelWidths.length;r++) {
+                    subIFDs[r-1] = writeIFD(getEntries(p, r, null), 0);
+                }
+                List<Entry> entries = getEntries(p, 0, (p==0)?description:null);
+                if (subIFDs.length>0) entries.add(new Entry(SUB_IFDS, IFD8, subIFDs.length, longs(subIFDs)));
+                nextIFD = writeIFD(entries, nextIFD);
+            }
+            ByteBuffer firstIFD = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            firstIFD.putLong(nextIFD);
+            firstIFD.flip();
+            channel.write(firstIFD, 8);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Closes the file without writing the IFDs
+     */
+    public void abort() throws IOException {
+        channel.close();
+    }
+
+    List<Entry> getEntries(int plane, int resolution, String imageDescription) {
+        List<Entry> entries = new ArrayList<>();
+        if (resolution>0) entries.add(new Entry(NEW_SUBFILE_TYPE, LONG, 1, ints(1)));
+        entries.add(new Entry(IMAGE_WIDTH, LONG8, 1, longs(levelWidths[resolution])));
+        entries.add(new Entry(IMAGE_LENGTH, LONG8, 1, longs(levelHeights[resolution])));
+        int[] bitsPerSample = new int[samplesPerPixel];
+        int[] sampleFormats = new int[samplesPerPixel];
+        for (int s=0;s<samplesPerPixel;s++) {
+            bitsPerSample[s] = bytesPerSample*8;
+            sampleFormats[s] = sampleFormat;
+        }
+        entries.add(new Entry(BITS_PER_SAMPLE, SHORT, samplesPerPixel, shorts(bitsPerSample)));
+        entries.add(new Entry(COMPRESSION, SHORT, 1, shorts(compression)));
+        entries.add(new Entry(PHOTOMETRIC_INTERPRETATION, SHORT, 1, shorts(samplesPerPixel==3 ? 2 : 1)));
+        if (imageDescription!=null) {
+            byte[] text = (imageDescription+"\0").getBytes(StandardCharsets.UTF_8);
+            entries.add(new Entry(IMAGE_DESCRIPTION, ASCII, text.length, text));
+        }
+        entries.add(new Entry(SAMPLES_PER_PIXEL, SHORT, 1, shorts(samplesPerPixel)));
+        entries.add(new Entry(PLANAR_CONFIGURATION, SHORT, 1, shorts(1)));
+        entries.add(new Entry(TILE_WIDTH, SHORT, 1, shorts(tileSizeX)));
+        entries.add(new Entry(TILE_LENGTH, SHORT, 1, shorts(tileSizeY)));
+        entries.add(new Entry(TILE_OFFSETS, LONG8, tileOffsets[plane][resolution].length, longs(tileOffsets[plane][resolution])));
+        entries.add(new Entry(TILE_BYTE_COUNTS, LONG8, tileByteCounts[plane][resolution].length, longs(tileByteCounts[plane][resolution])));
+        entries.add(new Entry(SAMPLE_FORMAT, SHORT, samplesPerPixel, shorts(sampleFormats)));
+        return entries;
+    }
+
+    /**
+     * Writes the values which don't fit in their entry, then the IFD itself
+     * @return offset of the IFD
+     */
+    long writeIFD(List<Entry> entries, long nextIFD) throws IOException {
+        entries.sort(Comparator.comparingInt(entry -> entry.tag));
+        long[] valueOffsets = new long[entries.size()];
+        for (int i=0;i<entries.size();i++) {
+            if (entries.get(i).values.length>8) {
+                alignToWord();
+                valueOffsets[i] = position;
+                write(entries.get(i).values);
+            }
+        }
+        alignToWord();
+        long ifdOffset = position;
+        ByteBuffer ifd = ByteBuffer.allocate(8+entries.size()*20+8).order(ByteOrder.LITTLE_ENDIAN);
+        ifd.putLong(entries.size());
+        for (int i=0;i<entries.size();i++) {
+            Entry entry = entries.get(i);
+            ifd.putShort((short) entry.tag);
+            ifd.putShort((short) entry.type);
+            ifd.putLong(entry.count);
+            if (entry.values.length>8) {
+                ifd.putLong(valueOffsets[i]);
+            } else {
+                ifd.put(entry.values);
+                for (int b=entry.values.length;b<8;b++) ifd.put((byte) 0);
+            }
+        }
+        ifd.putLong(nextIFD);
+        write(ifd.array());
+        return ifdOffset;
+    }
+
+    void alignToWord() throws IOException {
+        if (position%2!=0) write(new byte[1]);
+    }
+
+    static byte[] shorts(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length*2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int v : values) buffer.putShort((short) v);
+        return buffer.array();
+    }
+
+    static byte[] ints(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length*4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int v : values) buffer.putInt(v);
+        return buffer.array();
+    }
+
+    static byte[] longs(long... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length*8).order(ByteOrder.LITTLE_ENDIAN);
+        for (long v : values) buffer.putLong(v);
+        return buffer.array();
+    }
+
+    static class Entry {
+        final int tag, type;
+        final long count;
+        final byte[] values;
+
+        Entry(int tag, int type, long count, byte[] values) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.values = values;
+        }
+    }
+
+}
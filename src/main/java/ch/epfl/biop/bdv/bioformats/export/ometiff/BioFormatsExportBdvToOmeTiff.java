@@ -5,23 +5,33 @@ import bdv.viewer.Source;
 import loci.common.DebugTools;
 import loci.common.services.ServiceFactory;
 import loci.formats.FormatTools;
-import loci.formats.IFormatWriter;
-import loci.formats.ImageWriter;
 import loci.formats.ome.OMEPyramidStore;
 import loci.formats.services.OMEXMLService;
-import loci.formats.tiff.IFD;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.Volatile;
+import net.imglib2.cache.img.DiskCachedCellImgFactory;
+import net.imglib2.cache.img.DiskCachedCellImgOptions;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedIntType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.ConstantUtils;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import ome.xml.model.enums.DimensionOrder;
 import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.NonNegativeInteger;
 import ome.xml.model.primitives.PositiveInteger;
+import org.scijava.app.StatusService;
 import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -30,15 +40,21 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.function.Function;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import static net.imglib2.cache.img.DiskCachedCellImgOptions.options;
+
 
 /**
  * Inspired from https://github.com/ome/bio-formats-examples/blob/master/src/main/java/FileExport.java
  *
- * JUST NOT WORKING AT ALL WITH TILES
+ * The selected sources are written as the channels of a single image, over a range of timepoints.
+ * They should have the same pixel type and size.
  */
 
 @Plugin(type = Command.class,menuPath = "BDV_SciJava>Export>Save Sources as OMETIFF (SciJava)")
@@ -53,7 +69,7 @@ public class BioFormatsExportBdvToOmeTiff implements Command{
     public BdvHandle bdv_h;
 
     /** The file format writer. */
-    private IFormatWriter writer;
+    private BigTiffTileWriter writer;
 
     /** The name of the output file. */
     @Parameter(label = "output file, ome tiff format")
@@ -63,10 +79,10 @@ public class BioFormatsExportBdvToOmeTiff implements Command{
     public boolean computePyramid;
 
     @Parameter
-    int tileSizeX = 512;
+    public int tileSizeX = 512;
 
     @Parameter
-    int tileSizeY = 512;
+    public int tileSizeY = 512;
 
     @Parameter(label = "pyramid scale factor (XY only)")
     public int scale = 4;
@@ -74,24 +90,59 @@ public class BioFormatsExportBdvToOmeTiff implements Command{
     @Parameter(label = "number of resolutions")
     public int resolutions = 4;
 
-    @Parameter(label = "time point")
-    public int timePoint = 4;
+    @Parameter(label = "first time point")
+    public int timePoint = 0;
+
+    @Parameter(label = "number of time points")
+    public int numberOfTimePoints = 1;
+
+    @Parameter(choices = {"Uncompressed", "LZW", "Deflate", "JPEG"}, label = "compression, JPEG for 8 bits images only")
+    public String compression = "LZW";
+
+    @Parameter(label = "number of threads reading, converting and compressing tiles")
+    public int nThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(label = "resume an interrupted export of the same sources")
+    public boolean resume = true;
+
+    @Parameter
+    StatusService statusService;
+
+    public List<ExportProgressListener> progressListeners = new ArrayList<>();
+
+    // Sources to save without a BigDataViewer window, bdv_h and index_srcs_to_save are ignored if set
+    public List<Source<?>> sources;
+
+    // Maximal number of tiles being converted ahead of the writer, bounds the memory used, 0 for 4 per thread
+    public int maxTilesInFlight = 0;
+
+    // Cause of the failure of the last export, null if it succeeded
+    public Exception exception;
+
+    // Tiles written by an interrupted export, [plane][resolution][tile index], null if none
+    boolean[][][] doneTiles;
+
+    ExportCheckpoint checkpoint;
 
     @Override
     public void run() {
         //DebugTools.enableLogging("INFO");
         DebugTools.setRootLevel("OFF");
-        ArrayList<Integer> idx_src = expressionToArray(index_srcs_to_save, i -> {
-            if (i>=0) {
-                return i;
-            } else {
-                return bdv_h.getViewerPanel().getState().getSources().size()+i;
-            }});
+        exception = null;
+        List<Source<?>> srcs = sources;
+        if (srcs==null) {
+            ArrayList<Integer> idx_src = expressionToArray(index_srcs_to_save, i -> {
+                if (i>=0) {
+                    return i;
+                } else {
+                    return bdv_h.getViewerPanel().getState().getSources().size()+i;
+                }});
 
-        List<Source<?>> srcs = idx_src
-                .stream()
-                .map(idx -> bdv_h.getViewerPanel().getState().getSources().get(idx).getSpimSource())
-                .collect(Collectors.toList());
+            srcs = idx_src
+                    .stream()
+                    .map(idx -> bdv_h.getViewerPanel().getState().getSources().get(idx).getSpimSource())
+                    .collect(Collectors.toList());
+        }
 
         try {
             ServiceFactory factory = new ServiceFactory();
@@ -110,9 +161,8 @@ public class BioFormatsExportBdvToOmeTiff implements Command{
             meta.setImageID("Image:"+iImage, iImage);
             meta.setPixelsID("Pixels:"+iImage, iImage);
 
-            // specify that the pixel data is stored in big-endian format
-            // change 'TRUE' to 'FALSE' to specify little-endian format
-            meta.setPixelsBinDataBigEndian(Boolean.TRUE, iImage, 0);
+            // specify that the pixel data is stored in little-endian format, as converted by SourceToByteArray
+            meta.setPixelsBinDataBigEndian(Boolean.FALSE, iImage, 0);
 
             // specify that the images are stored in ZCT order
             meta.setPixelsDimensionOrder(DimensionOrder.XYZCT, iImage);
@@ -121,15 +171,23 @@ public class BioFormatsExportBdvToOmeTiff implements Command{
             long sizeY = src.getSource(timePoint,0).dimension(1);
             long sizeZ = src.getSource(timePoint,0).dimension(2);
 
+            // Each source is a channel
+            int sizeC = srcs.size();
+            int sizeT = Math.max(1, numberOfTimePoints);
+            for (Source<?> channelSrc : srcs) {
+                if ((!channelSrc.getType().getClass().equals(src.getType().getClass()))
+                        ||(!Intervals.equalDimensions(channelSrc.getSource(timePoint,0), src.getSource(timePoint,0)))) {
+                    throw new IllegalArgumentException("Source "+channelSrc.getName()+" differs from "+src.getName()+" in pixel type or size, all channels should match");
+                }
+            }
+
             int type;
             boolean isRGB = false;
             String pt;
             NumericType nt;
             // specify that the pixel type of the images
             if (src.getType() instanceof Volatile) {
-                System.err.println("Volatile unsupported");
-                cleanup();
-                return;
+                throw new IllegalArgumentException("Volatile sources are unsupported");
             } else if (src.getType() instanceof UnsignedByteType) {
                 nt = new UnsignedByteType();
                 type = FormatTools.UINT8;
@@ -140,6 +198,26 @@ public class BioFormatsExportBdvToOmeTiff implements Command{
                 type = FormatTools.UINT16;
                 pt = FormatTools.getPixelTypeString(type);
                 meta.setPixelsType(PixelType.fromString(pt), iImage);
+            } else if (src.getType() instanceof ByteType) {
+                nt = new ByteType();
+                type = FormatTools.INT8;
+                pt = FormatTools.getPixelTypeString(type);
+                meta.setPixelsType(PixelType.fromString(pt), iImage);
+            } else if (src.getType() instanceof ShortType) {
+                nt = new ShortType();
+                type = FormatTools.INT16;
+                pt = FormatTools.getPixelTypeString(type);
+                meta.setPixelsType(PixelType.fromString(pt), iImage);
+            } else if (src.getType() instanceof IntType) {
+                nt = new IntType();
+                type = FormatTools.INT32;
+                pt = FormatTools.getPixelTypeString(type);
+                meta.setPixelsType(PixelType.fromString(pt), iImage);
+            } else if (src.getType() instanceof DoubleType) {
+                nt = new DoubleType();
+                type = FormatTools.DOUBLE;
+                pt = FormatTools.getPixelTypeString(type);
+                meta.setPixelsType(PixelType.fromString(pt), iImage);
             } else if (src.getType() instanceof UnsignedIntType) {
                 nt = new UnsignedIntType();
                 type = FormatTools.UINT32;
@@ -156,9 +234,7 @@ public class BioFormatsExportBdvToOmeTiff implements Command{
                 pt = FormatTools.getPixelTypeString(type); isRGB=true;
                 meta.setPixelsType(PixelType.fromString(pt), iImage);
             } else {
-                System.err.println("Pixel type unsupported");
-                cleanup();
-                return;
+                throw new IllegalArgumentException("Pixel type "+src.getType().getClass().getSimpleName()+" unsupported");
             }
 
             assert sizeX<Integer.MAX_VALUE;
@@ -168,131 +244,389 @@ public class BioFormatsExportBdvToOmeTiff implements Command{
             meta.setPixelsSizeX(new PositiveInteger((int)sizeX), iImage);
             meta.setPixelsSizeY(new PositiveInteger((int)sizeY), iImage);
             meta.setPixelsSizeZ(new PositiveInteger((int)sizeZ), iImage);
-            meta.setPixelsSizeC(new PositiveInteger(1), iImage);
-            meta.setPixelsSizeT(new PositiveInteger(1), iImage);
+            meta.setPixelsSizeC(new PositiveInteger(sizeC), iImage);
+            meta.setPixelsSizeT(new PositiveInteger(sizeT), iImage);
 
             // define each channel and specify the number of samples in the channel
             // the number of samples is 3 for RGB images and 1 otherwise
-            meta.setChannelID("Channel:"+iImage+":0", iImage, 0);
-            meta.setChannelSamplesPerPixel(new PositiveInteger(isRGB?3:1), iImage, 0);
+            for (int c=0;c<sizeC;c++) {
+                meta.setChannelID("Channel:"+iImage+":"+c, iImage, c);
+                meta.setChannelSamplesPerPixel(new PositiveInteger(isRGB?3:1), iImage, c);
+                if (srcs.get(c).getName()!=null) {
+                    meta.setChannelName(srcs.get(c).getName(), iImage, c);
+                }
+            }
+
+            // Levels smaller than a pixel are not written
+            int nResolutions = 1;
+            if (computePyramid) {
+                while ((nResolutions<resolutions)&&(Math.min(sizeX, sizeY)/(long) Math.pow(scale, nResolutions)>0)) nResolutions++;
+            }
 
-            for (int i=0;i<resolutions;i++) {
+            for (int i=0;i<nResolutions;i++) {
                 int divScale = (int) Math.pow(scale,i);
-                System.out.println("divscale="+divScale);
-                System.out.println(new PositiveInteger((int) (sizeX/divScale)).getNumberValue().doubleValue());
-                System.out.println(new PositiveInteger((int) (sizeY/divScale)).getNumberValue().doubleValue());
                 meta.setResolutionSizeX(new PositiveInteger((int) (sizeX/divScale)),iImage,i);
                 meta.setResolutionSizeY(new PositiveInteger((int) (sizeY/divScale)),iImage,i);
             }
 
-            writer = new ImageWriter();//new PyramidOMETiffWriter();
-            writer.setMetadataRetrieve(meta);
-            writer.setTileSizeX(tileSizeX);
-            writer.setTileSizeY(tileSizeY);
-            writer.setId(outputFile.getAbsolutePath());
-
-            iImage = 0;
-            src = srcs.get(iImage);
-
-            // ----------------
-
-            writer.setSeries(iImage);
-            IFD ifd = new IFD();
-            ifd.put(IFD.TILE_WIDTH, tileSizeX);
-            ifd.put(IFD.TILE_LENGTH, tileSizeY);
-            writer.setResolution(0);
-                int width = (int) sizeX;
-                int height = (int) sizeY;
-
-                // Determined the number of tiles to read and write
-                int nXTiles = width / tileSizeX;
-                int nYTiles = height / tileSizeY;
-                if (nXTiles * tileSizeX != width) nXTiles++;
-                if (nYTiles * tileSizeY != height) nYTiles++;
-
-                for (int y=0; y<nYTiles; y++) {
-                    for (int x=0; x<nXTiles; x++) {
-
-                        System.out.println("X = "+y+"/"+nYTiles);
-                        System.out.println("X = "+x+"/"+nXTiles);
-                        // The x and y coordinates for the current tile
-                        int tileX = x * tileSizeX;
-                        int tileY = y * tileSizeY;
-
-                        /* overlapped-tiling-example-start */
-                        // If the last tile row or column overlaps the image size then only a partial tile
-                        // is read or written. The tile size used is adjusted to account for any overlap.
-                        int effTileSizeX = (tileX + tileSizeX) < width ? tileSizeX : width - tileX;
-                        int effTileSizeY = (tileY + tileSizeY) < height ? tileSizeY : height - tileY;
-
-                        // Read tiles from the input file and write them to the output OME-Tiff
-                        //buf = reader.openBytes(image, tileX, tileY, effTileSizeX, effTileSizeY);
-
-                        byte[] arrayToSave;
-                        if (nt instanceof UnsignedByteType) {
-                            RandomAccessibleInterval rai = src.getSource(timePoint, 0);
-                            rai = Views.interval(rai, new long[] { x*tileSizeX, y*tileSizeY, 0 },
-                                    new long[]{ x*tileSizeX+effTileSizeX, y*tileSizeY+effTileSizeY,0 } );
-                            arrayToSave = SourceToByteArray.raiUnsignedByteTypeToByteArray(rai, new UnsignedByteType());
-                        } else if (nt instanceof UnsignedShortType) {
-                            RandomAccessibleInterval rai = src.getSource(timePoint, 0);
-                            rai = Views.interval(rai, new long[] { x*tileSizeX, y*tileSizeY, 0 },
-                                    new long[]{ x*tileSizeX+effTileSizeX, y*tileSizeY+effTileSizeY, 0 } );
-                            arrayToSave = SourceToByteArray.raiUnsignedShortTypeToByteArray(rai, new UnsignedShortType());
-                        } else {
-                            System.err.println("Pixel type unsupported");
-                            cleanup();
-                            return;
-                        }
-                        System.out.println("arrayToSave length = "+arrayToSave.length);
+            if ((nResolutions>1)&&((tileSizeX%scale!=0)||(tileSizeY%scale!=0))) {
+                throw new IllegalArgumentException("The tile size should be a multiple of the pyramid scale factor");
+            }
+
+            // One IFD per plane, in XYZCT order
+            int nPlanes = (int) (sizeZ*sizeC*sizeT);
+            meta.setTiffDataFirstZ(new NonNegativeInteger(0), iImage, 0);
+            meta.setTiffDataFirstC(new NonNegativeInteger(0), iImage, 0);
+            meta.setTiffDataFirstT(new NonNegativeInteger(0), iImage, 0);
+            meta.setTiffDataIFD(new NonNegativeInteger(0), iImage, 0);
+            meta.setTiffDataPlaneCount(new NonNegativeInteger(nPlanes), iImage, 0);
+
+            long[] levelWidths = new long[nResolutions];
+            long[] levelHeights = new long[nResolutions];
+            for (int i=0;i<nResolutions;i++) {
+                int divScale = (int) Math.pow(scale,i);
+                levelWidths[i] = sizeX/divScale;
+                levelHeights[i] = sizeY/divScale;
+            }
 
-                        writer.saveBytes(iImage, arrayToSave, tileX, tileY, effTileSizeX, effTileSizeY);
-                        /* overlapped-tiling-example-end */
+            // Tiles written by an interrupted export with the same parameters are kept
+            String signature = String.join("|", srcs.stream().map(Source::getName).collect(Collectors.toList()))
+                    +"|"+sizeX+"|"+sizeY+"|"+sizeZ+"|"+sizeT+"|"+timePoint+"|"+type+"|"+isRGB+"|"+tileSizeX+"|"+tileSizeY
+                    +"|"+nResolutions+"|"+scale+"|"+compression;
+            checkpoint = new ExportCheckpoint(new File(outputFile.getAbsolutePath()+".checkpoint"), signature);
+            List<ExportCheckpoint.TileRecord> records = new ArrayList<>();
+            if (resume && outputFile.exists()) {
+                records = checkpoint.load();
+            }
+
+            writer = new BigTiffTileWriter(outputFile, nPlanes, levelWidths, levelHeights, tileSizeX, tileSizeY,
+                    isRGB?3:1, FormatTools.getBytesPerPixel(type), FormatTools.isSigned(type), FormatTools.isFloatingPoint(type),
+                    compression, service.getOMEXML(meta), records.size()>0);
+
+            long totalTiles = 0;
+            for (int i=0;i<nResolutions;i++) totalTiles += (long) nPlanes*writer.getNumberOfTiles(i);
+
+            if (records.size()>0) {
+                doneTiles = new boolean[nPlanes][nResolutions][];
+                for (int p=0;p<nPlanes;p++) {
+                    for (int i=0;i<nResolutions;i++) doneTiles[p][i] = new boolean[writer.getNumberOfTiles(i)];
+                }
+                long end = 0;
+                for (ExportCheckpoint.TileRecord record : records) {
+                    writer.restoreTile(record);
+                    doneTiles[record.plane][record.resolution][record.tileIndex] = true;
+                    end = Math.max(end, record.offset+record.byteCount);
+                }
+                writer.resumeAt(end);
+                LOGGER.info("Resuming export of "+outputFile.getAbsolutePath()+" : "+records.size()+"/"+totalTiles+" tiles already written");
+            }
+            checkpoint.start(records);
+
+            // Tiles are listed in the order of the file : plane by plane in XYZCT order, each plane
+            // with its resolution levels one after the other, row by row. Planes are independent :
+            // workers run ahead on the next planes while the current one is written.
+            final NumericType<?> pixelType = nt;
+            List<Callable<Tile>> tileTasks = new ArrayList<>();
+            for (int t=0; t<sizeT; t++) {
+                for (int c=0; c<sizeC; c++) {
+                    Source<?> channelSrc = srcs.get(c);
+                    RandomAccessibleInterval volume;
+                    if (channelSrc.isPresent(timePoint+t)) {
+                        volume = zeroMin(channelSrc.getSource(timePoint+t, 0));
+                    } else {
+                        // Missing timepoints are written as black planes
+                        NumericType zero = (NumericType) pixelType.createVariable();
+                        zero.setZero();
+                        volume = ConstantUtils.constantRandomAccessibleInterval(zero, 3, new FinalInterval(sizeX, sizeY, sizeZ));
+                    }
+                    for (int z=0; z<sizeZ; z++) {
+                        int planeIndex = (int) (z + sizeZ*(c + sizeC*t));
+                        addPlaneTasks(tileTasks, volume, z, planeIndex, pixelType, nResolutions);
                     }
                 }
-
-            // ----------------
-
-            //writer.saveBytes(iImage,arrayToSave);
-            /*
-            IImageScaler scaler = new SimpleImageScaler();
-
-            for (int i=1;i<resolutions;i++) {
-                writer.setResolution(i);
-                //int divScale = (int) Math.pow(scale,i);
-                int x = meta.getResolutionSizeX(iImage,i).getValue();
-                int y = meta.getResolutionSizeY(iImage,i).getValue();
-                System.out.println("i="+i+"; x="+x+"y="+y);
-                byte[] downsample = scaler.downsample(arrayToSave,
-                        (int) sizeX, (int) sizeY, Math.pow(scale,i),
-                        FormatTools.getBytesPerPixel(pt),
-                        false,
-                        false,
-                        1,
-                        false);
-                System.out.println("downsample.length="+downsample.length);
-                writer.saveBytes(iImage, downsample);
             }
-            */
+
+            // Tiles are read, converted and compressed by the workers, this thread writes them in order
+            final ExportProgress progress = new ExportProgress(totalTiles, records.size());
+            new TilePipeline<Tile>(nThreads, (maxTilesInFlight>0)?maxTilesInFlight:4*nThreads).run(tileTasks.iterator(), tile -> {
+                if (tile.bytes==null) return; // Already written, only read to build the next level
+                long offset = writer.writeTile(tile.plane, tile.resolution, tile.x, tile.y, tile.bytes);
+                checkpoint.write(new ExportCheckpoint.TileRecord(tile.plane, tile.resolution,
+                        writer.getTileIndex(tile.resolution, tile.x, tile.y), offset, tile.bytes.length));
+                releaseBuffer(tile.bytes);
+                progress.tileWritten(tile.rawSize);
+            });
+
+            // The IFDs are written on close : the checkpoint is only deleted once the file is complete
             cleanup();
-            System.out.println("Done");
+            checkpoint.delete();
+            progress.report(true);
+            LOGGER.info("Export of "+outputFile.getAbsolutePath()+" done");
         } catch (Exception e) {
             e.printStackTrace();
+            exception = e;
+            if (writer!=null) {
+                try {
+                    // Keeps what was written for a later resume
+                    saveCheckpoint();
+                    writer.abort();
+                    checkpoint.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
         }
 
     }
 
-    /** Close the file writer. */
-    private void cleanup() {
-        try {
-            writer.close();
+    /**
+     * Adds the tasks of all tiles of a plane and of its resolution levels.
+     *
+     * Each tile of a level is averaged into the next level while it is converted, so the pyramid
+     * is built as the full resolution streams through, without reading the source again.
+     * Lower levels are kept in disk cached images, which bounds the memory used. The tiles of a
+     * level wait until all tiles of the previous level have been averaged into it.
+     *
+     * @param tileTasks list the tasks are added to
+     * @param volume full resolution volume, zero min
+     * @param z slice of the plane in the volume
+     * @param planeIndex index of the plane in the file
+     * @param pixelType pixel type
+     * @param nResolutions number of resolution levels
+     */
+    void addPlaneTasks(List<Callable<Tile>> tileTasks, RandomAccessibleInterval volume, long z, int planeIndex, NumericType pixelType, int nResolutions) {
+        // When resuming, a complete level is only read again if a lower level needs to be built from it
+        boolean[] levelDone = new boolean[nResolutions];
+        for (int r=0; r<nResolutions; r++) {
+            levelDone[r] = doneTiles!=null;
+            if (doneTiles!=null) {
+                for (boolean done : doneTiles[planeIndex][r]) levelDone[r] &= done;
+            }
         }
-        catch (IOException e) {
-            System.err.println("Failed to close file writer.");
-            e.printStackTrace();
+        boolean[] levelNeeded = new boolean[nResolutions];
+        for (int r=nResolutions-2; r>=0; r--) {
+            levelNeeded[r] = levelNeeded[r+1]||!levelDone[r+1];
+        }
+
+        RandomAccessibleInterval level = volume;
+        long levelZ = z; // Downsampled levels have a single slice
+        CountDownLatch levelReady = new CountDownLatch(0);
+        for (int r=0; r<nResolutions; r++) {
+            if (levelDone[r]&&!levelNeeded[r]) break;
+
+            int width = (int) level.dimension(0);
+            int height = (int) level.dimension(1);
+
+            // Determined the number of tiles to read and write
+            int nXTiles = width / tileSizeX;
+            int nYTiles = height / tileSizeY;
+            if (nXTiles * tileSizeX != width) nXTiles++;
+            if (nYTiles * tileSizeY != height) nYTiles++;
+
+            RandomAccessibleInterval nextLevel = null;
+            CountDownLatch nextLevelReady = null;
+            if (levelNeeded[r]) {
+                final DiskCachedCellImgOptions factoryOptions = options()
+                        .cellDimensions( tileSizeX, tileSizeY, 1 );
+                nextLevel = new DiskCachedCellImgFactory( pixelType, factoryOptions ).create( width/scale, height/scale, 1 );
+                nextLevelReady = new CountDownLatch(nXTiles*nYTiles);
+            }
+
+            final RandomAccessibleInterval currentLevel = level;
+            final long currentZ = levelZ;
+            final RandomAccessibleInterval downsampledLevel = nextLevel;
+            final CountDownLatch currentLevelReady = levelReady;
+            final CountDownLatch downsampledLevelReady = nextLevelReady;
+            for (int y=0; y<nYTiles; y++) {
+                for (int x=0; x<nXTiles; x++) {
+                    // The x and y coordinates for the current tile
+                    int tileX = x * tileSizeX;
+                    int tileY = y * tileSizeY;
+                    // If the last tile row or column overlaps the image size then only a partial tile
+                    // is read or written. The tile size used is adjusted to account for any overlap.
+                    int effTileSizeX = (tileX + tileSizeX) < width ? tileSizeX : width - tileX;
+                    int effTileSizeY = (tileY + tileSizeY) < height ? tileSizeY : height - tileY;
+                    Tile tile = new Tile(planeIndex, r, tileX, tileY, effTileSizeX, effTileSizeY);
+                    boolean tileDone = (doneTiles!=null)&&(doneTiles[planeIndex][r][writer.getTileIndex(r, tileX, tileY)]);
+                    if (tileDone&&(downsampledLevel==null)) continue;
+                    tileTasks.add(() -> {
+                        currentLevelReady.await();
+                        if (downsampledLevel!=null) {
+                            downsampleTile(currentLevel, currentZ, downsampledLevel, tile, scale);
+                            downsampledLevelReady.countDown();
+                        }
+                        if (!tileDone) {
+                            byte[] bytes = readTile(currentLevel, currentZ, tile);
+                            tile.rawSize = bytes.length;
+                            tile.bytes = writer.compress(bytes, tile.w, tile.h);
+                            if (tile.bytes!=bytes) releaseBuffer(bytes);
+                        }
+                        return tile;
+                    });
+                }
+            }
+            level = nextLevel;
+            levelZ = 0;
+            levelReady = nextLevelReady;
         }
     }
 
+    /**
+     * Averages the pixels of a tile into the next resolution level. The tile position is a multiple
+     * of the scale factor, so tiles write disjoint pixels of the next level. RGB channels are averaged separately.
+     */
+    static void downsampleTile(RandomAccessibleInterval level, long z, RandomAccessibleInterval nextLevel, Tile tile, int scale) {
+        RandomAccess in = level.randomAccess();
+        RandomAccess out = nextLevel.randomAccess();
+        boolean isRGB = in.get() instanceof ARGBType;
+        long maxX = Math.min((tile.x+tile.w)/scale, nextLevel.dimension(0));
+        long maxY = Math.min((tile.y+tile.h)/scale, nextLevel.dimension(1));
+        double n = scale*scale;
+        for (long y = tile.y/scale; y<maxY; y++) {
+            for (long x = tile.x/scale; x<maxX; x++) {
+                double sum = 0, sumR = 0, sumG = 0, sumB = 0;
+                for (int dy=0; dy<scale; dy++) {
+                    for (int dx=0; dx<scale; dx++) {
+                        in.setPosition(new long[]{x*scale+dx, y*scale+dy, z});
+                        if (isRGB) {
+                            int v = ((ARGBType) in.get()).get();
+                            sumR += ARGBType.red(v);
+                            sumG += ARGBType.green(v);
+                            sumB += ARGBType.blue(v);
+                        } else {
+                            sum += ((RealType) in.get()).getRealDouble();
+                        }
+                    }
+                }
+                out.setPosition(new long[]{x, y, 0});
+                if (isRGB) {
+                    ((ARGBType) out.get()).set(ARGBType.rgba((int) Math.round(sumR/n), (int) Math.round(sumG/n), (int) Math.round(sumB/n), 255));
+                } else {
+                    ((RealType) out.get()).setReal(sum/n); // Rounded by integer types
+                }
+            }
+        }
+    }
+
+    /**
+     * Location of a tile in the file, and its bytes once converted and compressed
+     */
+    static class Tile {
+        final int plane;
+        final int resolution;
+        final int x, y, w, h;
+        byte[] bytes;
+        int rawSize;
+
+        Tile(int plane, int resolution, int x, int y, int w, int h) {
+            this.plane = plane;
+            this.resolution = resolution;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+        }
+    }
+
+    // Full tile buffers, reused once their tile is written
+    final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+
+    volatile int fullTileBufferSize = -1;
+
+    /**
+     * Converts a tile into a buffer : full tiles use recycled buffers, border tiles a buffer of their size
+     * @param level resolution level, zero min
+     * @param z slice of the plane in the level
+     */
+    byte[] readTile(RandomAccessibleInterval<?> level, long z, Tile tile) {
+        int bytesPerPixel = SourceToByteArray.getBytesPerPixel(Views.iterable(level).firstElement());
+        int size = tile.w*tile.h*bytesPerPixel;
+        byte[] buffer = null;
+        if (size==tileSizeX*tileSizeY*bytesPerPixel) {
+            fullTileBufferSize = size;
+            buffer = freeBuffers.poll();
+        }
+        if ((buffer==null)||(buffer.length!=size)) {
+            buffer = new byte[size];
+        }
+        SourceToByteArray.toByteArray(level, SourceToByteArray.getTileInterval(tile.x, tile.y, z, tile.w, tile.h), buffer);
+        return buffer;
+    }
+
+    void releaseBuffer(byte[] buffer) {
+        if (buffer.length==fullTileBufferSize) freeBuffers.add(buffer);
+    }
+
+    /**
+     * @return the image, with its origin at zero, unwrapped if it already is : cell images can then be copied in bulk
+     */
+    static RandomAccessibleInterval zeroMin(RandomAccessibleInterval rai) {
+        for (int d=0;d<rai.numDimensions();d++) {
+            if (rai.min(d)!=0) return Views.zeroMin(rai);
+        }
+        return rai;
+    }
+
+    /**
+     * Forces the tiles written to the disk, then saves their records
+     */
+    void saveCheckpoint() throws IOException {
+        writer.force();
+        checkpoint.flush();
+    }
+
+    /**
+     * Tiles written, throughput and remaining time, reported to the SciJava status and to the listeners
+     */
+    class ExportProgress {
+        final long totalTiles;
+        final long startTime = System.currentTimeMillis();
+        long tilesDone;
+        long tilesWritten = 0;
+        long bytesConverted = 0;
+        long lastReport = 0;
+        long lastCheckpoint = System.currentTimeMillis();
+
+        ExportProgress(long totalTiles, long tilesDone) {
+            this.totalTiles = totalTiles;
+            this.tilesDone = tilesDone;
+        }
+
+        void tileWritten(long rawSize) throws IOException {
+            tilesDone++;
+            tilesWritten++;
+            bytesConverted += rawSize;
+            long now = System.currentTimeMillis();
+            if (now-lastCheckpoint>2000) {
+                saveCheckpoint();
+                lastCheckpoint = now;
+            }
+            report(false);
+        }
+
+        void report(boolean force) {
+            long now = System.currentTimeMillis();
+            if ((!force)&&(now-lastReport<500)) return;
+            lastReport = now;
+            double elapsedInS = Math.max(1, now-startTime)/1000.0;
+            double megaBytesPerSecond = bytesConverted/1e6/elapsedInS;
+            long eta = tilesWritten>0 ? (long) ((totalTiles-tilesDone)*elapsedInS/tilesWritten) : -1;
+            if (statusService!=null) {
+                statusService.showStatus((int) tilesDone, (int) totalTiles,
+                        String.format("Export %d/%d tiles, %.1f MB/s, %d s remaining", tilesDone, totalTiles, megaBytesPerSecond, eta));
+            }
+            for (ExportProgressListener listener : progressListeners) {
+                listener.progress(tilesDone, totalTiles, megaBytesPerSecond, eta);
+            }
+        }
+    }
+
+    /** Close the file writer, failures are thrown : the file is not valid without its IFDs */
+    private void cleanup() throws IOException {
+        if (writer==null) return;
+        writer.close();
+    }
+
     static public ArrayList<Integer> expressionToArray(String expression, Function<Integer, Integer> fbounds) {
         String[] splitIndexes = expression.split(",");
         ArrayList<Integer> arrayOfIndexes = new ArrayList<>();
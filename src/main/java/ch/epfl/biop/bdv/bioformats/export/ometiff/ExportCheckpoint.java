@@ -0,0 +1,112 @@
+package ch.epfl.biop.bdv.bioformats.export.ometiff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the tiles already written in a file, so that an interrupted export can be resumed.
+ *
+ * The checkpoint file starts with a signature of the export parameters, followed by one record per
+ * written tile : plane, resolution, tile index, offset and size in the output file. Records are
+ * flushed after the output file is forced to disk, so a recorded tile is always complete.
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+public class ExportCheckpoint {
+
+    public static class TileRecord {
+        public final int plane, resolution, tileIndex;
+        public final long offset, byteCount;
+
+        public TileRecord(int plane, int resolution, int tileIndex, long offset, long byteCount) {
+            this.plane = plane;
+            this.resolution = resolution;
+            this.tileIndex = tileIndex;
+            this.offset = offset;
+            this.byteCount = byteCount;
+        }
+    }
+
+    final File file;
+
+    final String signature;
+
+    DataOutputStream out;
+
+    /**
+     * @param file checkpoint file
+     * @param signature description of the export parameters, a checkpoint is only reused with the same signature
+     */
+    public ExportCheckpoint(File file, String signature) {
+        this.file = file;
+        this.signature = signature;
+    }
+
+    /**
+     * @return the tiles recorded by a previous export with the same signature, an empty list if there is none
+     */
+    public List<TileRecord> load() {
+        List<TileRecord> records = new ArrayList<>();
+        if (!file.exists()) return records;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (!in.readUTF().equals(signature)) return records;
+            while (true) {
+                records.add(new TileRecord(in.readInt(), in.readInt(), in.readInt(), in.readLong(), in.readLong()));
+            }
+        } catch (EOFException e) {
+            // End of the records, the last one may be incomplete and is ignored
+        } catch (IOException e) {
+            e.printStackTrace();
+            records.clear();
+        }
+        return records;
+    }
+
+    /**
+     * Starts a new checkpoint file, with the records kept from a previous export
+     * @param records tiles already written
+     */
+    public void start(List<TileRecord> records) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeUTF(signature);
+        for (TileRecord record : records) {
+            write(record);
+        }
+        out.flush();
+    }
+
+    public void write(TileRecord record) throws IOException {
+        out.writeInt(record.plane);
+        out.writeInt(record.resolution);
+        out.writeInt(record.tileIndex);
+        out.writeLong(record.offset);
+        out.writeLong(record.byteCount);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        if (out!=null) out.close();
+    }
+
+    /**
+     * Removes the checkpoint once the export is complete
+     */
+    public void delete() throws IOException {
+        close();
+        file.delete();
+    }
+
+}
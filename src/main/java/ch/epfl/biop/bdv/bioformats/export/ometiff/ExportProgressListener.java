@@ -0,0 +1,19 @@
+package ch.epfl.biop.bdv.bioformats.export.ometiff;
+
+/**
+ * Notified while tiles are written during an export
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+public interface ExportProgressListener {
+
+    /**
+     * @param tilesDone tiles written, including the ones of a resumed export
+     * @param totalTiles tiles of the export
+     * @param megaBytesPerSecond uncompressed data converted per second since the export started
+     * @param etaInSeconds estimated remaining time, -1 if unknown
+     */
+    void progress(long tilesDone, long totalTiles, double megaBytesPerSecond, long etaInSeconds);
+
+}
@@ -1,59 +1,195 @@
 package ch.epfl.biop.bdv.bioformats.export.ometiff;
 
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
 import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.ShortType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
- * Limited to 4Gb....
+ * Converts tiles of images into little endian byte arrays, in x, y, z order.
+ * ARGB pixels are converted to 3 interleaved RGB samples.
+ *
+ * When the image is a cell image and the tile is within a single cell, rows are copied
+ * in bulk from the cell storage array. Otherwise pixels are copied with a cursor.
  */
 
 public class SourceToByteArray {
 
-    static public byte[] raiARGBToByteArray(RandomAccessibleInterval<ARGBType> rai) {
-        return null;
+    /**
+     * @param type pixel type
+     * @return number of bytes per pixel, 0 if the type is not supported
+     */
+    public static int getBytesPerPixel(Object type) {
+        if ((type instanceof UnsignedByteType)||(type instanceof ByteType)) return 1;
+        if ((type instanceof UnsignedShortType)||(type instanceof ShortType)) return 2;
+        if ((type instanceof UnsignedIntType)||(type instanceof IntType)||(type instanceof FloatType)) return 4;
+        if (type instanceof DoubleType) return 8;
+        if (type instanceof ARGBType) return 3;
+        return 0;
     }
 
-    static public byte[] raiUnsignedByteTypeToByteArray(RandomAccessibleInterval<UnsignedByteType> rai, UnsignedByteType t) {
-        Cursor<UnsignedByteType> c = Views.flatIterable(rai).cursor();
-        long nBytes = rai.dimension(0)*rai.dimension(1)*rai.dimension(2);
+    /**
+     * Converts a tile of an image
+     * @param img image, its tile is read
+     * @param tile tile of the image
+     * @param out buffer of at least tile size * bytes per pixel, filled from index 0
+     * @return number of bytes written
+     */
+    public static int toByteArray(RandomAccessibleInterval<?> img, Interval tile, byte[] out) {
+        Object type = Views.iterable(img).firstElement();
+        int bytesPerPixel = getBytesPerPixel(type);
+        long nBytes = Views.iterable(Views.interval(img, tile)).size()*bytesPerPixel;
+        if (bytesPerPixel==0) {
+            throw new UnsupportedOperationException("Unsupported pixel type "+type.getClass().getSimpleName());
+        }
+        if (nBytes>out.length) {
+            throw new IllegalArgumentException("Buffer too small : "+out.length+" bytes for a tile of "+nBytes+" bytes");
+        }
+        if (!copyFromCell(img, tile, out, type)) {
+            copyWithCursor(Views.interval(img, tile), out, type);
+        }
+        return (int) nBytes;
+    }
 
+    /**
+     * Converts a tile of an image into a new array
+     */
+    public static byte[] toByteArray(RandomAccessibleInterval<?> img, Interval tile) {
+        long nBytes = Views.iterable(Views.interval(img, tile)).size()*getBytesPerPixel(Views.iterable(img).firstElement());
         if (nBytes>Integer.MAX_VALUE) {
-            System.err.println("Too many bytes during export!");
-            return null;
+            throw new IllegalArgumentException("Tile too big for a byte array : "+nBytes+" bytes");
         }
-
         byte[] out = new byte[(int) nBytes];
-
-        for (int i=0;i<nBytes;i++) {
-            out[i]=c.next().getByte();
-        }
+        toByteArray(img, tile, out);
         return out;
     }
 
+    static public byte[] raiARGBToByteArray(RandomAccessibleInterval<ARGBType> rai) {
+        return toByteArray(rai, rai);
+    }
+
+    static public byte[] raiUnsignedByteTypeToByteArray(RandomAccessibleInterval<UnsignedByteType> rai, UnsignedByteType t) {
+        return toByteArray(rai, rai);
+    }
+
     static public byte[] raiUnsignedShortTypeToByteArray(RandomAccessibleInterval<UnsignedShortType> rai, UnsignedShortType t) {
-        Cursor<UnsignedShortType> c = Views.flatIterable(rai).cursor();
-        int nBytesPerPixel = 2;
-        long nBytes = rai.dimension(0)*rai.dimension(1)*rai.dimension(2)*nBytesPerPixel;
+        return toByteArray(rai, rai);
+    }
 
-        if (nBytes>Integer.MAX_VALUE) {
-            System.err.println("Too many bytes during export!");
-            return null;
+    /**
+     * Bulk copy of the rows of the tile when it lies within a single cell
+     * @return false if the image is not a cell image or the tile spans several cells
+     */
+    static boolean copyFromCell(RandomAccessibleInterval<?> img, Interval tile, byte[] out, Object type) {
+        if (!(img instanceof AbstractCellImg)) return false;
+        if (tile.numDimensions()!=3) return false;
+        AbstractCellImg cellImg = (AbstractCellImg) img;
+
+        long[] cellPosition = new long[3];
+        long[] cellPositionMax = new long[3];
+        cellImg.getCellGrid().getCellPosition(new long[]{tile.min(0), tile.min(1), tile.min(2)}, cellPosition);
+        cellImg.getCellGrid().getCellPosition(new long[]{tile.max(0), tile.max(1), tile.max(2)}, cellPositionMax);
+        for (int d=0;d<3;d++) {
+            if (cellPosition[d]!=cellPositionMax[d]) return false;
         }
 
-        byte[] out = new byte[(int) nBytes];
+        RandomAccess<Cell<?>> cells = cellImg.getCells().randomAccess();
+        cells.setPosition(cellPosition);
+        Cell<?> cell = cells.get();
+        if (!(cell.getData() instanceof ArrayDataAccess)) return false;
+        Object storage = ((ArrayDataAccess<?>) cell.getData()).getCurrentStorageArray();
 
-        for (int i=0;i<nBytes;i+=nBytesPerPixel) {
-            int v = c.next().get();
-            //int v = ((bytes[idxPx + 1] & 0xff) << 8) | (bytes[idxPx] & 0xff);
-            out[i]  =(byte)(v);
-            out[i+1]=(byte)(v >>> 8);
+        int cellSizeX = (int) cell.dimension(0);
+        int cellSizeY = (int) cell.dimension(1);
+        int rowLength = (int) tile.dimension(0);
+        ByteBuffer buffer = ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN);
+        for (long z = tile.min(2); z<=tile.max(2); z++) {
+            for (long y = tile.min(1); y<=tile.max(1); y++) {
+                int offset = (int) (((z-cell.min(2))*cellSizeY + (y-cell.min(1)))*cellSizeX + (tile.min(0)-cell.min(0)));
+                if (!copyRow(storage, offset, rowLength, buffer, type)) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends a row of the storage array to the buffer
+     * @return false if the storage array type is not handled
+     */
+    static boolean copyRow(Object storage, int offset, int length, ByteBuffer buffer, Object type) {
+        if ((storage instanceof int[])&&(type instanceof ARGBType)) {
+            int[] argb = (int[]) storage;
+            for (int i=offset;i<offset+length;i++) {
+                buffer.put((byte) ARGBType.red(argb[i]));
+                buffer.put((byte) ARGBType.green(argb[i]));
+                buffer.put((byte) ARGBType.blue(argb[i]));
+            }
+        } else if (storage instanceof byte[]) {
+            buffer.put((byte[]) storage, offset, length);
+        } else if (storage instanceof short[]) {
+            buffer.asShortBuffer().put((short[]) storage, offset, length);
+            buffer.position(buffer.position()+length*2);
+        } else if (storage instanceof float[]) {
+            buffer.asFloatBuffer().put((float[]) storage, offset, length);
+            buffer.position(buffer.position()+length*4);
+        } else if (storage instanceof double[]) {
+            buffer.asDoubleBuffer().put((double[]) storage, offset, length);
+            buffer.position(buffer.position()+length*8);
+        } else if (storage instanceof int[]) {
+            buffer.asIntBuffer().put((int[]) storage, offset, length);
+            buffer.position(buffer.position()+length*4);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    static void copyWithCursor(RandomAccessibleInterval<?> rai, byte[] out, Object type) {
+        ByteBuffer buffer = ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN);
+        Cursor<?> c = Views.flatIterable(rai).cursor();
+        if (type instanceof ARGBType) {
+            while (c.hasNext()) {
+                int v = ((ARGBType) c.next()).get();
+                buffer.put((byte) ARGBType.red(v));
+                buffer.put((byte) ARGBType.green(v));
+                buffer.put((byte) ARGBType.blue(v));
+            }
+        } else if ((type instanceof UnsignedByteType)||(type instanceof ByteType)) {
+            while (c.hasNext()) buffer.put((byte) ((RealType<?>) c.next()).getRealDouble());
+        } else if ((type instanceof UnsignedShortType)||(type instanceof ShortType)) {
+            while (c.hasNext()) buffer.putShort((short) ((RealType<?>) c.next()).getRealDouble());
+        } else if ((type instanceof UnsignedIntType)||(type instanceof IntType)) {
+            while (c.hasNext()) buffer.putInt((int) (long) ((RealType<?>) c.next()).getRealDouble());
+        } else if (type instanceof FloatType) {
+            while (c.hasNext()) buffer.putFloat(((FloatType) c.next()).get());
+        } else if (type instanceof DoubleType) {
+            while (c.hasNext()) buffer.putDouble(((DoubleType) c.next()).get());
         }
-        return out;
     }
+
+    /**
+     * @return the interval of a tile of a plane
+     */
+    public static Interval getTileInterval(long x, long y, long z, long w, long h) {
+        return new FinalInterval(new long[]{x, y, z}, new long[]{x+w-1, y+h-1, z});
+    }
+
 }
@@ -0,0 +1,70 @@
+package ch.epfl.biop.bdv.bioformats.export.ometiff;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes tiles on a pool of workers and hands them to a single consumer, in the order of the tasks.
+ *
+ * At most capacity tiles are computed ahead of the consumer, which bounds the memory used
+ * whatever the image size. The consumer runs in the calling thread : it is the only one
+ * accessing the file writer.
+ *
+ * @param <T> tile class
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+public class TilePipeline<T> {
+
+    public interface TileConsumer<T> {
+        void accept(T tile) throws Exception;
+    }
+
+    final int nThreads;
+
+    final int capacity;
+
+    /**
+     * @param nThreads number of workers computing the tiles
+     * @param capacity maximal number of tiles computed or being computed ahead of the consumer
+     */
+    public TilePipeline(int nThreads, int capacity) {
+        this.nThreads = Math.max(1, nThreads);
+        this.capacity = Math.max(this.nThreads, capacity);
+    }
+
+    /**
+     * Runs all tasks and consumes their tiles in order
+     * @param tasks tile tasks, in the order expected by the consumer
+     * @param consumer called in the calling thread, once per tile
+     * @throws Exception the first exception of a task or of the consumer
+     */
+    public void run(Iterator<? extends Callable<T>> tasks, TileConsumer<T> consumer) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        ArrayDeque<Future<T>> inFlight = new ArrayDeque<>();
+        try {
+            while (tasks.hasNext()||!inFlight.isEmpty()) {
+                while (tasks.hasNext()&&(inFlight.size()<capacity)) {
+                    inFlight.add(executor.submit(tasks.next()));
+                }
+                T tile;
+                try {
+                    tile = inFlight.poll().get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+                    throw e;
+                }
+                consumer.accept(tile);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
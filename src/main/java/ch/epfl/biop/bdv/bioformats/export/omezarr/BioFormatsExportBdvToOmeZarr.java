@@ -0,0 +1,227 @@
+package ch.epfl.biop.bdv.bioformats.export.omezarr;
+
+import bdv.util.BdvHandle;
+import bdv.viewer.Source;
+import ch.epfl.biop.bdv.bioformats.export.ExportPartition;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.Volatile;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static ch.epfl.biop.bdv.bioformats.export.ometiff.BioFormatsExportBdvToOmeTiff.expressionToArray;
+
+/**
+ * Saves sources of a BigDataViewer window into an OME-Zarr container (NGFF 0.5, zarr v3, sharded).
+ *
+ * The selected sources are the channels of the image : they should have the same pixel type
+ * and the same resolution levels. All resolution levels of the sources are written. The scale and
+ * translation of each level are taken from the transform of the first source ; rotations and shears
+ * can't be represented in NGFF multiscales and are ignored.
+ *
+ * The export can be shared between processes, see {@link ExportPartition} : each process
+ * writes the shards of its partition, then a last run with 'merge/N' writes the metadata.
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+@Plugin(type = Command.class,menuPath = "BDV_SciJava>Export>Save Sources as OME-Zarr (SciJava)")
+public class BioFormatsExportBdvToOmeZarr implements Command {
+
+    @Parameter(label="Sources to save ('2,3-5'), starts at 0")
+    String index_srcs_to_save;
+
+    @Parameter(label = "BigDataViewer Frame")
+    public BdvHandle bdv_h;
+
+    @Parameter(label = "output directory, ome.zarr", style = "save")
+    public File outputDirectory;
+
+    @Parameter(label = "number of timepoints")
+    public int numberOfTimepoints = 1;
+
+    @Parameter
+    public int chunkSizeX = 128;
+
+    @Parameter
+    public int chunkSizeY = 128;
+
+    @Parameter
+    public int chunkSizeZ = 32;
+
+    @Parameter(label = "chunks per shard in X")
+    public int chunksPerShardX = 8;
+
+    @Parameter(label = "chunks per shard in Y")
+    public int chunksPerShardY = 8;
+
+    @Parameter(label = "chunks per shard in Z")
+    public int chunksPerShardZ = 1;
+
+    @Parameter(choices = {"raw", "gzip"})
+    public String compression = "gzip";
+
+    @Parameter(label = "number of threads")
+    public int nThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(required = false, label = "partition 'i/N' written by this process, 'merge/N' once all are done, empty for a single process")
+    public String partition = "";
+
+    @Parameter
+    public boolean verbose;
+
+    public Consumer<String> log = s -> {};
+
+    public Consumer<String> errlog = s -> System.err.println(s);
+
+    @Override
+    public void run() {
+        if (verbose) {
+            log = s -> System.out.println(s);
+        }
+
+        List<Source<?>> srcs = expressionToArray(index_srcs_to_save, i -> {
+                if (i>=0) {
+                    return i;
+                } else {
+                    return bdv_h.getViewerPanel().getState().getSources().size()+i;
+                }})
+                .stream()
+                .map(idx -> bdv_h.getViewerPanel().getState().getSources().get(idx).getSpimSource())
+                .collect(Collectors.toList());
+
+        if (srcs.size()==0) {
+            errlog.accept("No source selected");
+            return;
+        }
+
+        Source<?> model = srcs.get(0);
+        Object type = model.getType();
+        if ((type instanceof Volatile)||(OmeZarrWriter.getDataType(type)==null)) {
+            errlog.accept("Pixel type "+type.getClass().getSimpleName()+" unsupported");
+            return;
+        }
+        for (Source<?> src : srcs) {
+            if ((!src.getType().getClass().equals(type.getClass()))||(src.getNumMipmapLevels()!=model.getNumMipmapLevels())) {
+                errlog.accept("Source "+src.getName()+" differs from "+model.getName()+" in pixel type or resolution levels, all channels should match");
+                return;
+            }
+        }
+
+        try {
+            export((List) srcs);
+            log.accept("Done");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    <T extends RealType<T> & NativeType<T>> void export(List<Source<T>> srcs) throws Exception {
+        long start = System.currentTimeMillis();
+        OmeZarrWriter writer = new OmeZarrWriter(outputDirectory,
+                new int[]{chunkSizeX, chunkSizeY, chunkSizeZ},
+                new int[]{chunksPerShardX, chunksPerShardY, chunksPerShardZ},
+                compression, nThreads);
+        writer.log = log;
+
+        // Workers of a partitioned export write their shards, the merge step writes the metadata
+        ExportPartition exportPartition = ExportPartition.parse(partition);
+        boolean writeData = (exportPartition==null)||(!exportPartition.isMerge());
+        boolean writeMetadata = (exportPartition==null)||(exportPartition.isMerge());
+        if (exportPartition!=null) {
+            String signature = getSignature(srcs);
+            if (exportPartition.isMerge()) {
+                exportPartition.checkAllDone(outputDirectory, signature);
+            } else {
+                exportPartition.start(outputDirectory, signature);
+            }
+            writer.partition = exportPartition;
+        }
+
+        Source<T> model = srcs.get(0);
+        int tModel = 0;
+        while ((tModel<numberOfTimepoints-1)&&(!model.isPresent(tModel))) tModel++;
+
+        List<OmeZarrWriter.LevelGeometry> levels = new ArrayList<>();
+        for (int level=0;level<model.getNumMipmapLevels();level++) {
+            AffineTransform3D transform = new AffineTransform3D();
+            model.getSourceTransform(tModel, level, transform);
+            levels.add(getGeometry(transform));
+            long[] dims = Intervals.dimensionsAsLongArray(model.getSource(tModel, level));
+            if (writeMetadata) writer.createLevel(level, dims, srcs.size(), numberOfTimepoints, model.getType());
+        }
+
+        if (writeMetadata) {
+            String unit = (model.getVoxelDimensions()!=null)?getNgffUnit(model.getVoxelDimensions().unit()):null;
+            writer.writeMetadata(model.getName(), srcs.stream().map(Source::getName).collect(Collectors.toList()), levels, unit);
+        }
+
+        for (int t=0;(t<numberOfTimepoints)&&(writeData);t++) {
+            for (int c=0;c<srcs.size();c++) {
+                Source<T> src = srcs.get(c);
+                if (!src.isPresent(t)) continue; // Missing shards are read as the fill value
+                for (int level=0;level<src.getNumMipmapLevels();level++) {
+                    RandomAccessibleInterval<T> image = src.getSource(t, level);
+                    writer.writeLevel(level, c, t, image);
+                }
+            }
+        }
+
+        if ((exportPartition!=null)&&(!exportPartition.isMerge())) {
+            exportPartition.done(outputDirectory, writer.getNumberOfWrittenShards(), (System.currentTimeMillis()-start)/1000.0);
+        }
+    }
+
+    /**
+     * @return description of the export, identical for all processes of a partitioned export
+     */
+    <T extends RealType<T> & NativeType<T>> String getSignature(List<Source<T>> srcs) {
+        StringBuilder signature = new StringBuilder();
+        for (Source<T> src : srcs) {
+            signature.append(src.getName()).append("|").append(src.getNumMipmapLevels()).append("|");
+        }
+        signature.append(numberOfTimepoints).append("|").append(chunkSizeX).append(",").append(chunkSizeY).append(",").append(chunkSizeZ)
+                .append("|").append(chunksPerShardX).append(",").append(chunksPerShardY).append(",").append(chunksPerShardZ)
+                .append("|").append(compression);
+        return signature.toString();
+    }
+
+    /**
+     * @return scale and translation of the transform, rotations are ignored
+     */
+    static OmeZarrWriter.LevelGeometry getGeometry(AffineTransform3D transform) {
+        double[] scale = new double[3];
+        double[] translation = new double[3];
+        for (int d=0;d<3;d++) {
+            scale[d] = Math.sqrt(transform.get(0,d)*transform.get(0,d)+transform.get(1,d)*transform.get(1,d)+transform.get(2,d)*transform.get(2,d));
+            translation[d] = transform.get(d,3);
+        }
+        return new OmeZarrWriter.LevelGeometry(scale, translation);
+    }
+
+    /**
+     * @return the unit name as expected by NGFF, null if it's not a known length unit
+     */
+    public static String getNgffUnit(String unit) {
+        if (unit==null) return null;
+        switch (unit.trim().toLowerCase()) {
+            case "nm": case "nanometer": case "nanometre": return "nanometer";
+            case "um": case "\u00b5m": case "\u03bcm": case "micron": case "micrometer": case "micrometre": return "micrometer";
+            case "mm": case "millimeter": case "millimetre": return "millimeter";
+            case "cm": case "centimeter": case "centimetre": return "centimeter";
+            case "m": case "meter": case "metre": return "meter";
+            default: return null;
+        }
+    }
+
+}
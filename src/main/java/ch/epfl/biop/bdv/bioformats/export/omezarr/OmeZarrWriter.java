@@ -0,0 +1,436 @@
+package ch.epfl.biop.bdv.bioformats.export.omezarr;
+
+import ch.epfl.biop.bdv.bioformats.export.ExportPartition;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a multiscale image into an OME-Zarr (NGFF 0.5, zarr v3) container.
+ *
+ * Arrays have the t, c, z, y, x axes. Chunks are grouped into shards with the zarr v3
+ * sharding codec : a shard is a single file containing its chunks followed by an index
+ * of their offsets and sizes, which keeps the number of files low on big datasets.
+ *
+ * Shards are written by a pool of workers, each worker holding a single shard in memory.
+ * When the export is shared between processes, a writer only writes the shards of its
+ * {@link ExportPartition}, the metadata being written by the merge step.
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+public class OmeZarrWriter {
+
+    public static final String[] COMPRESSIONS = {"raw", "gzip"};
+
+    static final long EMPTY_CHUNK = 0xFFFFFFFFFFFFFFFFL;
+
+    final File zarrDirectory;
+
+    final int[] chunkSize;
+
+    final int[] chunksPerShard;
+
+    final boolean gzip;
+
+    final int nThreads;
+
+    final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    public Consumer<String> log = s -> {};
+
+    // Shards written by this process when the export is shared between processes, null for all shards
+    public ExportPartition partition;
+
+    // Index of the first shard of the next level written, shards are numbered over all written levels
+    long shardIndexOffset = 0;
+
+    final AtomicLong numberOfWrittenShards = new AtomicLong();
+
+    /**
+     * @param zarrDirectory root of the image, created if it does not exist
+     * @param chunkSize chunk size in x, y and z
+     * @param chunksPerShard number of chunks per shard in x, y and z
+     * @param compression one of {@link OmeZarrWriter#COMPRESSIONS}
+     * @param nThreads number of shard writers
+     */
+    public OmeZarrWriter(File zarrDirectory, int[] chunkSize, int[] chunksPerShard, String compression, int nThreads) {
+        this.zarrDirectory = zarrDirectory;
+        this.chunkSize = chunkSize;
+        this.chunksPerShard = chunksPerShard;
+        this.gzip = "gzip".equals(compression);
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    /**
+     * Image geometry of a resolution level, in the physical space
+     */
+    public static class LevelGeometry {
+        public final double[] scale; // x, y, z
+        public final double[] translation; // x, y, z
+
+        public LevelGeometry(double[] scale, double[] translation) {
+            this.scale = scale;
+            this.translation = translation;
+        }
+    }
+
+    /**
+     * Writes the root group metadata (NGFF multiscales and omero channels)
+     * @param name image name
+     * @param channelNames name of each channel
+     * @param levels geometry of each resolution level
+     * @param unit space unit, null if unknown
+     * @throws IOException
+     */
+    public void writeMetadata(String name, List<String> channelNames, List<LevelGeometry> levels, String unit) throws IOException {
+        List<Map<String,Object>> axes = new ArrayList<>();
+        axes.add(axis("t", "time", null));
+        axes.add(axis("c", "channel", null));
+        axes.add(axis("z", "space", unit));
+        axes.add(axis("y", "space", unit));
+        axes.add(axis("x", "space", unit));
+
+        List<Map<String,Object>> datasets = new ArrayList<>();
+        for (int level=0;level<levels.size();level++) {
+            LevelGeometry geometry = levels.get(level);
+            Map<String,Object> scale = new LinkedHashMap<>();
+            scale.put("type", "scale");
+            scale.put("scale", new double[]{1, 1, geometry.scale[2], geometry.scale[1], geometry.scale[0]});
+            Map<String,Object> translation = new LinkedHashMap<>();
+            translation.put("type", "translation");
+            translation.put("translation", new double[]{0, 0, geometry.translation[2], geometry.translation[1], geometry.translation[0]});
+            Map<String,Object> dataset = new LinkedHashMap<>();
+            dataset.put("path", getPathName(level));
+            dataset.put("coordinateTransformations", Arrays.asList(scale, translation));
+            datasets.add(dataset);
+        }
+
+        Map<String,Object> multiscale = new LinkedHashMap<>();
+        multiscale.put("name", name);
+        multiscale.put("axes", axes);
+        multiscale.put("datasets", datasets);
+
+        List<Map<String,Object>> channels = new ArrayList<>();
+        for (String channelName : channelNames) {
+            Map<String,Object> channel = new LinkedHashMap<>();
+            channel.put("label", channelName);
+            channel.put("active", true);
+            channels.add(channel);
+        }
+        Map<String,Object> omero = new LinkedHashMap<>();
+        omero.put("channels", channels);
+
+        Map<String,Object> ome = new LinkedHashMap<>();
+        ome.put("version", "0.5");
+        ome.put("multiscales", Arrays.asList(multiscale));
+        ome.put("omero", omero);
+
+        Map<String,Object> attributes = new LinkedHashMap<>();
+        attributes.put("ome", ome);
+
+        Map<String,Object> group = new LinkedHashMap<>();
+        group.put("zarr_format", 3);
+        group.put("node_type", "group");
+        group.put("attributes", attributes);
+
+        writeJson(new File(zarrDirectory, "zarr.json"), group);
+    }
+
+    static Map<String,Object> axis(String name, String type, String unit) {
+        Map<String,Object> axis = new LinkedHashMap<>();
+        axis.put("name", name);
+        axis.put("type", type);
+        if (unit!=null) axis.put("unit", unit);
+        return axis;
+    }
+
+    public static String getPathName(int level) {
+        return String.format("s%d", level);
+    }
+
+    /**
+     * Writes the array metadata of a resolution level
+     * @param level resolution level
+     * @param dims dimensions in x, y, z
+     * @param nChannels
+     * @param nTimepoints
+     * @param type pixel type
+     */
+    public <T extends RealType<T> & NativeType<T>> void createLevel(int level, long[] dims, int nChannels, int nTimepoints, T type) throws IOException {
+        File levelDirectory = new File(zarrDirectory, getPathName(level));
+        levelDirectory.mkdirs();
+
+        Map<String,Object> endian = new LinkedHashMap<>();
+        endian.put("endian", "little");
+        Map<String,Object> bytesCodec = new LinkedHashMap<>();
+        bytesCodec.put("name", "bytes");
+        bytesCodec.put("configuration", endian);
+
+        List<Map<String,Object>> chunkCodecs = new ArrayList<>();
+        chunkCodecs.add(bytesCodec);
+        if (gzip) {
+            Map<String,Object> gzipLevel = new LinkedHashMap<>();
+            gzipLevel.put("level", 5);
+            Map<String,Object> gzipCodec = new LinkedHashMap<>();
+            gzipCodec.put("name", "gzip");
+            gzipCodec.put("configuration", gzipLevel);
+            chunkCodecs.add(gzipCodec);
+        }
+
+        Map<String,Object> shardingConfiguration = new LinkedHashMap<>();
+        shardingConfiguration.put("chunk_shape", new long[]{1, 1, chunkSize[2], chunkSize[1], chunkSize[0]});
+        shardingConfiguration.put("codecs", chunkCodecs);
+        shardingConfiguration.put("index_codecs", Arrays.asList(bytesCodec));
+        shardingConfiguration.put("index_location", "end");
+        Map<String,Object> shardingCodec = new LinkedHashMap<>();
+        shardingCodec.put("name", "sharding_indexed");
+        shardingCodec.put("configuration", shardingConfiguration);
+
+        int[] shardSize = getShardSize();
+        Map<String,Object> gridConfiguration = new LinkedHashMap<>();
+        gridConfiguration.put("chunk_shape", new long[]{1, 1, shardSize[2], shardSize[1], shardSize[0]});
+        Map<String,Object> chunkGrid = new LinkedHashMap<>();
+        chunkGrid.put("name", "regular");
+        chunkGrid.put("configuration", gridConfiguration);
+
+        Map<String,Object> separator = new LinkedHashMap<>();
+        separator.put("separator", "/");
+        Map<String,Object> chunkKeyEncoding = new LinkedHashMap<>();
+        chunkKeyEncoding.put("name", "default");
+        chunkKeyEncoding.put("configuration", separator);
+
+        Map<String,Object> array = new LinkedHashMap<>();
+        array.put("zarr_format", 3);
+        array.put("node_type", "array");
+        array.put("shape", new long[]{nTimepoints, nChannels, dims[2], dims[1], dims[0]});
+        array.put("data_type", getDataType(type));
+        array.put("chunk_grid", chunkGrid);
+        array.put("chunk_key_encoding", chunkKeyEncoding);
+        array.put("fill_value", 0);
+        array.put("codecs", Arrays.asList(shardingCodec));
+        array.put("dimension_names", new String[]{"t", "c", "z", "y", "x"});
+
+        writeJson(new File(levelDirectory, "zarr.json"), array);
+    }
+
+    int[] getShardSize() {
+        int[] shardSize = new int[3];
+        for (int d=0;d<3;d++) shardSize[d] = chunkSize[d]*chunksPerShard[d];
+        return shardSize;
+    }
+
+    void writeJson(File file, Object content) throws IOException {
+        file.getParentFile().mkdirs();
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            gson.toJson(content, writer);
+        }
+    }
+
+    public static String getDataType(Object type) {
+        if (type instanceof UnsignedByteType) return "uint8";
+        if (type instanceof ByteType) return "int8";
+        if (type instanceof UnsignedShortType) return "uint16";
+        if (type instanceof ShortType) return "int16";
+        if (type instanceof UnsignedIntType) return "uint32";
+        if (type instanceof IntType) return "int32";
+        if (type instanceof UnsignedLongType) return "uint64";
+        if (type instanceof LongType) return "int64";
+        if (type instanceof FloatType) return "float32";
+        if (type instanceof DoubleType) return "float64";
+        return null;
+    }
+
+    /**
+     * Writes all shards of a channel and timepoint of a resolution level, in parallel
+     * @param level resolution level
+     * @param channel channel index
+     * @param timepoint timepoint index
+     * @param image image of the level, in x, y, z
+     */
+    public <T extends RealType<T> & NativeType<T>> void writeLevel(int level, int channel, int timepoint, RandomAccessibleInterval<T> image) throws IOException {
+        final RandomAccessibleInterval<T> zeroMinImage = Views.zeroMin(image);
+        final long[] dims = new long[3];
+        zeroMinImage.dimensions(dims);
+        final int[] shardSize = getShardSize();
+        final long[] nShards = new long[3];
+        long nTotal = 1;
+        for (int d=0;d<3;d++) {
+            nShards[d] = (dims[d]-1)/shardSize[d]+1;
+            nTotal*=nShards[d];
+        }
+        final long nTotalShards = nTotal;
+        final AtomicLong nextShard = new AtomicLong();
+        final long firstShardIndex = shardIndexOffset;
+        shardIndexOffset += nTotalShards;
+
+        log.accept("Writing "+getPathName(level)+" c="+channel+" t="+timepoint+" ("+nTotalShards+" shards)");
+
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i=0;i<nThreads;i++) {
+                futures.add(executor.submit(() -> {
+                    long iShard;
+                    while ((iShard = nextShard.getAndIncrement())<nTotalShards) {
+                        if ((partition!=null)&&(!partition.contains(firstShardIndex+iShard))) continue;
+                        long idx = iShard;
+                        long[] shardPosition = new long[3];
+                        for (int d=0;d<3;d++) {
+                            shardPosition[d] = idx % nShards[d];
+                            idx = idx / nShards[d];
+                        }
+                        writeShard(level, channel, timepoint, zeroMinImage, shardPosition);
+                        numberOfWrittenShards.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return number of shards written by this writer
+     */
+    public long getNumberOfWrittenShards() {
+        return numberOfWrittenShards.get();
+    }
+
+    /**
+     * Writes a shard : chunks in C order (x fastest), then the index of
+     * (offset, size) pairs, little endian. Chunks outside the image are left empty.
+     */
+    <T extends RealType<T> & NativeType<T>> void writeShard(int level, int channel, int timepoint, RandomAccessibleInterval<T> image, long[] shardPosition) throws IOException {
+        final int nChunks = chunksPerShard[0]*chunksPerShard[1]*chunksPerShard[2];
+        final ByteBuffer index = ByteBuffer.allocate(nChunks*16).order(ByteOrder.LITTLE_ENDIAN);
+        final ByteArrayOutputStream shard = new ByteArrayOutputStream();
+        final T zero = Views.iterable(image).firstElement().createVariable();
+        zero.setZero();
+
+        // The index follows the chunk grid order of the array : z, y, x with x fastest
+        for (int cz=0;cz<chunksPerShard[2];cz++) {
+            for (int cy=0;cy<chunksPerShard[1];cy++) {
+                for (int cx=0;cx<chunksPerShard[0];cx++) {
+                    long[] min = new long[]{
+                            (shardPosition[0]*chunksPerShard[0]+cx)*chunkSize[0],
+                            (shardPosition[1]*chunksPerShard[1]+cy)*chunkSize[1],
+                            (shardPosition[2]*chunksPerShard[2]+cz)*chunkSize[2]};
+                    boolean outside = false;
+                    for (int d=0;d<3;d++) {
+                        if (min[d]>image.max(d)) outside = true;
+                    }
+                    if (outside) {
+                        index.putLong(EMPTY_CHUNK);
+                        index.putLong(EMPTY_CHUNK);
+                        continue;
+                    }
+                    long[] max = new long[3];
+                    for (int d=0;d<3;d++) max[d] = min[d]+chunkSize[d]-1;
+                    // Edge chunks are padded to the full chunk size with the fill value
+                    RandomAccessibleInterval<T> chunk = Views.interval(Views.extendValue(image, zero), new FinalInterval(min, max));
+                    byte[] bytes = encodeChunk(chunk);
+                    index.putLong(shard.size());
+                    index.putLong(bytes.length);
+                    shard.write(bytes);
+                }
+            }
+        }
+        shard.write(index.array());
+
+        File shardFile = new File(zarrDirectory, getPathName(level)+File.separator+"c"+File.separator+timepoint+File.separator+channel
+                +File.separator+shardPosition[2]+File.separator+shardPosition[1]+File.separator+shardPosition[0]);
+        shardFile.getParentFile().mkdirs();
+        try (OutputStream os = new FileOutputStream(shardFile)) {
+            shard.writeTo(os);
+        }
+    }
+
+    <T extends RealType<T> & NativeType<T>> byte[] encodeChunk(RandomAccessibleInterval<T> chunk) throws IOException {
+        final T type = Views.iterable(chunk).firstElement();
+        final int bytesPerPixel = getBytesPerPixel(type);
+        final ByteBuffer buffer = ByteBuffer.allocate((int) (Views.iterable(chunk).size()*bytesPerPixel)).order(ByteOrder.LITTLE_ENDIAN);
+        final Cursor<T> cursor = Views.flatIterable(chunk).cursor();
+        if (type instanceof FloatType) {
+            while (cursor.hasNext()) buffer.putFloat(cursor.next().getRealFloat());
+        } else if (type instanceof DoubleType) {
+            while (cursor.hasNext()) buffer.putDouble(cursor.next().getRealDouble());
+        } else if ((type instanceof UnsignedLongType)||(type instanceof LongType)) {
+            // getRealDouble would lose precision on 64 bits integers
+            while (cursor.hasNext()) {
+                T pixel = cursor.next();
+                buffer.putLong((pixel instanceof UnsignedLongType)?((UnsignedLongType) pixel).get():((LongType) pixel).get());
+            }
+        } else {
+            while (cursor.hasNext()) {
+                long value = (long) cursor.next().getRealDouble();
+                switch (bytesPerPixel) {
+                    case 1: buffer.put((byte) value); break;
+                    case 2: buffer.putShort((short) value); break;
+                    default: buffer.putInt((int) value);
+                }
+            }
+        }
+        if (!gzip) return buffer.array();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipStream = new GZIPOutputStream(compressed)) {
+            gzipStream.write(buffer.array());
+        }
+        return compressed.toByteArray();
+    }
+
+    static int getBytesPerPixel(Object type) {
+        if ((type instanceof UnsignedByteType)||(type instanceof ByteType)) return 1;
+        if ((type instanceof UnsignedShortType)||(type instanceof ShortType)) return 2;
+        if ((type instanceof DoubleType)||(type instanceof LongType)||(type instanceof UnsignedLongType)) return 8;
+        return 4;
+    }
+
+}
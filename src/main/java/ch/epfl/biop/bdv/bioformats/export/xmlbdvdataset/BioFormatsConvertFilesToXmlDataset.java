@@ -1,9 +1,10 @@
 package ch.epfl.biop.bdv.bioformats.export.xmlbdvdataset;
 
 import ch.epfl.biop.bdv.bioformats.BioFormatsHelper;
+import ch.epfl.biop.bdv.bioformats.BioFormatsMemo;
 import ch.epfl.biop.bdv.bioformats.imageloader.BioFormatsImageLoader;
 import ch.epfl.biop.bdv.bioformats.imageloader.FileSerieChannel;
-import ch.epfl.biop.bdv.bioformats.imageloader.SeriesTps;
+import ch.epfl.biop.bdv.bioformats.imageloader.SerieMetadata;
 import loci.formats.*;
 import loci.formats.meta.IMetadata;
 import mpicbg.spim.data.SpimData;
@@ -12,6 +13,7 @@ import mpicbg.spim.data.registration.ViewRegistration;
 import mpicbg.spim.data.registration.ViewRegistrations;
 import mpicbg.spim.data.sequence.*;
 import net.imglib2.Dimensions;
+import net.imglib2.realtransform.AffineTransform3D;
 import ome.units.UNITS;
 import org.apache.commons.io.FilenameUtils;
 import org.scijava.command.Command;
@@ -19,11 +21,22 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import java.io.File;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 /**
@@ -48,8 +61,23 @@ public class BioFormatsConvertFilesToXmlDataset implements Command {
     @Parameter
     boolean verbose;
 
+    @Parameter(label = "Number of threads used to scan the files")
+    public int nThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(required=false, label = "existing xml dataset to append the files to, empty = new dataset")
+    public File appendToDataset;
+
+    @Parameter(label = "Write the memo file of each scanned file, whatever its opening time")
+    public boolean memoizeAllFiles = false;
+
     public Consumer<String> log = s -> {};
 
+    // Cause of the failure of the last conversion, null if it succeeded
+    public Exception exception;
+
+    // Files which could not be read, left out of the dataset, by the last conversion
+    public List<File> failedFiles = new ArrayList<>();
+
     int viewSetupCounter = 0;
 
     int nTileCounter = 0;
@@ -63,22 +91,42 @@ public class BioFormatsConvertFilesToXmlDataset implements Command {
     Map<Integer,Integer> fileIdxToNumberOfSeries = new HashMap<>();
     Map<Integer,Channel> channelIdToChannel = new HashMap<>();
 
-    Map<Integer, SeriesTps> fileIdxToNumberOfSeriesAndTimepoints = new HashMap<>();
     Map<Integer, FileSerieChannel> viewSetupToBFFileSerieChannel = new HashMap<>();
 
+    // Stored in the dataset to avoid opening files when the image loader is created
+    Map<Integer, Map<Integer, SerieMetadata>> fileSerieMetadata = new HashMap<>();
+
+    // Index of the setups of each file serie, in channel order - sorted to keep registrations in file and serie order
+    Map<Integer, Map<Integer, List<Integer>>> fileSerieToViewSetups = new TreeMap<>();
+
+    // Root transform of each file serie, computed once when scanning the file
+    Map<Integer, Map<Integer, AffineTransform3D>> fileSerieRootTransform = new HashMap<>();
+
+    // Number of timepoints of each file serie
+    Map<Integer, Map<Integer, Integer>> fileSerieNumberOfTimepoints = new HashMap<>();
+
+    /**
+     * Metadata of a serie, collected while scanning a file
+     */
+    static class SerieScan {
+        SerieMetadata metadata;
+        int sizeT;
+        String imageName;
+        Dimensions dims;
+        VoxelDimensions voxDims;
+        AffineTransform3D rootTransform;
+        int[] channelHashes;
+        String[] channelNames;
+    }
+
     @Override
     public void run() {
 
         if (verbose) {
             log = s -> System.out.println(s);
         }
-        IFormatReader readerIdx = new ImageReader();
-
-        readerIdx.setFlattenedResolutions(false);
-        Memoizer memo = new Memoizer( readerIdx );
-
-        final IMetadata omeMetaOmeXml = MetadataTools.createOMEXMLMetadata();
-        memo.setMetadataStore(omeMetaOmeXml);
+        exception = null;
+        failedFiles = new ArrayList<>();
 
         // No Illumination
         Illumination dummy_ill = new Illumination(0);
@@ -88,133 +136,320 @@ public class BioFormatsConvertFilesToXmlDataset implements Command {
         List<ViewSetup> viewSetups = new ArrayList<>();
 
         try {
-            for (int iF=0;iF<inputFiles.length;iF++) {
-                log.accept("File : "+ inputFiles[iF].getAbsolutePath());
+            // All files of the dataset, previous ones first in append mode
+            List<File> datasetFiles = new ArrayList<>();
+
+            SpimData existingDataset = null;
+            if (appendToDataset!=null) {
+                existingDataset = loadExistingDataset(datasetFiles, viewSetups);
+            }
 
-                memo.setId(inputFiles[iF].getAbsolutePath());
-                final int iFile = iF;
-                final IFormatReader reader = memo;
+            // Files already in the dataset are not scanned again
+            Set<String> existingPaths = datasetFiles.stream().map(File::getAbsolutePath).collect(Collectors.toSet());
+            List<File> newFiles = new ArrayList<>();
+            for (File f : inputFiles) {
+                if (existingPaths.add(f.getAbsolutePath())) {
+                    newFiles.add(f);
+                } else {
+                    log.accept("File "+f.getAbsolutePath()+" is already in the dataset, skipped");
+                }
+            }
+            // ------------------- SCANNING FILES, in parallel, with one reader per worker
+            // A file which can't be read is left out, the other files are still added
+            List<List<SerieScan>> fileScans = scanFiles(newFiles, failedFiles);
+            for (int iNewFile=newFiles.size()-1;iNewFile>=0;iNewFile--) {
+                if (fileScans.get(iNewFile)==null) {
+                    newFiles.remove(iNewFile);
+                    fileScans.remove(iNewFile);
+                }
+            }
+            if ((newFiles.size()==0)&&(failedFiles.size()>0)) {
+                System.err.println("None of the files could be read, no dataset written");
+                return;
+            }
 
-                log.accept("Number of Series : " + reader.getSeriesCount());
-                final IMetadata omeMeta = (IMetadata) reader.getMetadataStore();
+            final int firstNewFileIndex = datasetFiles.size();
+            datasetFiles.addAll(newFiles);
 
-                fileIdxToNumberOfSeries.put(iF, reader.getSeriesCount() );
+            // ------------------- MERGING, in file order : setups and channel ids do not depend on the scan order
+            for (List<SerieScan> serieScans : fileScans) {
+                for (SerieScan serieScan : serieScans) {
+                    maxTimepoints = Math.max(maxTimepoints, serieScan.sizeT);
+                }
+            }
 
-                // -------------------------- SETUPS For each Series : one per timepoint and one per channel
-                IntStream series = IntStream.range(0, reader.getSeriesCount());
-                series.forEach(iSerie -> {
-                    reader.setSeries(iSerie);
+            for (int iNewFile=0;iNewFile<newFiles.size();iNewFile++) {
+                final int iF = firstNewFileIndex+iNewFile;
+                log.accept("File : "+ datasetFiles.get(iF).getAbsolutePath());
+                List<SerieScan> serieScans = fileScans.get(iNewFile);
+                log.accept("Number of Series : " + serieScans.size());
+
+                fileIdxToNumberOfSeries.put(iF, serieScans.size());
+                fileSerieMetadata.put(iF, new HashMap<>());
+                fileSerieToViewSetups.put(iF, new TreeMap<>());
+                fileSerieRootTransform.put(iF, new HashMap<>());
+                fileSerieNumberOfTimepoints.put(iF, new HashMap<>());
+
+                // -------------------------- SETUPS For each Series : one per channel
+                for (int iSerie=0;iSerie<serieScans.size();iSerie++) {
+                    SerieScan serieScan = serieScans.get(iSerie);
+                    fileSerieMetadata.get(iF).put(iSerie, serieScan.metadata);
+                    fileSerieToViewSetups.get(iF).put(iSerie, new ArrayList<>());
+                    fileSerieRootTransform.get(iF).put(iSerie, serieScan.rootTransform);
+                    fileSerieNumberOfTimepoints.get(iF).put(iSerie, serieScan.sizeT);
 
-                    fileIdxToNumberOfSeriesAndTimepoints.put(iFile, new SeriesTps(reader.getSeriesCount(),omeMeta.getPixelsSizeT(iSerie).getNumberValue().intValue()));
                     // One serie = one Tile
                     Tile tile = new Tile(nTileCounter);
                     nTileCounter++;
-                    // ---------- Serie >
                     // ---------- Serie > Timepoints
-                    log.accept("\t Serie " + iSerie + " Number of timesteps = " + omeMeta.getPixelsSizeT(iSerie).getNumberValue().intValue());
+                    log.accept("\t Serie " + iSerie + " Number of timesteps = " + serieScan.sizeT);
                     // ---------- Serie > Channels
-                    log.accept("\t Serie " + iSerie + " Number of channels = " + omeMeta.getChannelCount(iSerie));
-                    //final int iS = iSerie;
-                    // Properties of the serie
-                    IntStream channels = IntStream.range(0, omeMeta.getChannelCount(iSerie));
-                    if (omeMeta.getPixelsSizeT(iSerie).getNumberValue().intValue() > maxTimepoints) {
-                        maxTimepoints = omeMeta.getPixelsSizeT(iSerie).getNumberValue().intValue();
+                    log.accept("\t Serie " + iSerie + " Number of channels = " + serieScan.channelHashes.length);
+                    // Register Setups (one per channel, timepoints are handled by the SequenceDescription TimePoints)
+                    for (int iCh=0;iCh<serieScan.channelHashes.length;iCh++) {
+                        int ch_id = getChannelId(serieScan.channelHashes[iCh]);
+                        String setupName = serieScan.imageName
+                                + "-" + serieScan.channelNames[iCh];
+                        log.accept(setupName);
+                        ViewSetup vs = new ViewSetup(
+                                viewSetupCounter,
+                                setupName,
+                                serieScan.dims,
+                                serieScan.voxDims,
+                                tile, // Tile is index of Serie
+                                channelIdToChannel.get(ch_id),
+                                dummy_ang,
+                                dummy_ill);
+                        viewSetups.add(vs);
+                        viewSetupToBFFileSerieChannel.put(viewSetupCounter, new FileSerieChannel(iF, iSerie, iCh));
+                        fileSerieToViewSetups.get(iF).get(iSerie).add(viewSetupCounter);
+                        viewSetupCounter++;
                     }
-                    String imageName = omeMeta.getImageName(iSerie);
-                    Dimensions dims = BioFormatsHelper.getDimensions(omeMeta, iSerie, UNITS.MILLIMETER);
-                    VoxelDimensions voxDims = BioFormatsHelper.getVoxelDimensions(omeMeta, iSerie, UNITS.MILLIMETER);
-                    // Register Setups (one per channel and one per timepoint)
-                    channels.forEach(
-                            iCh -> {
-                                int ch_id = getChannelId(omeMeta, iSerie, iCh);
-                                String channelName = omeMeta.getChannelName(iSerie, iCh);
-                                IntStream timepoints = IntStream.range(0, omeMeta.getPixelsSizeT(iSerie).getNumberValue().intValue());
-                                timepoints.forEach(
-                                        iTp -> {
-                                            String setupName = imageName
-                                                    + "-" + channelName + ":" + iTp;
-                                            System.out.println(setupName);
-                                            ViewSetup vs = new ViewSetup(
-                                                    viewSetupCounter,
-                                                    setupName,
-                                                    dims,
-                                                    voxDims,
-                                                    tile, // Tile is index of Serie
-                                                    channelIdToChannel.get(ch_id),
-                                                    dummy_ang,
-                                                    dummy_ill);
-                                            viewSetups.add(vs);
-                                            viewSetupToBFFileSerieChannel.put(viewSetupCounter, new FileSerieChannel(iFile, iSerie, iCh));
-                                            viewSetupCounter++;
-                                        });
-                            });
-                });
-                reader.close();
+                }
             }
 
-            // ------------------- BUILDING SPIM DATA
-            ArrayList<File> inputFilesArray = new ArrayList<>();
-            for (File f:inputFiles) {
-                inputFilesArray.add(f);
-            }
+            // ------------------- REGISTRATIONS
             List<TimePoint> timePoints = new ArrayList<>();
             IntStream.range(0,maxTimepoints).forEach(tp -> timePoints.add(new TimePoint(tp)));
-            SequenceDescription sd = new SequenceDescription( new TimePoints( timePoints ), viewSetups , new BioFormatsImageLoader(inputFilesArray,null), null);
 
             final ArrayList<ViewRegistration> registrations = new ArrayList<>();
 
-            for (int iF=0;iF<inputFiles.length;iF++) {
-                int iFile = iF;
-
-                memo.setId(inputFiles[iF].getAbsolutePath());
-                final IFormatReader reader = memo;
-
-                log.accept("Number of Series : " + reader.getSeriesCount());
-                final IMetadata omeMeta = (IMetadata) reader.getMetadataStore();
-
-                int nSeries = fileIdxToNumberOfSeries.get(iF);
-                // Need to set view registrations : identity ? how does that work with the one given by the image loader ?
-                IntStream series = IntStream.range(0, nSeries);
-                series.forEach(iSerie -> {
-                    int iS = iSerie;
-                    IntStream timepoints = IntStream.range(0, omeMetaOmeXml.getPixelsSizeT(iS).getNumberValue().intValue());
-                    timePoints.forEach(iTp -> {
-                        viewSetupToBFFileSerieChannel
-                                .keySet()
-                                .stream()
-                                .filter(viewSetupId -> (viewSetupToBFFileSerieChannel.get(viewSetupId).iFile == iFile))
-                                .filter(viewSetupId -> (viewSetupToBFFileSerieChannel.get(viewSetupId).iSerie == iSerie))
-                                .forEach(viewSetupId -> registrations.add(new ViewRegistration(iTp.getId(), viewSetupId, BioFormatsHelper.getRootTransform(omeMeta,iSerie,UNITS.MILLIMETER)))//new AffineTransform3D()))//
-                                );
-                    });
+            // Series with less timepoints than the dataset are declared as missing views
+            final List<ViewId> missingViews = new ArrayList<>();
+
+            buildRegistrations(timePoints, registrations, missingViews);
+
+            if (existingDataset!=null) {
+                // Previous views are kept, previous setups are missing at the new timepoints
+                registrations.addAll(existingDataset.getViewRegistrations().getViewRegistrationsOrdered());
+                if (existingDataset.getSequenceDescription().getMissingViews()!=null) {
+                    missingViews.addAll(existingDataset.getSequenceDescription().getMissingViews().getMissingViews());
+                }
+                int nPreviousTimepoints = existingDataset.getSequenceDescription().getTimePoints().size();
+                existingDataset.getSequenceDescription().getViewSetupsOrdered().forEach(vs -> {
+                    for (int iTp=nPreviousTimepoints;iTp<maxTimepoints;iTp++) {
+                        missingViews.add(new ViewId(iTp, vs.getId()));
+                    }
                 });
-                reader.close();
             }
 
-            if (inputFiles.length==1) {
+            // ------------------- BUILDING SPIM DATA
+            BioFormatsImageLoader imgLoader = new BioFormatsImageLoader(datasetFiles, viewSetupToBFFileSerieChannel, fileSerieMetadata, null);
+            imgLoader.getChannelHashToId().putAll(channelHashToId);
+
+            SequenceDescription sd = new SequenceDescription( new TimePoints( timePoints ), viewSetups , imgLoader, new MissingViews( missingViews ));
+
+            if (existingDataset!=null) {
+                final SpimData spimData = new SpimData( existingDataset.getBasePath(), sd, new ViewRegistrations( registrations ) );
+                saveAtomically( spimData, appendToDataset );
+            } else if ((inputFiles.length==1)&&((xmlFileName==null)||(xmlFileName.equals("")))) {
                 File inputFile = inputFiles[0];
                 if ((xmlFilePath==null)||(xmlFilePath.equals(""))) {
                     String outputPath = FilenameUtils.removeExtension(inputFile.getAbsolutePath())+".xml";
-                    System.out.println(outputPath);
+                    log.accept(outputPath);
                     final SpimData spimData = new SpimData( inputFile.getParentFile(), sd, new ViewRegistrations( registrations ) );
-                    new XmlIoSpimData().save( spimData, outputPath );
+                    saveAtomically( spimData, new File(outputPath) );
                 } else {
                     String outputFileName = FilenameUtils.getBaseName(inputFile.getAbsolutePath())+".xml";
-                    System.out.println(outputFileName);
+                    log.accept(outputFileName);
                     final SpimData spimData = new SpimData( xmlFilePath, sd, new ViewRegistrations( registrations ) );
-                    new XmlIoSpimData().save( spimData, new File(xmlFilePath,outputFileName).getAbsolutePath() );
+                    saveAtomically( spimData, new File(xmlFilePath,outputFileName) );
                 }
             } else {
-                final SpimData spimData = new SpimData( xmlFilePath, sd, new ViewRegistrations( registrations ) );
-                new XmlIoSpimData().save( spimData, new File(xmlFilePath,xmlFileName).getAbsolutePath() );
+                File outputPath = (xmlFilePath==null) ? inputFiles[0].getAbsoluteFile().getParentFile() : xmlFilePath;
+                final SpimData spimData = new SpimData( outputPath, sd, new ViewRegistrations( registrations ) );
+                saveAtomically( spimData, new File(outputPath,xmlFileName) );
             }
         } catch (Exception e) {
             e.printStackTrace();
+            exception = e;
+        }
+    }
+
+    /**
+     * Loads the dataset to append files to, and initializes setups, tiles, channels and files
+     * from it, so that the new setups continue the existing ids.
+     * @param datasetFiles filled with the files of the existing dataset
+     * @param viewSetups filled with the setups of the existing dataset
+     * @return the existing dataset
+     * @throws IllegalStateException if the dataset is not a BioFormats dataset
+     * @throws Exception
+     */
+    SpimData loadExistingDataset(List<File> datasetFiles, List<ViewSetup> viewSetups) throws Exception {
+        SpimData spimData = new XmlIoSpimData().load(appendToDataset.getAbsolutePath());
+        if (!(spimData.getSequenceDescription().getImgLoader() instanceof BioFormatsImageLoader)) {
+            throw new IllegalStateException("Cannot append files to "+appendToDataset.getAbsolutePath()+" : not a BioFormats dataset");
+        }
+        BioFormatsImageLoader imgLoader = (BioFormatsImageLoader) spimData.getSequenceDescription().getImgLoader();
+        imgLoader.close();
+
+        datasetFiles.addAll(imgLoader.files);
+        viewSetupToBFFileSerieChannel.putAll(imgLoader.getViewSetupToFileSerieChannel());
+        imgLoader.getFileSerieMetadata().forEach((iF, series) -> fileSerieMetadata.put(iF, new HashMap<>(series)));
+        maxTimepoints = spimData.getSequenceDescription().getTimePoints().size();
+
+        for (ViewSetup vs : spimData.getSequenceDescription().getViewSetupsOrdered()) {
+            viewSetups.add(vs);
+            viewSetupCounter = Math.max(viewSetupCounter, vs.getId()+1);
+            nTileCounter = Math.max(nTileCounter, vs.getTile().getId()+1);
+            channelIdToChannel.put(vs.getChannel().getId(), vs.getChannel());
+            channelCounter = Math.max(channelCounter, vs.getChannel().getId()+1);
+        }
+
+        if (imgLoader.getChannelHashToId().isEmpty()) {
+            // Older dataset : channel hashes are recovered by scanning the previous files once
+            log.accept("No channel hash stored in the dataset, scanning previous files");
+            List<List<SerieScan>> previousScans = scanFiles(imgLoader.files, null);
+            imgLoader.getViewSetupToFileSerieChannel().forEach((setupId, fsc) -> {
+                int hash = previousScans.get(fsc.iFile).get(fsc.iSerie).channelHashes[fsc.iChannel];
+                int channelId = spimData.getSequenceDescription().getViewSetups().get(setupId).getChannel().getId();
+                channelHashToId.putIfAbsent(hash, channelId);
+            });
+        } else {
+            channelHashToId.putAll(imgLoader.getChannelHashToId());
+        }
+        return spimData;
+    }
+
+    /**
+     * Writes the xml in a temporary file which then replaces the output file :
+     * readers never see a partially written dataset
+     * @param spimData
+     * @param xmlFile
+     * @throws Exception
+     */
+    static void saveAtomically(SpimData spimData, File xmlFile) throws Exception {
+        File tmpFile = new File(xmlFile.getAbsoluteFile().getParentFile(), xmlFile.getName()+".tmp");
+        new XmlIoSpimData().save( spimData, tmpFile.getAbsolutePath() );
+        try {
+            Files.move(tmpFile.toPath(), xmlFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmpFile.toPath(), xmlFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Builds the registrations of all setups, iterating over the file serie index : the cost
+     * is linear in the number of views. Views of series with fewer timepoints than
+     * the dataset are declared as missing.
+     * @param timePoints timepoints of the dataset
+     * @param registrations filled with the registration of each present view
+     * @param missingViews filled with the missing views
+     */
+    void buildRegistrations(List<TimePoint> timePoints, List<ViewRegistration> registrations, List<ViewId> missingViews) {
+        fileSerieToViewSetups.forEach((iF, serieToViewSetups) -> serieToViewSetups.forEach((iSerie, viewSetupIds) -> {
+            AffineTransform3D rootTransform = fileSerieRootTransform.get(iF).get(iSerie);
+            int nTimepoints = fileSerieNumberOfTimepoints.get(iF).get(iSerie);
+            for (TimePoint iTp : timePoints) {
+                for (int viewSetupId : viewSetupIds) {
+                    if (iTp.getId()<nTimepoints) {
+                        registrations.add(new ViewRegistration(iTp.getId(), viewSetupId, rootTransform.copy()));
+                    } else {
+                        missingViews.add(new ViewId(iTp.getId(), viewSetupId));
+                    }
+                }
+            }
+        }));
+    }
+
+    /**
+     * Opens each file once and collects the metadata of all its series. Files are scanned
+     * in parallel, each worker thread owning its reader.
+     * @param files files to scan
+     * @param failedFiles filled with the files which can't be read, whose scan is null, or null to
+     *                    throw the error of the first file which can't be read
+     * @return the series metadata of each file, in the order of files
+     * @throws Exception if a file cannot be read and failedFiles is null
+     */
+    List<List<SerieScan>> scanFiles(List<File> files, List<File> failedFiles) throws Exception {
+        final List<IFormatReader> readers = Collections.synchronizedList(new ArrayList<>());
+        final ThreadLocal<IFormatReader> workerReader = ThreadLocal.withInitial(() -> {
+            IFormatReader readerIdx = new ImageReader();
+            readerIdx.setFlattenedResolutions(false);
+            Memoizer memo = memoizeAllFiles ? BioFormatsMemo.wrap( readerIdx, 0 ) : BioFormatsMemo.wrap( readerIdx );
+            memo.setMetadataStore(MetadataTools.createOMEXMLMetadata());
+            readers.add(memo);
+            return memo;
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nThreads));
+        try {
+            List<Future<List<SerieScan>>> futures = new ArrayList<>();
+            for (File inputFile : files) {
+                futures.add(executor.submit(() -> scanFile(workerReader.get(), inputFile)));
+            }
+            List<List<SerieScan>> fileScans = new ArrayList<>();
+            for (int iFile=0;iFile<futures.size();iFile++) {
+                try {
+                    fileScans.add(futures.get(iFile).get());
+                } catch (ExecutionException e) {
+                    if (failedFiles==null) throw e;
+                    System.err.println("File "+files.get(iFile).getAbsolutePath()+" can't be read, skipped : "+e.getCause());
+                    failedFiles.add(files.get(iFile));
+                    fileScans.add(null);
+                }
+            }
+            return fileScans;
+        } finally {
+            executor.shutdown();
+            for (IFormatReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    List<SerieScan> scanFile(IFormatReader reader, File inputFile) throws Exception {
+        try {
+            reader.setId(inputFile.getAbsolutePath());
+        } catch (Exception e) {
+            // The reader is reset before the next file of the worker
+            reader.close();
+            throw e;
+        }
+        final IMetadata omeMeta = (IMetadata) reader.getMetadataStore();
+        List<SerieScan> serieScans = new ArrayList<>();
+        for (int iSerie=0;iSerie<reader.getSeriesCount();iSerie++) {
+            reader.setSeries(iSerie);
+            SerieScan serieScan = new SerieScan();
+            serieScan.metadata = SerieMetadata.fromReader(reader, iSerie);
+            serieScan.sizeT = reader.getSizeT();
+            serieScan.imageName = omeMeta.getImageName(iSerie);
+            serieScan.dims = BioFormatsHelper.getDimensions(omeMeta, iSerie, UNITS.MILLIMETER);
+            serieScan.voxDims = BioFormatsHelper.getVoxelDimensions(omeMeta, iSerie, UNITS.MILLIMETER);
+            serieScan.rootTransform = BioFormatsHelper.getRootTransform(omeMeta, iSerie, UNITS.MILLIMETER);
+            int nChannels = omeMeta.getChannelCount(iSerie);
+            serieScan.channelHashes = new int[nChannels];
+            serieScan.channelNames = new String[nChannels];
+            for (int iCh=0;iCh<nChannels;iCh++) {
+                serieScan.channelHashes[iCh] = BioFormatsHelper.getChannelHashFromBFMeta(omeMeta, iSerie, iCh);
+                serieScan.channelNames[iCh] = omeMeta.getChannelName(iSerie, iCh);
+            }
+            serieScans.add(serieScan);
         }
+        return serieScans;
     }
 
-    int getChannelId(IMetadata omeMeta, int iSerie, int iChannel) {
-        int channelHash = BioFormatsHelper.getChannelHashFromBFMeta(omeMeta, iSerie, iChannel);
+    int getChannelId(int channelHash) {
         if (!channelHashToId.containsKey(channelHash)) {
             // No : add it in the channel hashmap
             channelHashToId.put(channelHash,channelCounter);
@@ -0,0 +1,235 @@
+package ch.epfl.biop.bdv.bioformats.export.xmlbdvdataset;
+
+import loci.formats.ImageReader;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Watches a directory and appends the new image files to a BioFormats xml dataset as soon as
+ * they are fully written, so that the dataset can be opened while the acquisition goes on.
+ *
+ * A file is considered complete when its size and modification date did not change for
+ * a given delay. Complete files are converted by batches with {@link BioFormatsConvertFilesToXmlDataset},
+ * in append mode once the dataset exists. Files already present in the dataset are skipped,
+ * so the command can be restarted on the same directory.
+ *
+ * The command runs until it is interrupted, {@link BioFormatsWatchDirectoryToXmlDataset#stop()} is called,
+ * or no new file arrived during the idle timeout.
+ *
+ * @author nicolas.chiaruttini@epfl.ch
+ */
+
+@Plugin(type = Command.class,menuPath = "BDV_SciJava>Export>Watch Directory and Convert New Files to Xml Dataset (SciJava)")
+public class BioFormatsWatchDirectoryToXmlDataset implements Command {
+
+    @Parameter(label = "Watched directory", style = "directory")
+    public File watchedDirectory;
+
+    @Parameter(label = "Xml dataset, created or appended to", style = "save")
+    public File xmlDataset;
+
+    @Parameter(label = "Delay without change before a file is considered complete (ms)")
+    public long stabilityDelayInMs = 5000;
+
+    @Parameter(label = "Maximal number of files converted per batch")
+    public int maxBatchSize = 100;
+
+    @Parameter(label = "Stop after this idle time (min), 0 = never")
+    public int idleTimeoutInMin = 0;
+
+    @Parameter(label = "Write the memo file of each new file")
+    public boolean buildMemoFiles = true;
+
+    @Parameter(label = "Number of threads used to scan the files")
+    public int nThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter
+    public boolean verbose;
+
+    public Consumer<String> log = s -> {};
+
+    public Consumer<String> errlog = s -> System.err.println(s);
+
+    volatile boolean stopRequested = false;
+
+    // Candidate files : last seen size and modification date, and time of the last change
+    final Map<File, long[]> pendingFiles = new HashMap<>();
+
+    // Files already converted or already in the dataset
+    final Set<File> processedFiles = new HashSet<>();
+
+    final ImageReader typeChecker = new ImageReader();
+
+    public void stop() {
+        stopRequested = true;
+    }
+
+    @Override
+    public void run() {
+        if (verbose) {
+            log = s -> System.out.println(s);
+        }
+
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            Map<WatchKey, Path> keys = new HashMap<>();
+            // Existing files are taken as well, in case the acquisition started before the command
+            try (Stream<Path> paths = Files.walk(watchedDirectory.toPath())) {
+                for (Path path : paths.collect(Collectors.toList())) {
+                    if (Files.isDirectory(path)) {
+                        register(watchService, keys, path);
+                    } else {
+                        addCandidate(path.toFile());
+                    }
+                }
+            }
+
+            log.accept("Watching "+watchedDirectory.getAbsolutePath());
+            long lastActivity = System.currentTimeMillis();
+            while (!stopRequested) {
+                WatchKey key = watchService.poll(Math.max(100, stabilityDelayInMs/2), TimeUnit.MILLISECONDS);
+                if (key!=null) {
+                    Path directory = keys.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind()==StandardWatchEventKinds.OVERFLOW) {
+                            rescan(watchService, keys);
+                            continue;
+                        }
+                        Path path = directory.resolve((Path) event.context());
+                        if (Files.isDirectory(path)) {
+                            register(watchService, keys, path);
+                        } else {
+                            addCandidate(path.toFile());
+                        }
+                    }
+                    if (!key.reset()) {
+                        keys.remove(key);
+                    }
+                    lastActivity = System.currentTimeMillis();
+                }
+
+                List<File> completeFiles = getCompleteFiles();
+                while (completeFiles.size()>0) {
+                    List<File> batch = completeFiles.subList(0, Math.min(maxBatchSize, completeFiles.size()));
+                    convert(new ArrayList<>(batch));
+                    batch.clear();
+                    lastActivity = System.currentTimeMillis();
+                }
+
+                if ((idleTimeoutInMin>0)&&(pendingFiles.isEmpty())&&(System.currentTimeMillis()-lastActivity>idleTimeoutInMin*60000L)) {
+                    log.accept("No new file during "+idleTimeoutInMin+" min, stopping");
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException|IOException e) {
+            e.printStackTrace();
+        }
+        log.accept("Stopped watching "+watchedDirectory.getAbsolutePath());
+    }
+
+    void register(WatchService watchService, Map<WatchKey, Path> keys, Path directory) throws IOException {
+        WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        keys.put(key, directory);
+    }
+
+    /**
+     * Events were lost : all files of the directory are checked again
+     */
+    void rescan(WatchService watchService, Map<WatchKey, Path> keys) throws IOException {
+        try (Stream<Path> paths = Files.walk(watchedDirectory.toPath())) {
+            for (Path path : paths.collect(Collectors.toList())) {
+                if (Files.isDirectory(path)) {
+                    if (!keys.containsValue(path)) register(watchService, keys, path);
+                } else {
+                    addCandidate(path.toFile());
+                }
+            }
+        }
+    }
+
+    void addCandidate(File f) {
+        f = f.getAbsoluteFile();
+        if (processedFiles.contains(f)||f.equals(xmlDataset.getAbsoluteFile())) return;
+        if (!typeChecker.isThisType(f.getName(), false)) return; // Extension check only
+        pendingFiles.putIfAbsent(f, new long[]{-1, -1, System.currentTimeMillis()});
+    }
+
+    /**
+     * @return pending files whose size and modification date did not change for the stability delay,
+     * they are removed from the pending files
+     */
+    List<File> getCompleteFiles() {
+        long now = System.currentTimeMillis();
+        List<File> completeFiles = new ArrayList<>();
+        for (Map.Entry<File, long[]> entry : new ArrayList<>(pendingFiles.entrySet())) {
+            File f = entry.getKey();
+            long[] state = entry.getValue();
+            if (!f.exists()) {
+                pendingFiles.remove(f);
+                continue;
+            }
+            long size = f.length();
+            long lastModified = f.lastModified();
+            if ((size!=state[0])||(lastModified!=state[1])) {
+                state[0] = size;
+                state[1] = lastModified;
+                state[2] = now;
+            } else if (now-state[2]>=stabilityDelayInMs) {
+                completeFiles.add(f);
+                pendingFiles.remove(f);
+            }
+        }
+        completeFiles.sort(null);
+        return completeFiles;
+    }
+
+    void convert(List<File> files) {
+        log.accept("Converting "+files.size()+" new file(s)");
+        BioFormatsConvertFilesToXmlDataset converter = new BioFormatsConvertFilesToXmlDataset();
+        converter.inputFiles = files.toArray(new File[0]);
+        converter.nThreads = nThreads;
+        converter.verbose = verbose;
+        converter.memoizeAllFiles = buildMemoFiles;
+        if (xmlDataset.exists()) {
+            converter.appendToDataset = xmlDataset;
+        } else {
+            converter.xmlFilePath = xmlDataset.getAbsoluteFile().getParentFile();
+            converter.xmlFileName = xmlDataset.getName();
+        }
+        converter.run();
+        if (converter.exception!=null) {
+            // The dataset was not written : all files are converted again with the next batch
+            errlog.accept("Conversion failed, "+files.size()+" file(s) queued again : "+converter.exception);
+            for (File f : files) {
+                pendingFiles.putIfAbsent(f, new long[]{-1, -1, System.currentTimeMillis()});
+            }
+            return;
+        }
+        // Files which could not be read (converter.failedFiles) are skipped, the other ones are in the dataset
+        processedFiles.addAll(files);
+    }
+
+}
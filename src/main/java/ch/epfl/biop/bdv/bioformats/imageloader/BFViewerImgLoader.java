@@ -1,10 +1,13 @@
 package ch.epfl.biop.bdv.bioformats.imageloader;
 
 import bdv.AbstractViewerSetupImgLoader;
+import bdv.util.volatiles.SharedQueue;
 import bdv.viewer.Source;
-import ch.epfl.biop.bdv.bioformats.BioFormatsOpenPlugInSingleSourceSciJava;
-import ch.epfl.biop.bdv.bioformats.bioformatssource.BioFormatsBdvSource;
+import ch.epfl.biop.bdv.bioformats.Units;
+import ch.epfl.biop.bdv.bioformats.bioformatssource.*;
 import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.generic.sequence.ImgLoaderHints;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
 import mpicbg.spim.data.sequence.MultiResolutionSetupImgLoader;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.*;
@@ -21,70 +24,99 @@ import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.integer.AbstractIntegerType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
+import ome.units.quantity.Length;
+import ome.units.unit.Unit;
 
-import java.io.File;
+import java.util.Arrays;
 import java.util.function.Consumer;
-import java.util.function.Function;
 import java.util.function.Supplier;
 
 import static net.imglib2.cache.img.DiskCachedCellImgOptions.options;
 
 public class BFViewerImgLoader<T extends NumericType<T>,V extends Volatile<T> & NumericType<V>> extends AbstractViewerSetupImgLoader<T, V> implements MultiResolutionSetupImgLoader< T > {
 
-    Source<T> bdvSrc;
+    // Sources are created lazily, on first pixel access
+    volatile BioFormatsBdvSource<T> bdvSrc;
 
-    Source<V> vSrc;
+    volatile Source<V> vSrc;
 
-    int[] cellDimensions;
+    // Pool of readers of the file, opened only when pixels are accessed
+    final ReaderPool readerPool;
 
-    Function<RandomAccessibleInterval<T>, RandomAccessibleInterval<FloatType>> cvtRaiToFloatRai;
+    final int sourceIndex;
+
+    final int channelIndex;
+
+    final boolean switchZandC;
+
+    final boolean letBioFormatDecideCacheBlockXY;
+
+    final FinalInterval cacheBlockSize;
+
+    final SharedQueue queue;
+
+    // Dimensions of each resolution level, if known from the dataset metadata - can be null
+    final long[][] resolutionDimensions;
 
     final Converter<T,FloatType> cvt;
 
+    // Min and max value of the setup over all timepoints, used to normalize float images - computed once
+    volatile double[] minMax;
+
+    // If true, min and max are taken from the coarsest resolution level instead of the full resolution one,
+    // set by the image loader (see BioFormatsImageLoader#approximateMinMax)
+    public boolean approximateMinMax = false;
+
     Consumer<String> errlog = s -> System.err.println(BFViewerImgLoader.class+" error:"+s);
 
-    public BFViewerImgLoader(File inputFile,
+    /**
+     * Setup loader of a file serie channel. No file is read at construction: the source is
+     * created on first pixel access, and geometry queries are answered from resolutionDimensions
+     * when they are known.
+     * @param readerPool pool of readers of the file
+     * @param sourceIndex serie index
+     * @param channelIndex channel index
+     * @param switchZandC
+     * @param letBioFormatDecideCacheBlockXY
+     * @param cacheBlockSizeX
+     * @param cacheBlockSizeY
+     * @param cacheBlockSizeZ
+     * @param queue fetcher queue of the volatile source
+     * @param resolutionDimensions dimensions of each resolution level, null if unknown
+     * @param getT
+     * @param getV
+     */
+    public BFViewerImgLoader(ReaderPool readerPool,
                              int sourceIndex,
                              int channelIndex,
                              boolean switchZandC,
-                             boolean autoscale,
                              boolean letBioFormatDecideCacheBlockXY,
                              int cacheBlockSizeX,
                              int cacheBlockSizeY,
                              int cacheBlockSizeZ,
+                             SharedQueue queue,
+                             long[][] resolutionDimensions,
                              Supplier<T> getT,
                              Supplier<V> getV) {
         super(getT.get(), getV.get() );
-        BioFormatsOpenPlugInSingleSourceSciJava oss = new BioFormatsOpenPlugInSingleSourceSciJava();
-
-        oss.inputFile=inputFile;
-        oss.appendMode="No Show";
-        oss.sourceIndex=sourceIndex;
-        oss.channelIndex=channelIndex;
-        oss.switchZandC=switchZandC;
-        oss.autoscale=autoscale;
-        oss.letBioFormatDecideCacheBlockXY=letBioFormatDecideCacheBlockXY;
-        oss.cacheBlockSizeX=cacheBlockSizeX;
-        oss.cacheBlockSizeY=cacheBlockSizeY;
-        oss.cacheBlockSizeZ=cacheBlockSizeZ;
-        oss.ignoreMetadata=true; // because metadata is handled through the loader
-        oss.unit="Millimeters"; // Ignored because metadata is ignored ?
-
-        oss.run();
-
-        bdvSrc = (Source<T>) oss.bdvSrc;
-        vSrc = (Source<V>) oss.vSrc;
-
-
-        cellDimensions = ((BioFormatsBdvSource) bdvSrc).cellDimensions;
+        this.readerPool = readerPool;
+        this.sourceIndex = sourceIndex;
+        this.channelIndex = channelIndex;
+        this.switchZandC = switchZandC;
+        this.letBioFormatDecideCacheBlockXY = letBioFormatDecideCacheBlockXY;
+        this.cacheBlockSize = new FinalInterval(new long[]{cacheBlockSizeX, cacheBlockSizeY, cacheBlockSizeZ});
+        this.queue = queue;
+        this.resolutionDimensions = resolutionDimensions;
 
         T t = getT.get();
 
         if (t instanceof FloatType) {
-            cvt = null;
-            cvtRaiToFloatRai = rai -> (RandomAccessibleInterval<FloatType>) rai; // Nothing to be done
+            cvt = (input, output) -> output.set(((FloatType) input).get());
         }else if (t instanceof ARGBType) {
             // Average of RGB value
             cvt = (input, output) -> {
@@ -94,22 +126,153 @@ public class BFViewerImgLoader<T extends NumericType<T>,V extends Volatile<T> &
                 int b = ARGBType.blue(v);
                 output.set(r+g+b);
             };
-            cvtRaiToFloatRai = rai -> Converters.convert( rai, cvt, new FloatType());
         }else if (t instanceof AbstractIntegerType) {
             cvt = (input, output) -> output.set(((AbstractIntegerType) input).getRealFloat());
-            cvtRaiToFloatRai = rai -> Converters.convert( rai, cvt, new FloatType());
         }else {
             cvt = null;
-            cvtRaiToFloatRai = e -> {
-                errlog.accept("Conversion of "+t.getClass()+" to FloatType unsupported.");
-                return null;
-            };
+            errlog.accept("Conversion of "+t.getClass()+" to FloatType unsupported.");
+        }
+    }
+
+    /**
+     * @return the source of this setup, created on first call
+     */
+    BioFormatsBdvSource<T> getBdvSource() {
+        if (bdvSrc==null) {
+            createSources();
+        }
+        return bdvSrc;
+    }
+
+    Source<V> getVolatileSource() {
+        if (vSrc==null) {
+            createSources();
+        }
+        return vSrc;
+    }
+
+    synchronized void createSources() {
+        if (bdvSrc!=null) return;
+        T t = getImageType();
+        Unit<Length> unit = Units.getLengthUnit(Units.MILLIMETERS); // Ignored because metadata is ignored
+        BioFormatsBdvSource src;
+        // metadata is ignored because it is handled through the loader
+        if (t instanceof ARGBType) {
+            src = new BioFormatsBdvRGBSource(readerPool, sourceIndex, channelIndex, switchZandC, cacheBlockSize, letBioFormatDecideCacheBlockXY, true, true, unit);
+        } else if (t instanceof UnsignedByteType) {
+            src = new BioFormatsBdvUnsignedByteSource(readerPool, sourceIndex, channelIndex, switchZandC, cacheBlockSize, letBioFormatDecideCacheBlockXY, true, true, unit);
+        } else if (t instanceof UnsignedShortType) {
+            src = new BioFormatsBdvUnsignedShortSource(readerPool, sourceIndex, channelIndex, switchZandC, cacheBlockSize, letBioFormatDecideCacheBlockXY, true, true, unit);
+        } else if (t instanceof UnsignedIntType) {
+            src = new BioFormatsBdvUnsignedIntSource(readerPool, sourceIndex, channelIndex, switchZandC, cacheBlockSize, letBioFormatDecideCacheBlockXY, true, true, unit);
+        } else if (t instanceof FloatType) {
+            src = new BioFormatsBdvFloatSource(readerPool, sourceIndex, channelIndex, switchZandC, cacheBlockSize, letBioFormatDecideCacheBlockXY, true, true, unit);
+        } else {
+            errlog.accept("Unsupported pixel type "+t.getClass());
+            return;
+        }
+        vSrc = new VolatileBdvSource<T, V>(src, getVolatileImageType().createVariable(), queue);
+        bdvSrc = (BioFormatsBdvSource<T>) src;
+    }
+
+    /**
+     * Dimensions of a resolution level, from the loader metadata if available, from the reader
+     * metadata otherwise : mipmap resolutions are computed without creating the cached images
+     * @param level
+     * @return dimensions
+     */
+    long[] getLevelDimensions(int level) {
+        if (resolutionDimensions!=null) {
+            return resolutionDimensions[level];
         }
+        return getBdvSource().getLevelDimensions(level);
+    }
+
+    /**
+     * Returns the converter to FloatType, which also rescales values to [0,1]
+     * if normalize is true. Type cast and normalization are done in a single step.
+     * @param timepointId
+     * @param normalize
+     * @return
+     */
+    Converter<T,FloatType> getFloatConverter(int timepointId, boolean normalize) {
+        if ((!normalize)||(cvt==null)) {
+            return cvt;
+        }
+        // Same scaling for all timepoints of the setup
+        double[] minMax = getMinMax();
+        final float min = (float) minMax[0];
+        final float scale = (minMax[1]>minMax[0])?(float) (1.0/(minMax[1]-minMax[0])):1f;
+        return (input, output) -> {
+            cvt.convert(input, output);
+            output.set((output.get()-min)*scale);
+        };
+    }
+
+    /**
+     * Min and max values of the setup over all its timepoints, computed once and cached in the loader
+     * @return double[]{min, max}
+     */
+    public double[] getMinMax() {
+        if (minMax==null) {
+            synchronized (this) {
+                if (minMax==null) {
+                    double[] mm = new double[]{Double.MAX_VALUE, -Double.MAX_VALUE};
+                    for (int t=0;t<getBdvSource().numberOfTimePoints;t++) {
+                        double[] mmt = computeMinMax(t);
+                        mm[0] = Math.min(mm[0], mmt[0]);
+                        mm[1] = Math.max(mm[1], mmt[1]);
+                    }
+                    minMax = mm;
+                }
+            }
+        }
+        return minMax;
+    }
+
+    /**
+     * Computes min and max values of a timepoint in a parallel pass over the cells of the image.
+     * The coarsest resolution level is used if approximateMinMax is true.
+     * @param timepointId
+     * @return double[]{min, max}
+     */
+    double[] computeMinMax(int timepointId) {
+        int level = approximateMinMax?numMipmapLevels()-1:0;
+        final RandomAccessibleInterval<FloatType> rai = Converters.convert( getImage(timepointId, level), cvt, new FloatType());
+        return BioFormatsBdvSource.getCellIntervals(rai, getBdvSource().cellDimensions)
+                .parallelStream()
+                .map(cell -> {
+                    double min = Double.MAX_VALUE;
+                    double max = -Double.MAX_VALUE;
+                    for (FloatType px : Views.flatIterable(Views.interval(rai, cell))) {
+                        double v = px.getRealDouble();
+                        if (v<min) min = v;
+                        if (v>max) max = v;
+                    }
+                    return new double[]{min, max};
+                })
+                .reduce(new double[]{Double.MAX_VALUE, -Double.MAX_VALUE},
+                        (mm1, mm2) -> new double[]{Math.min(mm1[0],mm2[0]), Math.max(mm1[1],mm2[1])});
+    }
+
+    /**
+     * @param hints
+     * @return true if the whole image is about to be accessed
+     */
+    static boolean isLoadCompletely(ImgLoaderHint... hints) {
+        return Arrays.asList(hints).contains(ImgLoaderHints.LOAD_COMPLETELY);
     }
 
     @Override
     public RandomAccessibleInterval<V> getVolatileImage(int timepointId, int level, ImgLoaderHint... hints) {
-        return vSrc.getSource(timepointId,level);
+        if (isLoadCompletely(hints)) {
+            // All pixels are in memory : always valid
+            return Converters.convert(getImage(timepointId, level, hints), (input, output) -> {
+                output.get().set(input);
+                output.setValid(true);
+            }, getVolatileImageType().createVariable());
+        }
+        return getVolatileSource().getSource(timepointId,level);
     }
 
     @Override
@@ -117,12 +280,14 @@ public class BFViewerImgLoader<T extends NumericType<T>,V extends Volatile<T> &
 
         //System.out.println("type float ----------------- = "+getImage(timepointId,level));
 
-        //return cvtRaiToFloatRai.apply(getImage(timepointId,level));
         // Again not working with bg stitcher! Let's compute it completely
 
-        //RandomAccessibleInterval<FloatType> raifloat = cvtRaiToFloatRai.apply(getImage(timepointId,level));
+        if (cvt==null) {
+            errlog.accept("Conversion of "+getImageType().getClass()+" to FloatType unsupported.");
+            return null;
+        }
         // Casting works because of the image loader
-        DiskCachedCellImg originalImage = (DiskCachedCellImg) getImage(timepointId, level);
+        Img<T> originalImage = (Img<T>) getImage(timepointId, level, hints);
         //originalImage.
 
 
@@ -133,7 +298,7 @@ public class BFViewerImgLoader<T extends NumericType<T>,V extends Volatile<T> &
 
 
         final CellImgFactory<FloatType> factory = new ArrayImgFactory<>( new FloatType()) );*/
-        Img< FloatType > img = copyImageCorrect((Img<T>)originalImage,new ArrayImgFactory<>( new FloatType()) );
+        Img< FloatType > img = copyImageCorrect(originalImage,new ArrayImgFactory<>( new FloatType()), getFloatConverter(timepointId, normalize) );
 
 
         return  img;//Views.extendZero(img);
@@ -149,7 +314,8 @@ public class BFViewerImgLoader<T extends NumericType<T>,V extends Volatile<T> &
      * This method copies the image correctly, using a RandomAccess.
      */
     Img< FloatType > copyImageCorrect(final Img< T > input,
-                                      final ImgFactory< FloatType > imgFactory )
+                                      final ImgFactory< FloatType > imgFactory,
+                                      final Converter< T, FloatType > converter )
     {
         // create a new Image with the same dimensions but the other imgFactory
         // note that the input provides the size for the new image by implementing the Interval interface
@@ -169,7 +335,7 @@ public class BFViewerImgLoader<T extends NumericType<T>,V extends Volatile<T> &
             randomAccess.setPosition( cursorInput );
 
             // set the value of this pixel of the output image, every Type supports T.set( T type )
-            cvt.convert(cursorInput.get(), randomAccess.get());
+            converter.convert(cursorInput.get(), randomAccess.get());
             //randomAccess.get().set( cursorInput.get() );
         }
 
@@ -180,54 +346,47 @@ public class BFViewerImgLoader<T extends NumericType<T>,V extends Volatile<T> &
 
     @Override
     public Dimensions getImageSize(int timepointId, int level) {
-        return new Dimensions() {
-            @Override
-            public void dimensions(long[] dimensions) {
-                bdvSrc.getSource(timepointId,level).dimensions(dimensions);
-            }
-
-            @Override
-            public long dimension(int d) {
-                return bdvSrc.getSource(timepointId,level).dimension(d);
-            }
-
-            @Override
-            public int numDimensions() {
-                return bdvSrc.getSource(timepointId,level).numDimensions();
-            }
-        };
+        return new FinalDimensions(getLevelDimensions(level));
     }
 
     @Override
     public RandomAccessibleInterval<T> getImage(int timepointId, int level, ImgLoaderHint... hints) {
-        return bdvSrc.getSource(timepointId,level);
+        if (isLoadCompletely(hints)) {
+            // Bulk parallel loading, skips the cell cache
+            return getBdvSource().loadCompletely(timepointId, level);
+        }
+        return getBdvSource().getSource(timepointId,level);
     }
 
     @Override
     public double[][] getMipmapResolutions() {
         // Needs to compute mipmap resolutions... pfou
-        double [][] mmResolutions = new double[bdvSrc.getNumMipmapLevels()][3];
+        double [][] mmResolutions = new double[numMipmapLevels()][3];
         mmResolutions[0][0]=1;
         mmResolutions[0][1]=1;
         mmResolutions[0][2]=1;
 
-        RandomAccessibleInterval srcL0 = bdvSrc.getSource(0,0);
-        for (int iLevel=1;iLevel<bdvSrc.getNumMipmapLevels();iLevel++) {
-            RandomAccessibleInterval srcLi = bdvSrc.getSource(0,iLevel);
-            mmResolutions[iLevel][0] = (double)srcL0.dimension(0)/(double)srcLi.dimension(0);
-            mmResolutions[iLevel][1] = (double)srcL0.dimension(1)/(double)srcLi.dimension(1);
-            mmResolutions[iLevel][2] = (double)srcL0.dimension(2)/(double)srcLi.dimension(2);
+        long[] dimsL0 = getLevelDimensions(0);
+        for (int iLevel=1;iLevel<numMipmapLevels();iLevel++) {
+            long[] dimsLi = getLevelDimensions(iLevel);
+            mmResolutions[iLevel][0] = (double)dimsL0[0]/(double)dimsLi[0];
+            mmResolutions[iLevel][1] = (double)dimsL0[1]/(double)dimsLi[1];
+            mmResolutions[iLevel][2] = (double)dimsL0[2]/(double)dimsLi[2];
         }
         return mmResolutions;
     }
 
     @Override
     public AffineTransform3D[] getMipmapTransforms() {
-        AffineTransform3D[] ats = new AffineTransform3D[bdvSrc.getNumMipmapLevels()];
+        // Location metadata is ignored by the source: transforms are only scaled according to resolution levels
+        double [][] mmResolutions = getMipmapResolutions();
+        AffineTransform3D[] ats = new AffineTransform3D[numMipmapLevels()];
 
-        for (int iLevel=0;iLevel<bdvSrc.getNumMipmapLevels();iLevel++) {
+        for (int iLevel=0;iLevel<numMipmapLevels();iLevel++) {
             AffineTransform3D at = new AffineTransform3D();
-            bdvSrc.getSourceTransform(0,iLevel,at);
+            at.set(mmResolutions[iLevel][0],0,0);
+            at.set(mmResolutions[iLevel][1],1,1);
+            at.set(mmResolutions[iLevel][2],2,2);
             ats[iLevel] = at;
         }
 
@@ -236,21 +395,32 @@ public class BFViewerImgLoader<T extends NumericType<T>,V extends Volatile<T> &
 
     @Override
     public int numMipmapLevels() {
-        return bdvSrc.getNumMipmapLevels();
+        if (resolutionDimensions!=null) {
+            return resolutionDimensions.length;
+        }
+        return getBdvSource().getNumMipmapLevels();
     }
 
     @Override
     public RandomAccessibleInterval<FloatType> getFloatImage(int timepointId, boolean normalize, ImgLoaderHint... hints) {
-        return cvtRaiToFloatRai.apply(getImage(timepointId,0));
+        if (cvt==null) {
+            errlog.accept("Conversion of "+getImageType().getClass()+" to FloatType unsupported.");
+            return null;
+        }
+        return Converters.convert( getImage(timepointId,0, hints), getFloatConverter(timepointId, normalize), new FloatType());
     }
 
     @Override
     public Dimensions getImageSize(int timepointId) {
-        return getImageSize(0,0);
+        return getImageSize(timepointId,0);
     }
 
     @Override
     public VoxelDimensions getVoxelSize(int timepointId) {
+        if (bdvSrc==null) {
+            // Same as the source, which ignores voxel size metadata
+            return new FinalVoxelDimensions(Units.getLengthUnit(Units.MILLIMETERS).getSymbol(), 1, 1, 1);
+        }
         return bdvSrc.getVoxelDimensions();
     }
 }
@@ -2,14 +2,14 @@ package ch.epfl.biop.bdv.bioformats.imageloader;
 
 import bdv.ViewerImgLoader;
 import bdv.cache.CacheControl;
-import bdv.img.cache.VolatileGlobalCellCache;
-import ch.epfl.biop.bdv.bioformats.*;
+import bdv.util.volatiles.SharedQueue;
+import ch.epfl.biop.bdv.bioformats.BioFormatsMemo;
+import ch.epfl.biop.bdv.bioformats.bioformatssource.ReaderPool;
 import loci.formats.*;
 import loci.formats.meta.IMetadata;
 import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
 import mpicbg.spim.data.sequence.*;
 import net.imglib2.Volatile;
-import net.imglib2.cache.queue.BlockingFetchQueues;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
@@ -19,12 +19,21 @@ import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.type.volatiles.*;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 public class BioFormatsImageLoader implements ViewerImgLoader,MultiResolutionImgLoader {
@@ -43,21 +52,67 @@ public class BioFormatsImageLoader implements ViewerImgLoader,MultiResolutionImg
 
     Map<Integer,Map<Integer,Supplier<Volatile>>> vTypeGetter = new HashMap<>();
 
+    // Pixel type and resolution levels of each file serie, used to build setup loaders without opening files
+    Map<Integer,Map<Integer,SerieMetadata>> fileSerieMetadata = new HashMap<>();
+
+    // Channel id of each BioFormats channel hash, kept to append files to the dataset with consistent channels
+    Map<Integer,Integer> channelHashToId = new HashMap<>();
+
     HashMap<Integer, BFViewerImgLoader> imgLoaders = new HashMap<>();
 
-    protected VolatileGlobalCellCache cache;
+    // Readers are opened on first pixel access to a file, and closed after being idle for readerIdleTimeoutInMs
+    final Map<Integer, ReaderPool> readerPools = new ConcurrentHashMap<>();
+
+    // Opening a reader on one more file blocks until another file is closed
+    public int maxNumberOfOpenFiles = 256;
+
+    // Files with opened readers, at most maxNumberOfOpenFiles
+    final Set<Integer> openFiles = new HashSet<>();
+
+    public long readerIdleTimeoutInMs = 60000;
+
+    // Min and max of normalized float images taken from the coarsest resolution level, stored in the xml
+    public boolean approximateMinMax = false;
+
+    // Also the number of threads used when a full image is loaded (ImgLoaderHints.LOAD_COMPLETELY),
+    // stored in the xml if set. -1 : one reader per available processor
+    public int numberOfReadersPerFile = -1;
+
+    ScheduledExecutorService idleReadersCloser;
 
+    // Fetcher queue shared by all volatile sources of the dataset
+    volatile SharedQueue sharedQueue;
+
+    // Fetcher threads of the shared queue, stopped on close
+    ExecutorService fetchers;
+
+    // Prefetch requests of the previous frame are dropped when BigDataViewer starts a new one
+    final CacheControl cacheControl = () -> {
+        if (sharedQueue!=null) sharedQueue.clearToPrefetch();
+    };
+
+    /**
+     * Builds the loader by scanning all files, for datasets written without setups metadata.
+     * Datasets written by the first versions of the converter have one setup per channel and
+     * per timepoint : this layout is recognized from the number of setups of the sequence description.
+     * @param files
+     * @param sequenceDescription
+     */
     public BioFormatsImageLoader(List<File> files, final AbstractSequenceDescription<?, ?, ?> sequenceDescription) {
         this.files = files;
         this.sequenceDescription = sequenceDescription;
         IFormatReader readerIdx = new ImageReader();
 
         readerIdx.setFlattenedResolutions(false);
-        Memoizer memo = new Memoizer( readerIdx );
+        Memoizer memo = BioFormatsMemo.wrap( readerIdx );
 
         final IMetadata omeMetaOmeXml = MetadataTools.createOMEXMLMetadata();
         memo.setMetadataStore(omeMetaOmeXml);
 
+        // Setups in file, serie, channel order, then also timepoint order for the older layout
+        List<FileSerieChannel> setupsPerChannel = new ArrayList<>();
+        List<FileSerieChannel> setupsPerChannelAndTimepoint = new ArrayList<>();
+
         IntStream filesIdxStream = IntStream.range(0, files.size());
         if ((sequenceDescription!=null)) {
             filesIdxStream.forEach(iF -> {
@@ -65,15 +120,12 @@ public class BioFormatsImageLoader implements ViewerImgLoader,MultiResolutionImg
                         File f = files.get(iF);
                         memo.setId(f.getAbsolutePath());
 
-                        tTypeGetter.put(iF,new HashMap<>());
-                        vTypeGetter.put(iF,new HashMap<>());
-
                         final IFormatReader reader = memo;
 
                         log.accept("Number of Series : " + reader.getSeriesCount());
                         final IMetadata omeMeta = (IMetadata) reader.getMetadataStore();
 
-                        // -------------------------- SETUPS For each Series : one per timepoint and one per channel
+                        // -------------------------- SETUPS For each Series : one per channel
 
                         IntStream series = IntStream.range(0, reader.getSeriesCount());
 
@@ -87,41 +139,19 @@ public class BioFormatsImageLoader implements ViewerImgLoader,MultiResolutionImg
                             log.accept("\t Serie " + iSerie + " Number of channels = " + omeMeta.getChannelCount(iSerie));
                             // Properties of the serie
                             IntStream channels = IntStream.range(0, omeMeta.getChannelCount(iSerie));
-                            // Register Setups (one per channel and one per timepoint)
+                            // Register Setups (one per channel, timepoints are handled by the SequenceDescription TimePoints)
+                            int nTimepoints = omeMeta.getPixelsSizeT(iSerie).getNumberValue().intValue();
                             channels.forEach(
                                     iCh -> {
-                                        IntStream timepoints = IntStream.range(0, omeMeta.getPixelsSizeT(iSerie).getNumberValue().intValue());
                                         FileSerieChannel fsc = new FileSerieChannel(iF, iSerie, iCh);
-                                        timepoints.forEach(
-                                                iTp -> {
-                                                    viewSetupToBFFileSerieChannel.put(viewSetupCounter,fsc);
-                                                    viewSetupCounter++;
-                                                });
+                                        setupsPerChannel.add(fsc);
+                                        for (int iTp=0;iTp<nTimepoints;iTp++) {
+                                            setupsPerChannelAndTimepoint.add(fsc);
+                                        }
                                     });
 
                             try {
-                                BioFormatsHelper h = new BioFormatsHelper(reader, iSerie);
-                                if (h.is24bitsRGB) {
-                                    tTypeGetter.get(iF).put(iSerie, () -> new ARGBType());
-                                    vTypeGetter.get(iF).put(iSerie, () -> new VolatileARGBType());
-                                } else {
-                                    if (h.is8bits) {
-                                        tTypeGetter.get(iF).put(iSerie, () -> new UnsignedByteType());
-                                        vTypeGetter.get(iF).put(iSerie, () -> new VolatileUnsignedByteType());
-                                    }
-                                    if (h.is16bits) {
-                                        tTypeGetter.get(iF).put(iSerie, () -> new UnsignedShortType());
-                                        vTypeGetter.get(iF).put(iSerie, () -> new VolatileUnsignedShortType());
-                                    }
-                                    if (h.is32bits) {
-                                        tTypeGetter.get(iF).put(iSerie, () -> new UnsignedIntType());
-                                        vTypeGetter.get(iF).put(iSerie, () -> new VolatileUnsignedIntType());
-                                    }
-                                    if (h.isFloat32bits) {
-                                        tTypeGetter.get(iF).put(iSerie, () -> new FloatType());
-                                        vTypeGetter.get(iF).put(iSerie, () -> new VolatileFloatType());
-                                    }
-                                }
+                                setSerieMetadata(iF, iSerie, SerieMetadata.fromReader(reader, iSerie));
                             } catch (Exception e) {
                                 e.printStackTrace();
                             }
@@ -132,40 +162,275 @@ public class BioFormatsImageLoader implements ViewerImgLoader,MultiResolutionImg
                     e.printStackTrace();
                 }
             });
+
+            int nSetups = sequenceDescription.getViewSetups().size();
+            List<FileSerieChannel> setups;
+            if (nSetups==setupsPerChannel.size()) {
+                setups = setupsPerChannel;
+            } else if (nSetups==setupsPerChannelAndTimepoint.size()) {
+                log.accept("Dataset with one setup per channel and per timepoint");
+                setups = setupsPerChannelAndTimepoint;
+            } else {
+                throw new IllegalStateException("The dataset has "+nSetups+" setups but its files contain "
+                        +setupsPerChannel.size()+" channels ("+setupsPerChannelAndTimepoint.size()+" channels and timepoints) :"
+                        +" the files were modified or could not be read");
+            }
+            for (FileSerieChannel fsc : setups) {
+                viewSetupToBFFileSerieChannel.put(viewSetupCounter,fsc);
+                viewSetupCounter++;
+            }
         }
-        // NOT CORRECTLY IMPLEMENTED YET
-        final BlockingFetchQueues<Callable<?>> queue = new BlockingFetchQueues<>(1);
-        cache = new VolatileGlobalCellCache(queue);
     }
 
-    public BFViewerImgLoader getSetupImgLoader(int setupId) {
+    /**
+     * Builds the loader from already known setups metadata : no file is opened
+     * @param files
+     * @param viewSetupToBFFileSerieChannel file, serie and channel of each setup
+     * @param fileSerieMetadata pixel type and resolution levels of each file serie
+     * @param sequenceDescription
+     */
+    public BioFormatsImageLoader(List<File> files,
+                                 Map<Integer, FileSerieChannel> viewSetupToBFFileSerieChannel,
+                                 Map<Integer, Map<Integer, SerieMetadata>> fileSerieMetadata,
+                                 final AbstractSequenceDescription<?, ?, ?> sequenceDescription) {
+        this.files = files;
+        this.sequenceDescription = sequenceDescription;
+        this.viewSetupToBFFileSerieChannel.putAll(viewSetupToBFFileSerieChannel);
+        this.viewSetupCounter = viewSetupToBFFileSerieChannel.size();
+        fileSerieMetadata.forEach((iF, series) -> series.forEach((iS, metadata) -> setSerieMetadata(iF, iS, metadata)));
+    }
+
+    public Map<Integer, FileSerieChannel> getViewSetupToFileSerieChannel() {
+        return viewSetupToBFFileSerieChannel;
+    }
+
+    public Map<Integer, Map<Integer, SerieMetadata>> getFileSerieMetadata() {
+        return fileSerieMetadata;
+    }
+
+    /**
+     * @return channel id of each channel hash (see BioFormatsHelper#getChannelHashFromBFMeta), empty if unknown
+     */
+    public Map<Integer, Integer> getChannelHashToId() {
+        return channelHashToId;
+    }
+
+    void setSerieMetadata(int iF, int iS, SerieMetadata metadata) {
+        if (!fileSerieMetadata.containsKey(iF)) {
+            fileSerieMetadata.put(iF, new HashMap<>());
+            tTypeGetter.put(iF, new HashMap<>());
+            vTypeGetter.put(iF, new HashMap<>());
+        }
+        fileSerieMetadata.get(iF).put(iS, metadata);
+        if (metadata.pixelType==null) {
+            log.accept("Unsupported pixel type for file "+iF+" serie "+iS);
+            return;
+        }
+        switch (metadata.pixelType) {
+            case SerieMetadata.RGB:
+                tTypeGetter.get(iF).put(iS, () -> new ARGBType());
+                vTypeGetter.get(iF).put(iS, () -> new VolatileARGBType());
+                break;
+            case SerieMetadata.UINT8:
+                tTypeGetter.get(iF).put(iS, () -> new UnsignedByteType());
+                vTypeGetter.get(iF).put(iS, () -> new VolatileUnsignedByteType());
+                break;
+            case SerieMetadata.UINT16:
+                tTypeGetter.get(iF).put(iS, () -> new UnsignedShortType());
+                vTypeGetter.get(iF).put(iS, () -> new VolatileUnsignedShortType());
+                break;
+            case SerieMetadata.UINT32:
+                tTypeGetter.get(iF).put(iS, () -> new UnsignedIntType());
+                vTypeGetter.get(iF).put(iS, () -> new VolatileUnsignedIntType());
+                break;
+            case SerieMetadata.FLOAT:
+                tTypeGetter.get(iF).put(iS, () -> new FloatType());
+                vTypeGetter.get(iF).put(iS, () -> new VolatileFloatType());
+                break;
+            default:
+                log.accept("Unsupported pixel type "+metadata.pixelType);
+        }
+    }
+
+    public synchronized BFViewerImgLoader getSetupImgLoader(int setupId) {
         if (imgLoaders.containsKey(setupId)) {
             return imgLoaders.get(setupId);
         } else {
             int iF = viewSetupToBFFileSerieChannel.get(setupId).iFile;
             int iS = viewSetupToBFFileSerieChannel.get(setupId).iSerie;
             int iC = viewSetupToBFFileSerieChannel.get(setupId).iChannel;
+            // XY blocks follow the tiles of the file, z blocks need a positive size for 3D images
             BFViewerImgLoader imgL = new BFViewerImgLoader(
-                    files.get(iF),
+                    getReaderPool(iF),
                     iS,
                     iC,
                     false,
-                    false,
                     true,
                     -1,
                     -1,
-                    -1,
+                    32,
+                    getSharedQueue(),
+                    fileSerieMetadata.get(iF).get(iS).resolutionDimensions,
                     tTypeGetter.get(iF).get(iS),
                     vTypeGetter.get(iF).get(iS)
             );
+            imgL.approximateMinMax = approximateMinMax;
             imgLoaders.put(setupId,imgL);
             return imgL;
         }
     }
 
+    /**
+     * @param iFile file index
+     * @return the pool of readers of the file, readers are opened on demand
+     */
+    public ReaderPool getReaderPool(int iFile) {
+        return readerPools.computeIfAbsent(iFile, iF -> {
+            startIdleReadersCloser();
+            return new ReaderPool(getNumberOfReadersPerFile(), () -> {
+                try {
+                    reserveOpenFile(iF);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+                return openReader(files.get(iF));
+            });
+        });
+    }
+
+    /**
+     * @return the fetcher queue of the volatile sources, created with its fetcher threads on first call
+     */
+    synchronized SharedQueue getSharedQueue() {
+        if (sharedQueue==null) {
+            // The queue starts no thread : its fetchers are owned by the loader, to be stopped on close
+            SharedQueue queue = new SharedQueue(0);
+            int nThreads = Math.max(1, Runtime.getRuntime().availableProcessors()-1);
+            fetchers = Executors.newFixedThreadPool(nThreads, r -> {
+                Thread thread = new Thread(r, "BioFormats fetcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            for (int i=0;i<nThreads;i++) {
+                fetchers.execute(() -> fetch(queue));
+            }
+            sharedQueue = queue;
+        }
+        return sharedQueue;
+    }
+
+    static void fetch(SharedQueue queue) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                queue.take().call();
+            } catch (InterruptedException e) {
+                return; // Loader closed
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return the maximal number of readers opened on a file
+     */
+    public int getNumberOfReadersPerFile() {
+        if (numberOfReadersPerFile>0) return numberOfReadersPerFile;
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    IFormatReader openReader(File f) {
+        try {
+            log.accept("Opening file "+f.getAbsolutePath());
+            IFormatReader reader = new ImageReader();
+            reader.setFlattenedResolutions(false);
+            Memoizer memo = BioFormatsMemo.wrap( reader );
+            memo.setMetadataStore(MetadataTools.createOMEXMLMetadata());
+            memo.setId(f.getAbsolutePath());
+            return memo;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reserves a slot for a file before opening a reader on it. If maxNumberOfOpenFiles
+     * files are already opened, idle readers of the least recently used file are closed ;
+     * if all of them are in use, waits until one file is released
+     * @param iFileToOpen file about to be opened
+     * @throws InterruptedException
+     */
+    synchronized void reserveOpenFile(int iFileToOpen) throws InterruptedException {
+        while ((!openFiles.contains(iFileToOpen))&&(openFiles.size()>=maxNumberOfOpenFiles)) {
+            List<Integer> leastRecentlyUsed = openFiles.stream()
+                    .sorted(Comparator.comparingLong(iF -> readerPools.get(iF).getLastAccessTime()))
+                    .collect(Collectors.toList());
+            for (int iF : leastRecentlyUsed) {
+                ReaderPool pool = readerPools.get(iF);
+                pool.closeIdleReaders();
+                if (pool.getNumberOfOpenReaders()==0) {
+                    openFiles.remove(iF);
+                    break;
+                }
+            }
+            if (openFiles.size()>=maxNumberOfOpenFiles) {
+                // Readers are recycled without notifying the loader : idle readers are looked for again regularly
+                wait(100);
+            }
+        }
+        openFiles.add(iFileToOpen);
+    }
+
+    /**
+     * Frees the slots of the files whose readers are all closed
+     */
+    synchronized void releaseClosedFiles() {
+        openFiles.removeIf(iF -> readerPools.get(iF).getNumberOfOpenReaders()==0);
+        notifyAll();
+    }
+
+    synchronized void startIdleReadersCloser() {
+        if (idleReadersCloser!=null) return;
+        idleReadersCloser = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "BioFormats idle readers closer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, readerIdleTimeoutInMs/2);
+        idleReadersCloser.scheduleAtFixedRate(this::closeIdleReaders, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes readers of files which were not accessed during readerIdleTimeoutInMs
+     */
+    void closeIdleReaders() {
+        long now = System.currentTimeMillis();
+        readerPools.values().stream()
+                .filter(pool -> now-pool.getLastAccessTime()>readerIdleTimeoutInMs)
+                .forEach(ReaderPool::closeIdleReaders);
+        releaseClosedFiles();
+    }
+
+    /**
+     * Closes all idle readers, stops the idle readers closer and the fetcher threads
+     */
+    public synchronized void close() {
+        if (idleReadersCloser!=null) {
+            idleReadersCloser.shutdown();
+        }
+        if (fetchers!=null) {
+            fetchers.shutdownNow();
+            fetchers = null;
+            sharedQueue = null;
+        }
+        readerPools.values().forEach(ReaderPool::closeIdleReaders);
+        releaseClosedFiles();
+    }
+
     @Override
     public CacheControl getCacheControl() {
-        return cache;
+        return cacheControl;
     }
 
 }
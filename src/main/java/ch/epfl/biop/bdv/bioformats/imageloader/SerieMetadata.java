@@ -0,0 +1,74 @@
+package ch.epfl.biop.bdv.bioformats.imageloader;
+
+import ch.epfl.biop.bdv.bioformats.BioFormatsHelper;
+import loci.formats.IFormatReader;
+
+/**
+ * Metadata of a file serie which is needed to create its setups loaders
+ * without opening the file : pixel type and dimensions of each resolution level
+ */
+
+public class SerieMetadata {
+
+    public static final String RGB = "rgb";
+    public static final String UINT8 = "uint8";
+    public static final String UINT16 = "uint16";
+    public static final String UINT32 = "uint32";
+    public static final String FLOAT = "float";
+
+    public String pixelType;
+
+    // [level][dimension], always 3 dimensions
+    public long[][] resolutionDimensions;
+
+    public SerieMetadata(String pixelType, long[][] resolutionDimensions) {
+        this.pixelType = pixelType;
+        this.resolutionDimensions = resolutionDimensions;
+    }
+
+    /**
+     * Reads the metadata of a serie from an opened reader
+     * @param reader opened reader, with flattened resolutions set to false
+     * @param iSerie serie index
+     * @return metadata of the serie, pixel type is null if unsupported
+     * @throws Exception
+     */
+    public static SerieMetadata fromReader(IFormatReader reader, int iSerie) throws Exception {
+        BioFormatsHelper h = new BioFormatsHelper(reader, iSerie);
+        String pixelType = null;
+        if (h.is24bitsRGB) {
+            pixelType = RGB;
+        } else {
+            if (h.is8bits) pixelType = UINT8;
+            if (h.is16bits) pixelType = UINT16;
+            if (h.is32bits) pixelType = UINT32;
+            if (h.isFloat32bits) pixelType = FLOAT;
+        }
+        return new SerieMetadata(pixelType, BioFormatsHelper.getResolutionDimensions(reader, iSerie));
+    }
+
+    /**
+     * @return resolution dimensions serialized as "sx,sy,sz;sx,sy,sz;..."
+     */
+    public String resolutionDimensionsToString() {
+        StringBuilder str = new StringBuilder();
+        for (int level=0;level<resolutionDimensions.length;level++) {
+            if (level>0) str.append(";");
+            long[] dims = resolutionDimensions[level];
+            str.append(dims[0]).append(",").append(dims[1]).append(",").append(dims[2]);
+        }
+        return str.toString();
+    }
+
+    public static long[][] resolutionDimensionsFromString(String str) {
+        String[] levels = str.split(";");
+        long[][] resolutionDimensions = new long[levels.length][3];
+        for (int level=0;level<levels.length;level++) {
+            String[] dims = levels[level].split(",");
+            for (int d=0;d<3;d++) {
+                resolutionDimensions[level][d] = Long.valueOf(dims[d].trim());
+            }
+        }
+        return resolutionDimensions;
+    }
+}
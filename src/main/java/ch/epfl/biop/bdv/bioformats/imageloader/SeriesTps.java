@@ -1,10 +0,0 @@
-package ch.epfl.biop.bdv.bioformats.imageloader;
-
-public class SeriesTps {
-    public int nSeries;
-    public int nTps;
-    public SeriesTps(int nSeries, int nTps) {
-        this.nSeries = nSeries;
-        this.nTps = nTps;
-    }
-}
@@ -9,6 +9,8 @@ import org.jdom2.Element;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 import static mpicbg.spim.data.XmlKeys.IMGLOADER_FORMAT_ATTRIBUTE_NAME;
 
@@ -18,16 +20,46 @@ public class XmlIoBioFormatsImgLoader implements XmlIoBasicImgLoader< BioFormats
     public static final String DIRECTORY_TAG = "imagedirectory";
     public static final String FILE_NUMBER_TAG = "files_number";
     public static final String FILE_TAG = "filename";
+    public static final String SERIE_TAG = "serie";
+    public static final String SETUP_TAG = "setup";
+    public static final String CHANNEL_TAG = "channel";
+    public static final String APPROXIMATE_MIN_MAX_ATTRIBUTE = "approximateMinMax";
+    public static final String NUMBER_OF_READERS_PER_FILE_ATTRIBUTE = "numberOfReadersPerFile";
 
     @Override
     public Element toXml(BioFormatsImageLoader imgLoader, File basePath) {
         final Element elem = new Element( "ImageLoader" );
         elem.setAttribute( IMGLOADER_FORMAT_ATTRIBUTE_NAME, this.getClass().getAnnotation( ImgLoaderIo.class ).format() );
+        if (imgLoader.approximateMinMax) elem.setAttribute( APPROXIMATE_MIN_MAX_ATTRIBUTE, "true" );
+        if (imgLoader.numberOfReadersPerFile>0) elem.setAttribute( NUMBER_OF_READERS_PER_FILE_ATTRIBUTE, Integer.toString(imgLoader.numberOfReadersPerFile) );
         elem.addContent( XmlHelpers.pathElement( DIRECTORY_TAG, imgLoader.files.get(0).getParentFile(), basePath ) );
         elem.addContent(XmlHelpers.intElement( FILE_NUMBER_TAG, imgLoader.files.size()));
         for (int i=0;i<imgLoader.files.size();i++) {
             elem.addContent(XmlHelpers.textElement(FILE_TAG+"_"+i, imgLoader.files.get(i).getName()));
         }
+        // Setups metadata : allows to create the loader without opening the files
+        imgLoader.fileSerieMetadata.forEach((iF, series) -> series.forEach((iS, metadata) -> {
+            final Element serieElem = new Element( SERIE_TAG );
+            serieElem.setAttribute("file", Integer.toString(iF));
+            serieElem.setAttribute("index", Integer.toString(iS));
+            if (metadata.pixelType!=null) serieElem.setAttribute("type", metadata.pixelType);
+            serieElem.setAttribute("resolutions", metadata.resolutionDimensionsToString());
+            elem.addContent(serieElem);
+        }));
+        imgLoader.viewSetupToBFFileSerieChannel.forEach((setupId, fsc) -> {
+            final Element setupElem = new Element( SETUP_TAG );
+            setupElem.setAttribute("id", Integer.toString(setupId));
+            setupElem.setAttribute("file", Integer.toString(fsc.iFile));
+            setupElem.setAttribute("serie", Integer.toString(fsc.iSerie));
+            setupElem.setAttribute("channel", Integer.toString(fsc.iChannel));
+            elem.addContent(setupElem);
+        });
+        imgLoader.channelHashToId.forEach((hash, channelId) -> {
+            final Element channelElem = new Element( CHANNEL_TAG );
+            channelElem.setAttribute("hash", Integer.toString(hash));
+            channelElem.setAttribute("id", Integer.toString(channelId));
+            elem.addContent(channelElem);
+        });
         return elem;
     }
 
@@ -45,7 +77,51 @@ public class XmlIoBioFormatsImgLoader implements XmlIoBasicImgLoader< BioFormats
                 files.add(f);
             }
 
-            return new BioFormatsImageLoader( files, sequenceDescription);
+            boolean approximateMinMax = Boolean.parseBoolean(elem.getAttributeValue( APPROXIMATE_MIN_MAX_ATTRIBUTE ));
+            int numberOfReadersPerFile = -1;
+            if (elem.getAttributeValue( NUMBER_OF_READERS_PER_FILE_ATTRIBUTE )!=null) {
+                numberOfReadersPerFile = Integer.valueOf(elem.getAttributeValue( NUMBER_OF_READERS_PER_FILE_ATTRIBUTE ));
+            }
+
+            if (elem.getChildren( SETUP_TAG ).isEmpty()) {
+                // Older dataset : files need to be scanned
+                BioFormatsImageLoader imgLoader = new BioFormatsImageLoader( files, sequenceDescription);
+                imgLoader.approximateMinMax = approximateMinMax;
+                imgLoader.numberOfReadersPerFile = numberOfReadersPerFile;
+                return imgLoader;
+            }
+
+            Map<Integer, Map<Integer, SerieMetadata>> fileSerieMetadata = new HashMap<>();
+            for (Element serieElem : elem.getChildren( SERIE_TAG )) {
+                int iF = Integer.valueOf(serieElem.getAttributeValue("file"));
+                int iS = Integer.valueOf(serieElem.getAttributeValue("index"));
+                if (!fileSerieMetadata.containsKey(iF)) {
+                    fileSerieMetadata.put(iF, new HashMap<>());
+                }
+                fileSerieMetadata.get(iF).put(iS, new SerieMetadata(
+                        serieElem.getAttributeValue("type"),
+                        SerieMetadata.resolutionDimensionsFromString(serieElem.getAttributeValue("resolutions"))));
+            }
+
+            Map<Integer, FileSerieChannel> viewSetupToBFFileSerieChannel = new HashMap<>();
+            for (Element setupElem : elem.getChildren( SETUP_TAG )) {
+                viewSetupToBFFileSerieChannel.put(
+                        Integer.valueOf(setupElem.getAttributeValue("id")),
+                        new FileSerieChannel(
+                                Integer.valueOf(setupElem.getAttributeValue("file")),
+                                Integer.valueOf(setupElem.getAttributeValue("serie")),
+                                Integer.valueOf(setupElem.getAttributeValue("channel"))));
+            }
+
+            BioFormatsImageLoader imgLoader = new BioFormatsImageLoader( files, viewSetupToBFFileSerieChannel, fileSerieMetadata, sequenceDescription);
+            imgLoader.approximateMinMax = approximateMinMax;
+            imgLoader.numberOfReadersPerFile = numberOfReadersPerFile;
+            for (Element channelElem : elem.getChildren( CHANNEL_TAG )) {
+                imgLoader.channelHashToId.put(
+                        Integer.valueOf(channelElem.getAttributeValue("hash")),
+                        Integer.valueOf(channelElem.getAttributeValue("id")));
+            }
+            return imgLoader;
         }
         catch ( final Exception e )
         {
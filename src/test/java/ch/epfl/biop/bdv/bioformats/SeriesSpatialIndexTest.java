@@ -0,0 +1,90 @@
+package ch.epfl.biop.bdv.bioformats;
+
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SeriesSpatialIndexTest {
+
+    /**
+     * 2 x 2 tiles of 100 x 100 x 10 voxels, the series 1 and 2 are present at 3 timepoints, the others at 1
+     */
+    static SeriesSpatialIndex createTileScan() {
+        List<RealInterval> bounds = new ArrayList<>();
+        for (int i=0;i<4;i++) {
+            double x = (i%2)*100;
+            double y = (i/2)*100;
+            bounds.add(new FinalRealInterval(new double[]{x, y, 0}, new double[]{x+99, y+99, 9}));
+        }
+        return new SeriesSpatialIndex(bounds, new int[]{1, 3, 3, 1});
+    }
+
+    static RealInterval region(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+        return new FinalRealInterval(new double[]{minX, minY, minZ}, new double[]{maxX, maxY, maxZ});
+    }
+
+    @Test
+    public void queryInsideTile() {
+        SeriesSpatialIndex index = createTileScan();
+        assertEquals(Arrays.asList(0), index.query(region(10, 10, 0, 20, 20, 5)));
+        assertEquals(Arrays.asList(3), index.query(region(150, 150, 0, 160, 160, 5)));
+    }
+
+    @Test
+    public void queryEdgesAreInclusive() {
+        SeriesSpatialIndex index = createTileScan();
+        // Region touching the last voxel of tile 0 only
+        assertEquals(Arrays.asList(0), index.query(region(99, 99, 9, 99, 99, 9)));
+        // Region on the border between the four tiles
+        assertEquals(Arrays.asList(0, 1, 2, 3), index.query(region(99, 99, 0, 100, 100, 0)));
+        // Region along the border between tiles 0 and 1
+        assertEquals(Arrays.asList(0, 1), index.query(region(99, 0, 0, 100, 50, 0)));
+    }
+
+    @Test
+    public void queryOutsideOfAllTiles() {
+        SeriesSpatialIndex index = createTileScan();
+        assertEquals(Collections.emptyList(), index.query(region(-50, -50, 0, -1, -1, 5)));
+        assertEquals(Collections.emptyList(), index.query(region(200, 0, 0, 300, 300, 5)));
+        assertEquals(Collections.emptyList(), index.query(region(0, 0, 10, 199, 199, 20)));
+    }
+
+    @Test
+    public void queryLargerThanIndexChecksAllTiles() {
+        SeriesSpatialIndex index = createTileScan();
+        assertEquals(Arrays.asList(0, 1, 2, 3), index.query(region(-1000, -1000, -1000, 1000, 1000, 1000)));
+    }
+
+    @Test
+    public void queryAtTimepoint() {
+        SeriesSpatialIndex index = createTileScan();
+        RealInterval all = region(0, 0, 0, 199, 199, 9);
+        assertEquals(Arrays.asList(0, 1, 2, 3), index.query(all, 0));
+        assertEquals(Arrays.asList(1, 2), index.query(all, 1));
+        assertEquals(Arrays.asList(1, 2), index.query(all, 2));
+        assertEquals(Collections.emptyList(), index.query(all, 3));
+        // Timepoints are ignored without timepoint
+        assertEquals(Arrays.asList(0, 1, 2, 3), index.query(all));
+    }
+
+    @Test
+    public void elementsWithoutTimepointsArePresentAtAllTimepoints() {
+        SeriesSpatialIndex index = new SeriesSpatialIndex(Arrays.asList(region(0, 0, 0, 9, 9, 0)), null);
+        assertEquals(Arrays.asList(0), index.query(region(0, 0, 0, 1, 1, 0), 100));
+    }
+
+    @Test
+    public void emptyIndex() {
+        SeriesSpatialIndex index = new SeriesSpatialIndex(new ArrayList<RealInterval>(), null);
+        assertEquals(0, index.size());
+        assertEquals(Collections.emptyList(), index.query(region(0, 0, 0, 10, 10, 10), 0));
+    }
+
+}
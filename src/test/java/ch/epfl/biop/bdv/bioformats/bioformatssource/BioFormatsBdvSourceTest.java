@@ -0,0 +1,55 @@
+package ch.epfl.biop.bdv.bioformats.bioformatssource;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.util.Intervals;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BioFormatsBdvSourceTest {
+
+    @Test
+    public void cellsCoverTheIntervalWithXFastest() {
+        Interval interval = new FinalInterval(new long[]{10, 20}, new long[]{19, 24});
+        List<Interval> cells = BioFormatsBdvSource.getCellIntervals(interval, new int[]{4, 2});
+        assertEquals(9, cells.size());
+        assertInterval(new long[]{10, 20}, new long[]{13, 21}, cells.get(0));
+        assertInterval(new long[]{14, 20}, new long[]{17, 21}, cells.get(1));
+        // Border cells are clipped to the interval
+        assertInterval(new long[]{18, 20}, new long[]{19, 21}, cells.get(2));
+        assertInterval(new long[]{10, 22}, new long[]{13, 23}, cells.get(3));
+        assertInterval(new long[]{18, 24}, new long[]{19, 24}, cells.get(8));
+        long nPixels = 0;
+        for (Interval cell : cells) nPixels += Intervals.numElements(cell);
+        assertEquals(Intervals.numElements(interval), nPixels);
+    }
+
+    @Test
+    public void cellLargerThanTheInterval() {
+        Interval interval = new FinalInterval(new long[]{0, 0, 0}, new long[]{99, 49, 0});
+        List<Interval> cells = BioFormatsBdvSource.getCellIntervals(interval, new int[]{512, 512, 1});
+        assertEquals(1, cells.size());
+        assertInterval(new long[]{0, 0, 0}, new long[]{99, 49, 0}, cells.get(0));
+    }
+
+    @Test
+    public void cellsMatchingTheIntervalExactly() {
+        Interval interval = new FinalInterval(8, 8, 4);
+        List<Interval> cells = BioFormatsBdvSource.getCellIntervals(interval, new int[]{4, 4, 2});
+        assertEquals(8, cells.size());
+        for (Interval cell : cells) {
+            assertArrayEquals(new long[]{4, 4, 2}, Intervals.dimensionsAsLongArray(cell));
+        }
+        assertInterval(new long[]{4, 4, 2}, new long[]{7, 7, 3}, cells.get(7));
+    }
+
+    static void assertInterval(long[] min, long[] max, Interval interval) {
+        assertArrayEquals(min, Intervals.minAsLongArray(interval));
+        assertArrayEquals(max, Intervals.maxAsLongArray(interval));
+    }
+
+}
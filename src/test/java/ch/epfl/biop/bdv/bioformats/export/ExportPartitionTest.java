@@ -0,0 +1,125 @@
+package ch.epfl.biop.bdv.bioformats.export;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExportPartitionTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void parseSingleProcess() {
+        assertNull(ExportPartition.parse(null));
+        assertNull(ExportPartition.parse(""));
+        assertNull(ExportPartition.parse("  "));
+    }
+
+    @Test
+    public void parsePartition() {
+        ExportPartition partition = ExportPartition.parse(" 2 / 4 ");
+        assertEquals(2, partition.index);
+        assertEquals(4, partition.count);
+        assertFalse(partition.isMerge());
+        assertEquals("2/4", partition.toString());
+    }
+
+    @Test
+    public void parseMerge() {
+        ExportPartition partition = ExportPartition.parse("merge/3");
+        assertTrue(partition.isMerge());
+        assertEquals(3, partition.count);
+        assertEquals("merge/3", partition.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseIndexOutOfRange() {
+        ExportPartition.parse("4/4");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseMissingCount() {
+        ExportPartition.parse("1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseNotANumber() {
+        ExportPartition.parse("a/4");
+    }
+
+    @Test
+    public void containsTasksModuloCount() {
+        ExportPartition partition = new ExportPartition(1, 3);
+        for (long task=0;task<10;task++) {
+            assertEquals(task%3==1, partition.contains(task));
+        }
+    }
+
+    @Test
+    public void everyTaskBelongsToOnePartition() {
+        int count = 4;
+        for (long task=0;task<20;task++) {
+            int nOwners = 0;
+            for (int i=0;i<count;i++) {
+                if (new ExportPartition(i, count).contains(task)) nOwners++;
+            }
+            assertEquals(1, nOwners);
+        }
+    }
+
+    @Test
+    public void mergeContainsNoTask() {
+        ExportPartition merge = ExportPartition.parse("merge/2");
+        for (long task=0;task<4;task++) {
+            assertFalse(merge.contains(task));
+        }
+    }
+
+    @Test
+    public void startChecksTheManifestSignature() throws IOException {
+        File output = folder.newFolder();
+        new ExportPartition(0, 2).start(output, "export");
+        new ExportPartition(1, 2).start(output, "export");
+        try {
+            new ExportPartition(1, 2).start(output, "another export");
+            fail("A different export should be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+        try {
+            new ExportPartition(1, 3).start(output, "export");
+            fail("A different number of partitions should be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(1, new File(output, ExportPartition.MANIFEST_DIRECTORY).list().length);
+    }
+
+    @Test
+    public void mergeNeedsAllPartitionsDone() throws IOException {
+        File output = folder.newFolder();
+        ExportPartition merge = ExportPartition.parse("merge/2");
+        new ExportPartition(0, 2).start(output, "export");
+        new ExportPartition(0, 2).done(output, 5, 1.0);
+        try {
+            merge.checkAllDone(output, "export");
+            fail("Partition 1 is not done");
+        } catch (IOException e) {
+            // Expected
+        }
+        new ExportPartition(1, 2).start(output, "export");
+        new ExportPartition(1, 2).done(output, 5, 1.0);
+        merge.checkAllDone(output, "export");
+    }
+
+}
@@ -0,0 +1,107 @@
+package ch.epfl.biop.bdv.bioformats.export.ometiff;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class BigTiffTileWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 1000 x 600 8 bits image with 2 resolution levels and 512 x 512 tiles, uncompressed
+     */
+    BigTiffTileWriter createWriter(File file) throws IOException {
+        return new BigTiffTileWriter(file, 1, new long[]{1000, 500}, new long[]{600, 300}, 512, 512,
+                1, 1, false, false, "Uncompressed", "description", false);
+    }
+
+    @Test
+    public void numberOfTiles() throws IOException {
+        BigTiffTileWriter writer = createWriter(folder.newFile());
+        assertEquals(4, writer.getNumberOfTiles(0));
+        assertEquals(1, writer.getNumberOfTiles(1));
+        writer.abort();
+    }
+
+    @Test
+    public void tileIndexInRowOrder() throws IOException {
+        BigTiffTileWriter writer = createWriter(folder.newFile());
+        assertEquals(0, writer.getTileIndex(0, 0, 0));
+        assertEquals(1, writer.getTileIndex(0, 512, 0));
+        assertEquals(2, writer.getTileIndex(0, 0, 512));
+        assertEquals(3, writer.getTileIndex(0, 512, 512));
+        assertEquals(0, writer.getTileIndex(1, 0, 0));
+        writer.abort();
+    }
+
+    @Test
+    public void tilesAreAppendedAfterTheHeader() throws IOException {
+        BigTiffTileWriter writer = createWriter(folder.newFile());
+        // Tiles can be written in any order
+        assertEquals(16, writer.writeTile(0, 0, 512, 512, new byte[100]));
+        assertEquals(116, writer.writeTile(0, 0, 0, 0, new byte[50]));
+        assertEquals(166, writer.writeTile(0, 1, 0, 0, new byte[10]));
+        assertArrayEquals(new long[]{116, 0, 0, 16}, writer.tileOffsets[0][0]);
+        assertArrayEquals(new long[]{50, 0, 0, 100}, writer.tileByteCounts[0][0]);
+        assertArrayEquals(new long[]{166}, writer.tileOffsets[0][1]);
+        writer.abort();
+    }
+
+    @Test
+    public void borderTilesArePadded() throws IOException {
+        BigTiffTileWriter writer = createWriter(folder.newFile());
+        byte[] border = new byte[]{1, 2, 3, 4, 5, 6};
+        byte[] tile = writer.compress(border, 3, 2);
+        assertEquals(512*512, tile.length);
+        assertArrayEquals(new byte[]{1, 2, 3, 0}, new byte[]{tile[0], tile[1], tile[2], tile[3]});
+        assertArrayEquals(new byte[]{4, 5, 6, 0}, new byte[]{tile[512], tile[513], tile[514], tile[515]});
+        writer.abort();
+    }
+
+    @Test
+    public void closeWritesTheFirstIFDOffset() throws IOException {
+        File file = folder.newFile();
+        BigTiffTileWriter writer = createWriter(file);
+        for (int i=0;i<4;i++) {
+            writer.writeTile(0, 0, (i%2)*512, (i/2)*512, writer.compress(new byte[512*512], 512, 512));
+        }
+        writer.writeTile(0, 1, 0, 0, writer.compress(new byte[500*300], 500, 300));
+        writer.close();
+        ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals('I', header.get(0));
+        assertEquals(43, header.getShort(2));
+        assertNotEquals(0, header.getLong(8));
+    }
+
+    @Test
+    public void reducedResolutionsAreMarkedWithALongNewSubfileType() throws IOException {
+        BigTiffTileWriter writer = createWriter(folder.newFile());
+        for (BigTiffTileWriter.Entry entry : writer.getEntries(0, 0, null)) {
+            assertNotEquals(BigTiffTileWriter.NEW_SUBFILE_TYPE, entry.tag);
+        }
+        BigTiffTileWriter.Entry newSubfileType = writer.getEntries(0, 1, null).get(0);
+        assertEquals(BigTiffTileWriter.NEW_SUBFILE_TYPE, newSubfileType.tag);
+        assertEquals(BigTiffTileWriter.LONG, newSubfileType.type);
+        assertArrayEquals(new byte[]{1, 0, 0, 0}, newSubfileType.values);
+        writer.abort();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tileSizeShouldBeAMultipleOf16() throws IOException {
+        new BigTiffTileWriter(folder.newFile(), 1, new long[]{100}, new long[]{100}, 100, 128,
+                1, 1, false, false, "Uncompressed", null, false);
+    }
+
+}
@@ -0,0 +1,63 @@
+package ch.epfl.biop.bdv.bioformats.export.omezarr;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OmeZarrWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 2 x 3 x 1 image, value = x + 10 * y, written in a shard of 2 x 2 x 1 chunks of 2 x 2 x 1 pixels :
+     * the chunks of the second column are outside of the image
+     */
+    byte[] writeShard(File zarrDirectory) throws IOException {
+        ArrayImg<UnsignedByteType, ByteArray> image = ArrayImgs.unsignedBytes(new byte[]{0, 1, 10, 11, 20, 21}, 2, 3, 1);
+        OmeZarrWriter writer = new OmeZarrWriter(zarrDirectory, new int[]{2, 2, 1}, new int[]{2, 2, 1}, "raw", 1);
+        writer.writeShard(0, 1, 2, image, new long[]{0, 0, 0});
+        File shardFile = new File(zarrDirectory, "s0/c/2/1/0/0/0");
+        assertTrue(shardFile.exists());
+        return Files.readAllBytes(shardFile.toPath());
+    }
+
+    @Test
+    public void shardIndexFollowsTheChunks() throws IOException {
+        byte[] shard = writeShard(folder.newFolder());
+        // Two chunks of 4 bytes, then 4 (offset, size) pairs
+        assertEquals(8+4*16, shard.length);
+        ByteBuffer index = ByteBuffer.wrap(shard, 8, 64).slice().order(ByteOrder.LITTLE_ENDIAN);
+        // Chunks in C order, x fastest
+        assertEquals(0, index.getLong(0));
+        assertEquals(4, index.getLong(8));
+        assertEquals(OmeZarrWriter.EMPTY_CHUNK, index.getLong(16));
+        assertEquals(OmeZarrWriter.EMPTY_CHUNK, index.getLong(24));
+        assertEquals(4, index.getLong(32));
+        assertEquals(4, index.getLong(40));
+        assertEquals(OmeZarrWriter.EMPTY_CHUNK, index.getLong(48));
+        assertEquals(OmeZarrWriter.EMPTY_CHUNK, index.getLong(56));
+    }
+
+    @Test
+    public void edgeChunksArePadded() throws IOException {
+        byte[] shard = writeShard(folder.newFolder());
+        assertArrayEquals(new byte[]{0, 1, 10, 11}, new byte[]{shard[0], shard[1], shard[2], shard[3]});
+        assertArrayEquals(new byte[]{20, 21, 0, 0}, new byte[]{shard[4], shard[5], shard[6], shard[7]});
+    }
+
+}
@@ -0,0 +1,78 @@
+package command;
+
+import ch.epfl.biop.bdv.bioformats.imageloader.BioFormatsImageLoader;
+import ch.epfl.biop.bdv.bioformats.imageloader.FileSerieChannel;
+import mpicbg.spim.data.SpimData;
+import mpicbg.spim.data.XmlIoSpimData;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.Angle;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.Illumination;
+import mpicbg.spim.data.sequence.SequenceDescription;
+import mpicbg.spim.data.sequence.Tile;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.TimePoints;
+import mpicbg.spim.data.sequence.ViewSetup;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Loads a dataset written in the layout of the first converter : one setup per channel and per timepoint,
+ * no setups metadata in the image loader. The image is a synthetic BioFormats file, no data is needed.
+ */
+public class RunLoadBaselineXmlDataset
+{
+	public static void main( String[] args ) throws Exception
+	{
+		int nChannels = 2;
+		int nTimepoints = 3;
+		File directory = Files.createTempDirectory( "baseline" ).toFile();
+		File imageFile = new File( directory, "image&sizeX=64&sizeY=32&sizeZ=1&sizeC="+nChannels+"&sizeT="+nTimepoints+".fake" );
+		imageFile.createNewFile();
+
+		List<ViewSetup> setups = new ArrayList<>();
+		for (int iCh=0;iCh<nChannels;iCh++) {
+			for (int iTp=0;iTp<nTimepoints;iTp++) {
+				setups.add( new ViewSetup( setups.size(), "image-"+iCh+":"+iTp, new FinalDimensions( 64, 32, 1 ),
+						new FinalVoxelDimensions( "mm", 1, 1, 1 ), new Tile( 0 ), new Channel( iCh ), new Angle( 0 ), new Illumination( 0 ) ) );
+			}
+		}
+		List<TimePoint> timePoints = new ArrayList<>();
+		for (int iTp=0;iTp<nTimepoints;iTp++) timePoints.add( new TimePoint( iTp ) );
+		List<ViewRegistration> registrations = new ArrayList<>();
+		for (TimePoint tp : timePoints) {
+			for (ViewSetup vs : setups) registrations.add( new ViewRegistration( tp.getId(), vs.getId(), new AffineTransform3D() ) );
+		}
+
+		// Without setups metadata, the loader is written as the first converter did
+		BioFormatsImageLoader writtenLoader = new BioFormatsImageLoader( Collections.singletonList( imageFile ), new HashMap<>(), new HashMap<>(), null );
+		SequenceDescription sd = new SequenceDescription( new TimePoints( timePoints ), setups, writtenLoader, null );
+		File xmlFile = new File( directory, "dataset.xml" );
+		new XmlIoSpimData().save( new SpimData( directory, sd, new ViewRegistrations( registrations ) ), xmlFile.getAbsolutePath() );
+
+		SpimData loaded = new XmlIoSpimData().load( xmlFile.getAbsolutePath() );
+		BioFormatsImageLoader imgLoader = ( BioFormatsImageLoader ) loaded.getSequenceDescription().getImgLoader();
+		for (ViewSetup vs : setups) {
+			FileSerieChannel fsc = imgLoader.getViewSetupToFileSerieChannel().get( vs.getId() );
+			if ((fsc==null)||(fsc.iChannel!=vs.getChannel().getId())) {
+				throw new IllegalStateException( "Setup "+vs.getId()+" is not mapped to channel "+vs.getChannel().getId() );
+			}
+			RandomAccessibleInterval<?> image = imgLoader.getSetupImgLoader( vs.getId() ).getImage( nTimepoints-1 );
+			if ((image.dimension( 0 )!=64)||(image.dimension( 1 )!=32)) {
+				throw new IllegalStateException( "Unexpected image size for setup "+vs.getId() );
+			}
+		}
+		imgLoader.close();
+		System.out.println( "Dataset with "+setups.size()+" setups loaded from "+xmlFile.getAbsolutePath() );
+	}
+}